@@ -24,7 +24,8 @@ public @interface Module {
     String value() default "";
 
     /**
-     * Setting the size of message preview of the server expected.
+     * Setting the size of message preview of the server expected, advertised as the 'Preview' header in OPTIONS responses.
+     * The module could decide on the preview whether the remaining body is needed at all.
      * Set to 0 means the server do not support preview functionality.
      * <p>
      * default: 0, aka the preview functionality is disabled.
@@ -32,4 +33,25 @@ public @interface Module {
      * @return message preview size
      */
     int messagePreview() default 0;
+
+    /**
+     * The icap methods served on the endpoint, requests of other methods are answered with '405 Method not allowed'.
+     * OPTIONS is always served, no need to be listed.
+     * <p>
+     * default: both REQMOD and RESPMOD.
+     *
+     * @return the served methods
+     */
+    String[] methods() default {"REQMOD", "RESPMOD"};
+
+    /**
+     * The count of worker threads dedicated to the endpoint when served by the 'nio' transport, so that slow requests of the
+     * endpoint, e.g. waiting for an external scanner, could not take the threads other endpoints are served on.
+     * Could be overridden by the 'icap.server.service.workers' option.
+     * <p>
+     * default: 0, aka the endpoint is served by the shared worker pool.
+     *
+     * @return the worker count of the endpoint
+     */
+    int workers() default 0;
 }
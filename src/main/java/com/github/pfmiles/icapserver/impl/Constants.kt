@@ -26,11 +26,465 @@ internal object Constants {
     const val DFT_PORT = "1344"
 
     /**
-     * limit the max count of threads the worker pool can create
+     * limit the max count of threads the worker pool can create, raised to the max count of connections when that's higher
      * TODO may improve with a new nio-fiber-busyThreads processing model
      */
     val WORKER_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 100
 
+    /**
+     * how long(in milliseconds) a persistent connection could stay idle between requests, specified in system environment
+     */
+    const val IDLE_TIMEOUT_ENV_VAR = "ICAP_SERVER_IDLE_TIMEOUT"
+
+    /**
+     * connection idle timeout specified in vm parameters, has lower priority than 'IDLE_TIMEOUT_ENV_VAR'
+     */
+    const val IDLE_TIMEOUT_PROP_VAR = "icap.server.idle.timeout"
+
+    /**
+     * the default connection idle timeout, in milliseconds
+     */
+    const val DFT_IDLE_TIMEOUT = "60000"
+
+    /**
+     * how long(in milliseconds) a started request could wait for more of its data, e.g. the body after '100 Continue', specified in system environment
+     */
+    const val READ_TIMEOUT_ENV_VAR = "ICAP_SERVER_READ_TIMEOUT"
+
+    /**
+     * how long(in milliseconds) a started request could wait for more of its data specified in vm parameters, has lower priority than 'READ_TIMEOUT_ENV_VAR'
+     */
+    const val READ_TIMEOUT_PROP_VAR = "icap.server.read.timeout"
+
+    /**
+     * the default read timeout of started requests, in milliseconds
+     */
+    const val DFT_READ_TIMEOUT = "60000"
+
+    /**
+     * how long(in milliseconds) a module could take to answer a request before it's answered with '500 Server Error', specified in system environment
+     */
+    const val MODULE_TIMEOUT_ENV_VAR = "ICAP_SERVER_MODULE_TIMEOUT"
+
+    /**
+     * how long(in milliseconds) a module could take to answer a request specified in vm parameters, has lower priority than 'MODULE_TIMEOUT_ENV_VAR'
+     */
+    const val MODULE_TIMEOUT_PROP_VAR = "icap.server.module.timeout"
+
+    /**
+     * the default deadline of module answers, in milliseconds
+     */
+    const val DFT_MODULE_TIMEOUT = "30000"
+
+    /**
+     * size in bytes of the buffer each connection is read into, bounding the bytes taken by one read call, specified in system environment
+     */
+    const val SOCKET_READ_BUFFER_ENV_VAR = "ICAP_SERVER_SOCKET_READ_BUFFER"
+
+    /**
+     * size in bytes of the buffer each connection is read into specified in vm parameters, has lower priority than 'SOCKET_READ_BUFFER_ENV_VAR'
+     */
+    const val SOCKET_READ_BUFFER_PROP_VAR = "icap.server.socket.read.buffer"
+
+    /**
+     * the default size of connection read buffers, in bytes
+     */
+    const val DFT_SOCKET_READ_BUFFER = "8192"
+
+    /**
+     * size in bytes of the buffer responses are gathered in before written to the connection, specified in system environment
+     */
+    const val SOCKET_WRITE_BUFFER_ENV_VAR = "ICAP_SERVER_SOCKET_WRITE_BUFFER"
+
+    /**
+     * size in bytes of the buffer responses are gathered in before written to the connection specified in vm parameters, has lower priority than 'SOCKET_WRITE_BUFFER_ENV_VAR'
+     */
+    const val SOCKET_WRITE_BUFFER_PROP_VAR = "icap.server.socket.write.buffer"
+
+    /**
+     * the default size of connection write buffers, in bytes
+     */
+    const val DFT_SOCKET_WRITE_BUFFER = "16384"
+
+    /**
+     * whether to disable nagle's algorithm on client connections, specified as 'true' or 'false', specified in system environment
+     */
+    const val TCP_NODELAY_ENV_VAR = "ICAP_SERVER_TCP_NODELAY"
+
+    /**
+     * whether to disable nagle's algorithm on client connections specified in vm parameters, has lower priority than 'TCP_NODELAY_ENV_VAR'
+     */
+    const val TCP_NODELAY_PROP_VAR = "icap.server.tcp.nodelay"
+
+    /**
+     * nagle's algorithm is disabled by default, responses are only written out at flush points
+     */
+    const val DFT_TCP_NODELAY = "true"
+
+    /**
+     * the SO_RCVBUF size in bytes of client connections, 0 keeps the os default, specified in system environment
+     */
+    const val SO_RCVBUF_ENV_VAR = "ICAP_SERVER_SO_RCVBUF"
+
+    /**
+     * the SO_RCVBUF size in bytes of client connections specified in vm parameters, has lower priority than 'SO_RCVBUF_ENV_VAR'
+     */
+    const val SO_RCVBUF_PROP_VAR = "icap.server.so.rcvbuf"
+
+    /**
+     * the os default receive buffer size is kept by default
+     */
+    const val DFT_SO_RCVBUF = "0"
+
+    /**
+     * the SO_SNDBUF size in bytes of client connections, 0 keeps the os default, specified in system environment
+     */
+    const val SO_SNDBUF_ENV_VAR = "ICAP_SERVER_SO_SNDBUF"
+
+    /**
+     * the SO_SNDBUF size in bytes of client connections specified in vm parameters, has lower priority than 'SO_SNDBUF_ENV_VAR'
+     */
+    const val SO_SNDBUF_PROP_VAR = "icap.server.so.sndbuf"
+
+    /**
+     * the os default send buffer size is kept by default
+     */
+    const val DFT_SO_SNDBUF = "0"
+
+    /**
+     * the max count of requests served over one persistent connection, specified in system environment
+     */
+    const val MAX_CONN_REQUESTS_ENV_VAR = "ICAP_SERVER_MAX_CONN_REQUESTS"
+
+    /**
+     * the max count of requests per connection specified in vm parameters, has lower priority than 'MAX_CONN_REQUESTS_ENV_VAR'
+     */
+    const val MAX_CONN_REQUESTS_PROP_VAR = "icap.server.max.conn.requests"
+
+    /**
+     * the default max count of requests served over one connection
+     */
+    const val DFT_MAX_CONN_REQUESTS = "1000"
+
+    /**
+     * the max count of connections served at once, advertised as 'Max-Connections', specified in system environment
+     */
+    const val MAX_CONNECTIONS_ENV_VAR = "ICAP_SERVER_MAX_CONNECTIONS"
+
+    /**
+     * the max count of connections served at once specified in vm parameters, has lower priority than 'MAX_CONNECTIONS_ENV_VAR'
+     */
+    const val MAX_CONNECTIONS_PROP_VAR = "icap.server.max.connections"
+
+    /**
+     * the default max count of connections served at once
+     */
+    const val DFT_MAX_CONNECTIONS = "1024"
+
+    /**
+     * how many connections the os queues while waiting to be accepted, specified in system environment
+     */
+    const val ACCEPT_BACKLOG_ENV_VAR = "ICAP_SERVER_ACCEPT_BACKLOG"
+
+    /**
+     * how many connections the os queues while waiting to be accepted specified in vm parameters, has lower priority than 'ACCEPT_BACKLOG_ENV_VAR'
+     */
+    const val ACCEPT_BACKLOG_PROP_VAR = "icap.server.accept.backlog"
+
+    /**
+     * the default accept backlog, the one of java
+     */
+    const val DFT_ACCEPT_BACKLOG = "50"
+
+    /**
+     * how long(in milliseconds) queued connections could wait for a slot once the max count of connections is reached, before they are rejected, specified in system environment
+     */
+    const val ACCEPT_QUEUE_TIMEOUT_ENV_VAR = "ICAP_SERVER_ACCEPT_QUEUE_TIMEOUT"
+
+    /**
+     * how long(in milliseconds) queued connections could wait for a slot specified in vm parameters, has lower priority than 'ACCEPT_QUEUE_TIMEOUT_ENV_VAR'
+     */
+    const val ACCEPT_QUEUE_TIMEOUT_PROP_VAR = "icap.server.accept.queue.timeout"
+
+    /**
+     * by default connections beyond the max count are rejected at once
+     */
+    const val DFT_ACCEPT_QUEUE_TIMEOUT = "0"
+
+    /**
+     * the max size in bytes of icap request heads(request line and icap headers), specified in system environment
+     */
+    const val MAX_HEADER_SIZE_ENV_VAR = "ICAP_SERVER_MAX_HEADER_SIZE"
+
+    /**
+     * the max size of icap request heads specified in vm parameters, has lower priority than 'MAX_HEADER_SIZE_ENV_VAR'
+     */
+    const val MAX_HEADER_SIZE_PROP_VAR = "icap.server.max.header.size"
+
+    /**
+     * the default max size in bytes of icap request heads
+     */
+    const val DFT_MAX_HEADER_SIZE = "65536"
+
+    /**
+     * encapsulated http bodies larger than this count of bytes are spilled to temp files, specified in system environment
+     */
+    const val BODY_SPILL_THRESHOLD_ENV_VAR = "ICAP_SERVER_BODY_SPILL_THRESHOLD"
+
+    /**
+     * the body spill threshold specified in vm parameters, has lower priority than 'BODY_SPILL_THRESHOLD_ENV_VAR'
+     */
+    const val BODY_SPILL_THRESHOLD_PROP_VAR = "icap.server.body.spill.threshold"
+
+    /**
+     * bodies larger than 1MiB are spilled to temp files by default
+     */
+    const val DFT_BODY_SPILL_THRESHOLD = "1048576"
+
+    /**
+     * the directory of the spilled body files specified in system environment, e.g. a tmpfs mount
+     */
+    const val BODY_SPILL_DIR_ENV_VAR = "ICAP_SERVER_BODY_SPILL_DIR"
+
+    /**
+     * the directory of the spilled body files specified in vm parameters, has lower priority than 'BODY_SPILL_DIR_ENV_VAR'
+     */
+    const val BODY_SPILL_DIR_PROP_VAR = "icap.server.body.spill.dir"
+
+    /**
+     * body files are spilled to the system temp directory by default
+     */
+    val DFT_BODY_SPILL_DIR: String = System.getProperty("java.io.tmpdir")
+
+    /**
+     * the bytes of encapsulated http bodies all the requests in flight could hold on heap at once, specified in system environment
+     */
+    const val BODY_MEMORY_BUDGET_ENV_VAR = "ICAP_SERVER_BODY_MEMORY_BUDGET"
+
+    /**
+     * the body memory budget specified in vm parameters, has lower priority than 'BODY_MEMORY_BUDGET_ENV_VAR'
+     */
+    const val BODY_MEMORY_BUDGET_PROP_VAR = "icap.server.body.memory.budget"
+
+    /**
+     * a quarter of the max heap by default
+     */
+    val DFT_BODY_MEMORY_BUDGET = (Runtime.getRuntime().maxMemory() / 4).toString()
+
+    /**
+     * whether where the pooled io buffers are acquired is recorded, to find the ones never released, specified in system environment
+     */
+    const val BUFFER_LEAK_DETECTION_ENV_VAR = "ICAP_SERVER_BUFFER_LEAK_DETECTION"
+
+    /**
+     * whether the pooled io buffers are tracked for leaks specified in vm parameters, has lower priority than 'BUFFER_LEAK_DETECTION_ENV_VAR'
+     */
+    const val BUFFER_LEAK_DETECTION_PROP_VAR = "icap.server.buffer.leak.detection"
+
+    /**
+     * off by default, it costs a stack trace per buffer acquired
+     */
+    const val DFT_BUFFER_LEAK_DETECTION = "false"
+
+    /**
+     * the clamav scanning backend specified in system environment: 'clamscan' forks a clamscan process per scan, 'clamd' talks
+     * to a running clamd daemon
+     */
+    const val CLAMAV_BACKEND_ENV_VAR = "ICAP_SERVER_CLAMAV_BACKEND"
+
+    /**
+     * the clamav scanning backend specified in vm parameters, has lower priority than 'CLAMAV_BACKEND_ENV_VAR'
+     */
+    const val CLAMAV_BACKEND_PROP_VAR = "icap.server.clamav.backend"
+
+    /**
+     * scanning by clamscan processes by default
+     */
+    const val DFT_CLAMAV_BACKEND = "clamscan"
+
+    /**
+     * the clamd address specified in system environment, 'host:port' or 'unix:/path/to/clamd.sock'
+     */
+    const val CLAMD_ADDRESS_ENV_VAR = "ICAP_SERVER_CLAMD_ADDRESS"
+
+    /**
+     * the clamd address specified in vm parameters, has lower priority than 'CLAMD_ADDRESS_ENV_VAR'
+     */
+    const val CLAMD_ADDRESS_PROP_VAR = "icap.server.clamd.address"
+
+    /**
+     * clamd listening on its default tcp port locally by default
+     */
+    const val DFT_CLAMD_ADDRESS = "127.0.0.1:3310"
+
+    /**
+     * the max count of pooled clamd connections specified in system environment
+     */
+    const val CLAMD_POOL_SIZE_ENV_VAR = "ICAP_SERVER_CLAMD_POOL_SIZE"
+
+    /**
+     * the max count of pooled clamd connections specified in vm parameters, has lower priority than 'CLAMD_POOL_SIZE_ENV_VAR'
+     */
+    const val CLAMD_POOL_SIZE_PROP_VAR = "icap.server.clamd.pool.size"
+
+    /**
+     * the default max count of pooled clamd connections
+     */
+    const val DFT_CLAMD_POOL_SIZE = "8"
+
+    /**
+     * the timeout in milliseconds of each clamd call specified in system environment
+     */
+    const val CLAMD_TIMEOUT_ENV_VAR = "ICAP_SERVER_CLAMD_TIMEOUT"
+
+    /**
+     * the timeout of each clamd call specified in vm parameters, has lower priority than 'CLAMD_TIMEOUT_ENV_VAR'
+     */
+    const val CLAMD_TIMEOUT_PROP_VAR = "icap.server.clamd.timeout"
+
+    /**
+     * the default timeout in milliseconds of each clamd call
+     */
+    const val DFT_CLAMD_TIMEOUT = "30000"
+
+    /**
+     * the max count of cached virus scan verdicts specified in system environment, 0 disables the cache
+     */
+    const val VERDICT_CACHE_SIZE_ENV_VAR = "ICAP_SERVER_VERDICT_CACHE_SIZE"
+
+    /**
+     * the max count of cached virus scan verdicts specified in vm parameters, has lower priority than 'VERDICT_CACHE_SIZE_ENV_VAR'
+     */
+    const val VERDICT_CACHE_SIZE_PROP_VAR = "icap.server.verdict.cache.size"
+
+    /**
+     * the default max count of cached virus scan verdicts
+     */
+    const val DFT_VERDICT_CACHE_SIZE = "10000"
+
+    /**
+     * how long in milliseconds a cached virus scan verdict is trusted, specified in system environment
+     */
+    const val VERDICT_CACHE_TTL_ENV_VAR = "ICAP_SERVER_VERDICT_CACHE_TTL"
+
+    /**
+     * how long a cached virus scan verdict is trusted, specified in vm parameters, has lower priority than 'VERDICT_CACHE_TTL_ENV_VAR'
+     */
+    const val VERDICT_CACHE_TTL_PROP_VAR = "icap.server.verdict.cache.ttl"
+
+    /**
+     * the default time in milliseconds a cached virus scan verdict is trusted
+     */
+    const val DFT_VERDICT_CACHE_TTL = "3600000"
+
+    /**
+     * seconds the OPTIONS responses are valid for, advertised as 'Options-TTL', specified in system environment
+     */
+    const val OPTIONS_TTL_ENV_VAR = "ICAP_SERVER_OPTIONS_TTL"
+
+    /**
+     * seconds the OPTIONS responses are valid for, specified in vm parameters, has lower priority than 'OPTIONS_TTL_ENV_VAR'
+     */
+    const val OPTIONS_TTL_PROP_VAR = "icap.server.options.ttl"
+
+    /**
+     * the default seconds the OPTIONS responses are valid for
+     */
+    const val DFT_OPTIONS_TTL = "3600"
+
+    /**
+     * comma-separated content type prefixes not scanned by virus_scan specified in system environment, e.g. 'video/,audio/';
+     * such bodies are answered with '204' on their previews, once the previews are verified to be of the declared media types
+     */
+    const val SCAN_SKIP_TYPES_ENV_VAR = "ICAP_SERVER_SCAN_SKIP_TYPES"
+
+    /**
+     * content type prefixes not scanned by virus_scan specified in vm parameters, has lower priority than 'SCAN_SKIP_TYPES_ENV_VAR'
+     */
+    const val SCAN_SKIP_TYPES_PROP_VAR = "icap.server.scan.skip.types"
+
+    /**
+     * by default all content types are scanned
+     */
+    const val DFT_SCAN_SKIP_TYPES = ""
+
+    /**
+     * request handling execution mode specified in system environment: 'platform' for a bounded pool of platform threads,
+     * 'virtual' for a virtual thread per connection(requires java 21+)
+     */
+    const val EXECUTION_ENV_VAR = "ICAP_SERVER_EXECUTION"
+
+    /**
+     * request handling execution mode specified in vm parameters, has lower priority than 'EXECUTION_ENV_VAR'
+     */
+    const val EXECUTION_PROP_VAR = "icap.server.execution"
+
+    /**
+     * the default request handling execution mode
+     */
+    const val DFT_EXECUTION = "platform"
+
+    /**
+     * connection transport specified in system environment: 'bio' for the thread-per-connection accept loop, 'nio' for the selector-based event loops
+     */
+    const val TRANSPORT_ENV_VAR = "ICAP_SERVER_TRANSPORT"
+
+    /**
+     * connection transport specified in vm parameters, has lower priority than 'TRANSPORT_ENV_VAR'
+     */
+    const val TRANSPORT_PROP_VAR = "icap.server.transport"
+
+    /**
+     * the default connection transport
+     */
+    const val DFT_TRANSPORT = "bio"
+
+    /**
+     * the count of nio event loop threads specified in system environment
+     */
+    const val NIO_LOOPS_ENV_VAR = "ICAP_SERVER_NIO_LOOPS"
+
+    /**
+     * the count of nio event loop threads specified in vm parameters, has lower priority than 'NIO_LOOPS_ENV_VAR'
+     */
+    const val NIO_LOOPS_PROP_VAR = "icap.server.nio.loops"
+
+    /**
+     * the default count of nio event loop threads, one per cpu core
+     */
+    val DFT_NIO_LOOPS = Runtime.getRuntime().availableProcessors().toString()
+
+    /**
+     * the worker threads dedicated to endpoints, as comma-separated 'service=count' pairs, e.g. 'virus_scan=64,echo=4', overriding
+     * the 'workers' of their modules, specified in system environment
+     */
+    const val SERVICE_WORKERS_ENV_VAR = "ICAP_SERVER_SERVICE_WORKERS"
+
+    /**
+     * the worker threads dedicated to endpoints specified in vm parameters, has lower priority than 'SERVICE_WORKERS_ENV_VAR'
+     */
+    const val SERVICE_WORKERS_PROP_VAR = "icap.server.service.workers"
+
+    /**
+     * by default endpoints get the worker threads declared by their modules
+     */
+    const val DFT_SERVICE_WORKERS = ""
+
+    /**
+     * the worker threads of the fast lane, serving OPTIONS and body-less requests, specified in system environment
+     */
+    const val FAST_LANE_WORKERS_ENV_VAR = "ICAP_SERVER_FAST_LANE_WORKERS"
+
+    /**
+     * the worker threads of the fast lane specified in vm parameters, has lower priority than 'FAST_LANE_WORKERS_ENV_VAR'
+     */
+    const val FAST_LANE_WORKERS_PROP_VAR = "icap.server.fast.lane.workers"
+
+    /**
+     * the default worker threads of the fast lane, one per cpu core, 0 disables the fast lane
+     */
+    val DFT_FAST_LANE_WORKERS = Runtime.getRuntime().availableProcessors().toString()
+
     /**
      * the local ip address, picking the randomly first one, special ips like '127.0.0.1' as such are bypassed
      */
@@ -41,6 +495,22 @@ internal object Constants {
      */
     const val STD_MODULE_PKG = "com.github.pfmiles.icapserver.standardmodules"
 
+    /**
+     * comma separated base packages of the modules served besides the standard ones, specified in system environment
+     */
+    const val MODULE_PACKAGES_ENV_VAR = "ICAP_SERVER_MODULE_PACKAGES"
+
+    /**
+     * comma separated base packages of the modules served besides the standard ones specified in vm parameters, has lower priority
+     * than 'MODULE_PACKAGES_ENV_VAR'
+     */
+    const val MODULE_PACKAGES_PROP_VAR = "icap.server.module.packages"
+
+    /**
+     * no modules besides the standard ones by default
+     */
+    const val DFT_MODULE_PACKAGES = ""
+
     /**
      * server name definition key in system env, used in 'Service' response header
      */
@@ -0,0 +1,43 @@
+package com.github.pfmiles.icapserver.impl
+
+import java.util.SortedMap
+import java.util.TreeMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Process-wide counters and gauges of the server, reported in the body of the '/info' service.
+ *
+ * @author pf-miles
+ */
+internal object Metrics {
+
+    private val counters = ConcurrentHashMap<String, LongAdder>()
+    private val gauges = ConcurrentHashMap<String, () -> Long>()
+
+    fun inc(name: String) = add(name, 1)
+
+    fun add(name: String, n: Long) = counters.computeIfAbsent(name) { LongAdder() }.add(n)
+
+    /**
+     * the current value of a counter, 0 if never counted
+     */
+    fun count(name: String): Long = counters[name]?.sum() ?: 0
+
+    /**
+     * register a value sampled at reporting time, replacing the one of the same name
+     */
+    fun gauge(name: String, sampler: () -> Long) {
+        gauges[name] = sampler
+    }
+
+    /**
+     * all the counters and gauges, by name
+     */
+    fun snapshot(): SortedMap<String, Long> {
+        val snapshot = TreeMap<String, Long>()
+        counters.forEach { (k, v) -> snapshot[k] = v.sum() }
+        gauges.forEach { (k, v) -> snapshot[k] = v() }
+        return snapshot
+    }
+}
@@ -6,6 +6,7 @@ import java.io.InputStream
 import java.net.InetAddress
 import java.net.NetworkInterface
 import java.net.SocketException
+import java.security.MessageDigest
 import java.util.*
 
 /**
@@ -53,22 +54,52 @@ internal object Utils {
 
     fun randomUUID32Chars() = UUID.randomUUID().toString().replace("-", "").uppercase()
 
-    // to chunked encoding, keeping the stream-processing style
-    fun chunkenize(ins: InputStream, chunkSize: Int = 4096): Iterator<Chunk> {
-        val buf = ByteArray(chunkSize)
-        var finalChunkReturned = false
-        var read = ins.read(buf)
-        return object : Iterator<Chunk> {
-            override fun hasNext(): Boolean = read != -1 || !finalChunkReturned
+    /**
+     * a stable 'ISTag' value for the service state made up of the parts, which changes only when some part changes
+     *
+     * @param parts e.g. the service name, the server version and the scanner signature version
+     *
+     * @return 32 hex chars, the max length of an 'ISTag' value
+     */
+    fun serviceTag(vararg parts: String?): String {
+        val md = MessageDigest.getInstance("SHA-256")
+        // separated, so ('ab', 'c') and ('a', 'bc') differ
+        parts.forEach { md.update((it ?: "").toByteArray(Charsets.UTF_8)); md.update(0) }
+        return md.digest().copyOf(16).joinToString("") { "%02X".format(it) }
+    }
 
-            override fun next(): Chunk = if (read != -1) {
-                Chunk(buf.sliceArray(0 until read)).also { read = ins.read(buf) }
-            } else if (!finalChunkReturned) {
-                Chunk.FINAL_CHUNK.also { finalChunkReturned = true }
-            } else {
-                throw NoSuchElementException("No more element.")
-            }
+    /**
+     * to chunked encoding, keeping the stream-processing style
+     *
+     * Each chunk is what one read of the stream gives, read into an array of its own, which becomes the chunk content as it is
+     * whenever the read fills it up, so only short reads are copied.
+     *
+     * @param chunkSize the max size of the chunks
+     */
+    fun chunkenize(ins: InputStream, chunkSize: Int = 4096): Iterator<Chunk> = object : Iterator<Chunk> {
+        private var next: Chunk? = null
+        private var finalChunkReturned = false
+
+        override fun hasNext(): Boolean {
+            if (next == null && !finalChunkReturned) next = readChunk()
+            return next != null
+        }
+
+        override fun next(): Chunk {
+            if (!hasNext()) throw NoSuchElementException("No more element.")
+            val chunk = next!!
+            next = null
+            if (chunk === Chunk.FINAL_CHUNK) finalChunkReturned = true
+            return chunk
+        }
 
+        private fun readChunk(): Chunk {
+            val buf = ByteArray(chunkSize)
+            var read = ins.read(buf)
+            // 0-byte reads are not taken as the end of the stream
+            while (read == 0) read = ins.read(buf)
+            if (read == -1) return Chunk.FINAL_CHUNK
+            return Chunk(if (read == buf.size) buf else buf.copyOf(read))
         }
     }
 }
\ No newline at end of file
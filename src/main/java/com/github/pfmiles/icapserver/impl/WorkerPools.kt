@@ -0,0 +1,92 @@
+package com.github.pfmiles.icapserver.impl
+
+import org.slf4j.LoggerFactory
+import java.lang.reflect.Method
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Creates the executors running client handling jobs, according to the configured execution mode:
+ * 'platform' for a bounded pool of platform threads, 'virtual' for a virtual thread per job.
+ *
+ * Virtual threads are created reflectively since the project still targets java 8, on runtimes older than 21 the platform pool
+ * is used instead.
+ *
+ * @author pf-miles
+ */
+internal object WorkerPools {
+    private val logger = LoggerFactory.getLogger(WorkerPools::class.java)
+
+    private val workerSeq = AtomicLong()
+    private val blockingSeq = AtomicLong()
+
+    // 'Thread.isVirtual()' on jdk 21+, null otherwise
+    private val isVirtualMethod: Method? = runCatching { Thread::class.java.getMethod("isVirtual") }.getOrNull()
+
+    // runs the blocking calls which would pin the carrier of a virtual thread
+    private val blockingPool: ExecutorService by lazy {
+        ThreadPoolExecutor(0, Constants.WORKER_POOL_SIZE, 60L, TimeUnit.SECONDS, SynchronousQueue()) { r ->
+            Thread(r, "icap-server-blocking-thread-" + blockingSeq.getAndIncrement()).apply { isDaemon = true }
+        }
+    }
+
+    /**
+     * create the executor handling client requests
+     *
+     * @param mode the execution mode, 'platform' or 'virtual'
+     * @param maxConnections the max count of connections served at once; the platform pool grows to at least as many threads, so
+     * that an admitted 'bio' connection, taking a thread all along, is never turned away by a saturated pool
+     */
+    fun newRequestHandlePool(mode: String, maxConnections: Int): ExecutorService {
+        if ("virtual".equals(mode, ignoreCase = true)) {
+            val pool = newVirtualThreadPool()
+            if (pool != null) {
+                logger.info("[ICAP-SERVER] Client requests are handled on virtual threads.")
+                return pool
+            }
+            logger.warn("Virtual threads are not supported by this java runtime, falling back to platform threads.")
+        }
+        val size = maxOf(Constants.WORKER_POOL_SIZE, maxConnections)
+        logger.info("[ICAP-SERVER] Client requests are handled by up to $size platform threads, serving at most $maxConnections connections.")
+        return ThreadPoolExecutor(1, size, 60L, TimeUnit.SECONDS, SynchronousQueue()) { r ->
+            Thread(r, "icap-server-worker-thread-" + workerSeq.getAndIncrement())
+        }
+    }
+
+    private fun newVirtualThreadPool(): ExecutorService? = runCatching {
+        val builder = Thread::class.java.getMethod("ofVirtual").invoke(null)
+        val builderCls = Class.forName("java.lang.Thread\$Builder")
+        builderCls.getMethod("name", String::class.java, Long::class.javaPrimitiveType).invoke(builder, "icap-server-virtual-worker-", 0L)
+        val factory = builderCls.getMethod("factory").invoke(builder) as ThreadFactory
+        Executors::class.java.getMethod("newThreadPerTaskExecutor", ThreadFactory::class.java).invoke(null, factory) as ExecutorService
+    }.getOrNull()
+
+    /**
+     * whether the current thread is a virtual one
+     */
+    fun isVirtualThread(): Boolean = isVirtualMethod?.invoke(Thread.currentThread()) == true
+
+    /**
+     * Run a blocking call that would pin the carrier thread when made from a virtual thread, e.g. waiting for an external scanner
+     * process, whose jdk implementation blocks while holding monitors.
+     * On a virtual thread the call is made on a platform thread and the virtual thread just parks for the result, otherwise it is
+     * made directly.
+     */
+    @Throws(Exception::class)
+    fun <T> callUnpinned(task: Callable<T>): T {
+        if (!isVirtualThread()) return task.call()
+        try {
+            return blockingPool.submit(task).get()
+        } catch (e: ExecutionException) {
+            val cause = e.cause
+            throw if (cause is Exception) cause else e
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.github.pfmiles.icapserver.impl.body
+
+import com.github.pfmiles.icapserver.impl.buffer.ChannelOutputStream
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+
+/**
+ * Holds an encapsulated http body: in memory while it's small, spilled to a temp file once it grows over the threshold, so
+ * large bodies do not live on heap. The in-memory buffer is reserved from the [MemoryBudget] before it grows, a body is spilled
+ * earlier when the budget is exhausted.
+ *
+ * A spilled body is handed to scanners by its file path. It is sent out with [FileChannel.transferTo], which only avoids the heap
+ * when the target is a file or socket channel itself; [writeTo] a plain stream wraps it with [Channels.newChannel], which copies
+ * the content through a heap buffer chunk by chunk, so the whole body is still never held in memory at once.
+ *
+ * Not thread-safe, owned by the request being processed, which must [close] it to remove the temp file; writes after that fail, so
+ * nothing is reserved from the budget anymore.
+ *
+ * @author pf-miles
+ *
+ * @param spillThreshold bodies larger than this count of bytes are spilled to disk
+ * @property spillDir where the temp files are created, e.g. a tmpfs mount
+ * @property budget where the in-memory buffer is reserved from
+ */
+internal class BodyStore @JvmOverloads constructor(
+    spillThreshold: Long,
+    private val spillDir: File,
+    private val budget: MemoryBudget = MemoryBudget.global
+) : OutputStream() {
+
+    // the max capacity of the in-memory buffer
+    private val memLimit = minOf(spillThreshold, MAX_MEM_CAPACITY.toLong()).toInt()
+
+    private var mem = EMPTY
+    private var file: File? = null
+    private var fileOut: OutputStream? = null
+
+    // released, taking no more writes
+    private var closed = false
+
+    // updated as the body is written, when asked for by 'trackDigest'
+    private var digest: MessageDigest? = null
+
+    /**
+     * count of bytes written
+     */
+    var size = 0L
+        private set
+
+    /**
+     * whether the body is held in a temp file
+     */
+    val spilled: Boolean
+        get() = file != null
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        write(byteArrayOf(b.toByte()), 0, 1)
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        if (closed) throw IOException("Body store closed.")
+        if (len == 0) return
+        digest?.update(b, off, len)
+        if (file == null && size + len > memLimit) spill()
+        if (file == null && size + len > mem.size) grow(maxOf(size.toInt() + len, minOf(mem.size * 2, memLimit), INITIAL_CAPACITY))
+        val fo = fileOut
+        if (fo != null) {
+            fo.write(b, off, len)
+        } else {
+            System.arraycopy(b, off, mem, size.toInt(), len)
+        }
+        size += len
+    }
+
+    /**
+     * compute the digest of the body as it's written, so it's known without reading the body again once it's complete; must be
+     * called before any writes
+     */
+    fun trackDigest(algorithm: String) {
+        check(size == 0L) { "Digest tracking must start before the body is written." }
+        digest = MessageDigest.getInstance(algorithm)
+    }
+
+    /**
+     * the digest of the whole body, could be called only once after the body is complete
+     */
+    fun digest(): ByteArray = checkNotNull(digest) { "Digest of the body is not tracked." }.digest().also { digest = null }
+
+    // reserve the growth of the in-memory buffer, or spill if the budget could not afford it
+    private fun grow(capacity: Int) {
+        if (budget.tryReserve((capacity - mem.size).toLong())) {
+            mem = mem.copyOf(capacity)
+        } else {
+            spill()
+        }
+    }
+
+    // move what's in memory to a new temp file, which takes all the following writes
+    private fun spill() {
+        spillDir.mkdirs()
+        val f = File.createTempFile("icap-body-", ".data", spillDir)
+        val fo = ChannelOutputStream(FileChannel.open(f.toPath(), StandardOpenOption.WRITE))
+        // owned by the store from now on, so they are cleaned up by 'close' even if the following write fails
+        file = f
+        fileOut = fo
+        try {
+            fo.write(mem, 0, size.toInt())
+        } finally {
+            budget.release(mem.size.toLong())
+            mem = EMPTY
+        }
+    }
+
+    /**
+     * the file holding the whole body, for scanners which read files; a body still in memory is spilled at first
+     */
+    @Throws(IOException::class)
+    fun file(): File {
+        if (file == null) spill()
+        fileOut!!.flush()
+        return file!!
+    }
+
+    /**
+     * the whole body in a byte array, only for consumers which could not read files or streams
+     */
+    @Throws(IOException::class)
+    fun toByteArray(): ByteArray = if (file == null) mem.copyOf(size.toInt()) else openStream().use { it.readBytes() }
+
+    /**
+     * at most 'max' bytes from the beginning of the body
+     */
+    @Throws(IOException::class)
+    fun head(max: Int): ByteArray {
+        if (file == null) return mem.copyOf(minOf(size, max.toLong()).toInt())
+        val n = minOf(size, max.toLong()).toInt()
+        val head = ByteArray(n)
+        openStream().use {
+            var read = 0
+            while (read < n) {
+                val r = it.read(head, read, n - read)
+                if (r == -1) break
+                read += r
+            }
+        }
+        return head
+    }
+
+    @Throws(IOException::class)
+    fun openStream(): InputStream {
+        val f = file ?: return ByteArrayInputStream(mem, 0, size.toInt())
+        fileOut!!.flush()
+        return FileInputStream(f)
+    }
+
+    /**
+     * write the whole body out, a spilled one is read from its file channel and copied into the stream; only a [FileOutputStream] is
+     * transferred to by the os directly, other streams, e.g. of sockets, get an ordinary buffered copy
+     */
+    @Throws(IOException::class)
+    fun writeTo(out: OutputStream) {
+        if (file == null) {
+            out.write(mem, 0, size.toInt())
+            return
+        }
+        out.flush()
+        transferTo(if (out is FileOutputStream) out.channel else Channels.newChannel(out))
+    }
+
+    /**
+     * transfer the whole body to the channel; a spilled one is only copied by the os without passing the heap when the target is a
+     * file or socket channel itself, a channel wrapping a stream copies it through a buffer as usual
+     */
+    @Throws(IOException::class)
+    fun transferTo(target: WritableByteChannel) {
+        val f = file ?: run {
+            Channels.newOutputStream(target).write(mem, 0, size.toInt())
+            return
+        }
+        fileOut!!.flush()
+        FileChannel.open(f.toPath(), StandardOpenOption.READ).use {
+            var pos = 0L
+            while (pos < size) pos += it.transferTo(pos, size - pos, target)
+        }
+    }
+
+    /**
+     * release the body, removing its temp file if spilled
+     */
+    override fun close() {
+        closed = true
+        val f = file ?: run {
+            budget.release(mem.size.toLong())
+            mem = EMPTY
+            return
+        }
+        runCatching { fileOut?.close() }
+        fileOut = null
+        file = null
+        f.delete()
+    }
+
+    private companion object {
+        val EMPTY = ByteArray(0)
+        const val INITIAL_CAPACITY = 256
+        const val MAX_MEM_CAPACITY = Int.MAX_VALUE - 8
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.pfmiles.icapserver.impl.body
+
+import com.github.pfmiles.icapserver.impl.Constants
+import com.github.pfmiles.icapserver.impl.Metrics
+import com.github.pfmiles.icapserver.impl.Utils
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Accounts the body bytes held in memory by all the requests in flight, so the memory taken by bodies stays predictable however many
+ * large messages arrive at once.
+ *
+ * A [BodyStore] reserves its in-memory buffer before growing it and spills to disk when refused; a nio connection accounts the
+ * frames it has read but not handed to its handler yet, and stops reading from its socket while the budget is exhausted.
+ *
+ * Thread-safe, shared by all the connections.
+ *
+ * @author pf-miles
+ *
+ * @property capacity the bytes of bodies that could be held in memory at once
+ */
+internal class MemoryBudget(val capacity: Long) {
+
+    companion object {
+        /**
+         * gauge of the body bytes held in memory by the global budget
+         */
+        const val USED = "body.memory.used"
+
+        /**
+         * gauge of the most body bytes held in memory at once by the global budget
+         */
+        const val HIGH_WATER = "body.memory.high.water"
+
+        /**
+         * counter of the reservations refused, e.g. bodies spilled to disk before reaching the spill threshold
+         */
+        const val REFUSED = "body.memory.refused"
+
+        /**
+         * the budget shared by all the connections, as configured
+         */
+        @JvmStatic
+        val global: MemoryBudget by lazy {
+            val budget = MemoryBudget(Utils.optsInOrDefault(Constants.BODY_MEMORY_BUDGET_ENV_VAR, Constants.BODY_MEMORY_BUDGET_PROP_VAR,
+                Constants.DFT_BODY_MEMORY_BUDGET).trim().toLong())
+            Metrics.gauge(USED) { budget.used }
+            Metrics.gauge(HIGH_WATER) { budget.highWater }
+            budget
+        }
+    }
+
+    private val usedBytes = AtomicLong()
+    private val highWaterBytes = AtomicLong()
+
+    /**
+     * the bytes reserved now
+     */
+    val used: Long
+        get() = usedBytes.get()
+
+    /**
+     * the most bytes reserved at once
+     */
+    val highWater: Long
+        get() = highWaterBytes.get()
+
+    /**
+     * whether nothing more could be reserved
+     */
+    val exhausted: Boolean
+        get() = usedBytes.get() >= capacity
+
+    /**
+     * reserve the bytes if they fit in the budget
+     *
+     * @return false if the budget has not enough room left, nothing is reserved then
+     */
+    fun tryReserve(n: Long): Boolean {
+        while (true) {
+            val current = usedBytes.get()
+            if (current + n > capacity) {
+                Metrics.inc(REFUSED)
+                return false
+            }
+            if (usedBytes.compareAndSet(current, current + n)) {
+                updateHighWater(current + n)
+                return true
+            }
+        }
+    }
+
+    /**
+     * reserve the bytes even beyond the budget, for what's already held, e.g. bytes read from a socket
+     */
+    fun reserve(n: Long) = updateHighWater(usedBytes.addAndGet(n))
+
+    fun release(n: Long) {
+        usedBytes.addAndGet(-n)
+    }
+
+    private fun updateHighWater(used: Long) {
+        while (true) {
+            val high = highWaterBytes.get()
+            if (used <= high || highWaterBytes.compareAndSet(high, used)) return
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.pfmiles.icapserver.impl.buffer
+
+import com.github.pfmiles.icapserver.impl.Constants
+import com.github.pfmiles.icapserver.impl.Metrics
+import com.github.pfmiles.icapserver.impl.Utils
+import com.github.pfmiles.icapserver.impl.WorkerPools
+import java.nio.ByteBuffer
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Pooled direct buffers, for the io of connections and body files, so moving a body through the server allocates nothing per
+ * request however large the body is, and socket and file channels are read and written without copying through temp buffers.
+ *
+ * Buffers are of a few size classes, carved out of direct slabs of [SLAB_SIZE] bytes. A released buffer goes to the cache of the
+ * releasing thread first, then to the free list of its class shared by all threads; beyond [maxRetained] free buffers of a class,
+ * released ones are left to the gc, so the pool shrinks back after a burst.
+ *
+ * With [leakDetection] on, where every outstanding buffer was acquired is recorded, for the tests to check all of them are
+ * released.
+ *
+ * @author pf-miles
+ *
+ * @property maxRetained the max count of free buffers of a class kept by the shared free list
+ * @property threadCacheSize the max count of free buffers of a class kept by the cache of a thread, 0 disables the caches
+ * @property leakDetection whether the acquiring stacks of the outstanding buffers are recorded
+ */
+internal class BufferPool(private val maxRetained: Int, private val threadCacheSize: Int, private val leakDetection: Boolean) {
+
+    companion object {
+        /**
+         * the sizes of the pooled buffers
+         */
+        @JvmField
+        val SIZE_CLASSES = intArrayOf(4 * 1024, 16 * 1024, 64 * 1024)
+
+        /**
+         * the largest buffer that could be acquired
+         */
+        const val MAX_SIZE = 64 * 1024
+
+        /**
+         * the size of the direct slabs the buffers are carved out of
+         */
+        const val SLAB_SIZE = 1024 * 1024
+
+        /**
+         * gauge of the buffers acquired and not released yet
+         */
+        const val OUTSTANDING = "buffers.outstanding"
+
+        /**
+         * counter of the direct slabs allocated
+         */
+        const val SLABS = "buffers.slabs"
+
+        /**
+         * the pool shared by the server
+         */
+        @JvmStatic
+        val global: BufferPool by lazy {
+            val pool = BufferPool(256, 16, Utils.optsInOrDefault(Constants.BUFFER_LEAK_DETECTION_ENV_VAR,
+                Constants.BUFFER_LEAK_DETECTION_PROP_VAR, Constants.DFT_BUFFER_LEAK_DETECTION).trim().toBoolean())
+            Metrics.gauge(OUTSTANDING) { pool.outstanding }
+            pool
+        }
+
+        private fun classOf(size: Int): Int {
+            for (i in SIZE_CLASSES.indices) if (size <= SIZE_CLASSES[i]) return i
+            throw IllegalArgumentException("Buffers larger than $MAX_SIZE bytes are not pooled: $size.")
+        }
+    }
+
+    private val freeLists = Array(SIZE_CLASSES.size) { ConcurrentLinkedQueue<ByteBuffer>() }
+    private val freeCounts = Array(SIZE_CLASSES.size) { AtomicInteger() }
+
+    private val caches = ThreadLocal.withInitial { Array(SIZE_CLASSES.size) { java.util.ArrayDeque<ByteBuffer>() } }
+
+    private val outstandingCount = AtomicLong()
+
+    // acquiring stacks of the outstanding buffers, by identity since buffers are equal by content
+    private val live: MutableMap<ByteBuffer, Throwable>? = if (leakDetection) Collections.synchronizedMap(IdentityHashMap()) else null
+
+    /**
+     * count of the buffers acquired and not released yet
+     */
+    val outstanding: Long
+        get() = outstandingCount.get()
+
+    /**
+     * acquire a cleared buffer of at least the size, which must be given back by [release] once not used anymore
+     *
+     * @param size at most [MAX_SIZE]
+     */
+    fun acquire(size: Int): ByteBuffer {
+        val cls = classOf(size)
+        val buf = (if (cached()) caches.get()[cls].pollFirst() else null) ?: pollFree(cls) ?: carve(cls)
+        buf.clear()
+        outstandingCount.incrementAndGet()
+        live?.put(buf, Throwable("Buffer of ${buf.capacity()} bytes acquired here."))
+        return buf
+    }
+
+    /**
+     * give back a buffer acquired from this pool, which must not be used afterwards
+     */
+    fun release(buf: ByteBuffer) {
+        if (live != null) checkNotNull(live.remove(buf)) { "Buffer released twice, or not acquired from this pool." }
+        outstandingCount.decrementAndGet()
+        val cls = classOf(buf.capacity())
+        if (cached()) {
+            val cache = caches.get()[cls]
+            if (cache.size < threadCacheSize) {
+                cache.addFirst(buf)
+                return
+            }
+        }
+        if (freeCounts[cls].incrementAndGet() <= maxRetained) {
+            freeLists[cls].add(buf)
+        } else {
+            freeCounts[cls].decrementAndGet()
+        }
+    }
+
+    /**
+     * where the outstanding buffers were acquired, empty unless [leakDetection] is on
+     */
+    fun leaks(): List<Throwable> = live?.let { synchronized(it) { it.values.toList() } } ?: emptyList()
+
+    // virtual threads come and go with their tasks, caches of their own would never be reused
+    private fun cached() = threadCacheSize > 0 && !WorkerPools.isVirtualThread()
+
+    private fun pollFree(cls: Int): ByteBuffer? = freeLists[cls].poll()?.also { freeCounts[cls].decrementAndGet() }
+
+    // carve a new slab into buffers of the class, keeping all but the returned one in the free list
+    private fun carve(cls: Int): ByteBuffer {
+        val size = SIZE_CLASSES[cls]
+        val slab = ByteBuffer.allocateDirect(SLAB_SIZE)
+        Metrics.inc(SLABS)
+        var first: ByteBuffer? = null
+        var pos = 0
+        while (pos + size <= SLAB_SIZE) {
+            slab.limit(pos + size).position(pos)
+            val buf = slab.slice()
+            if (first == null) {
+                first = buf
+            } else {
+                freeCounts[cls].incrementAndGet()
+                freeLists[cls].add(buf)
+            }
+            pos += size
+        }
+        return first!!
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.pfmiles.icapserver.impl.buffer
+
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
+
+/**
+ * Buffered output to a channel through a pooled direct buffer, e.g. a spilled body file, so the channel is written without
+ * another copy and no buffer is allocated per stream.
+ *
+ * Not thread-safe, the buffer is given back to the pool on [close].
+ *
+ * @author pf-miles
+ *
+ * @property channel where the bytes go, closed along with the stream
+ * @property pool where the buffer is acquired from
+ */
+internal class ChannelOutputStream(private val channel: WritableByteChannel, private val pool: BufferPool = BufferPool.global) : OutputStream() {
+
+    private var buf: ByteBuffer? = pool.acquire(BufferPool.MAX_SIZE)
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        val buf = buffer()
+        if (!buf.hasRemaining()) drain(buf)
+        buf.put(b.toByte())
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        val buf = buffer()
+        var from = off
+        var left = len
+        while (left > 0) {
+            if (!buf.hasRemaining()) drain(buf)
+            val n = minOf(left, buf.remaining())
+            buf.put(b, from, n)
+            from += n
+            left -= n
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun flush() = drain(buffer())
+
+    @Throws(IOException::class)
+    override fun close() {
+        val buf = this.buf ?: return
+        try {
+            drain(buf)
+        } finally {
+            this.buf = null
+            pool.release(buf)
+            channel.close()
+        }
+    }
+
+    private fun buffer(): ByteBuffer = buf ?: throw IOException("Stream closed.")
+
+    private fun drain(buf: ByteBuffer) {
+        buf.flip()
+        while (buf.hasRemaining()) channel.write(buf)
+        buf.clear()
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.pfmiles.icapserver.impl.module
+
+import com.github.pfmiles.icapserver.impl.Metrics
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Bounds how long modules take to answer: a future not completed in time is cancelled, and the one returned in its place fails
+ * with [TimeoutException].
+ *
+ * Kept on a timer thread of its own rather than `CompletableFuture.orTimeout`, which is not available on java 8.
+ *
+ * @author pf-miles
+ */
+internal object ModuleDeadline {
+
+    /**
+     * counter of the module answers which missed their deadline
+     */
+    const val TIMEOUTS = "module.timeouts"
+
+    private val timer: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "icap-server-module-deadline").apply { isDaemon = true }
+    }
+
+    /**
+     * @param future the answer of a module
+     * @param millis how long the answer could take from now
+     * @return the answer, or a failure when it does not come within the deadline
+     */
+    @JvmStatic
+    fun <T> within(future: CompletableFuture<T>, millis: Long): CompletableFuture<T> {
+        if (future.isDone) return future
+        val bounded = CompletableFuture<T>()
+        val timedOut = AtomicBoolean()
+        // the module is cancelled first, so it's told to give up by the time the timeout is seen
+        val alarm = timer.schedule({
+            if (!future.isDone) {
+                timedOut.set(true)
+                Metrics.inc(TIMEOUTS)
+                future.cancel(true)
+            }
+        }, millis, TimeUnit.MILLISECONDS)
+        future.whenComplete { value, failure ->
+            alarm.cancel(false)
+            when {
+                failure == null -> bounded.complete(value)
+                failure is CancellationException && timedOut.get() ->
+                    bounded.completeExceptionally(TimeoutException("Module did not answer within ${millis}ms."))
+                else -> bounded.completeExceptionally(failure)
+            }
+        }
+        return bounded
+    }
+}
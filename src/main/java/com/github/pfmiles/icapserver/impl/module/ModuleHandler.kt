@@ -0,0 +1,39 @@
+package com.github.pfmiles.icapserver.impl.module
+
+import com.github.pfmiles.icapserver.impl.protocol.IcapRequest
+import com.github.pfmiles.icapserver.impl.protocol.IcapResponse
+import java.util.concurrent.CompletableFuture
+
+/**
+ * The module SPI, implemented by the classes annotated with [com.github.pfmiles.icapserver.Module] to serve their endpoints.
+ *
+ * REQMOD/RESPMOD requests of the endpoint are dispatched to [handle] once their encapsulated messages are received, the response
+ * is written out by the server when the returned future completes, adding the 'Date', 'Server', 'ISTag' and 'Encapsulated' headers.
+ * Modules waiting on other systems, e.g. external scanners, should complete the future from their callbacks instead of blocking,
+ * so no worker thread is held meanwhile.
+ *
+ * The configured module timeout bounds the time from the dispatch until the future completes; a response body is iterated
+ * afterwards, as it's written out, bounded by the flow control of the client rather than the timeout. A future not completed in
+ * time is cancelled, and the request is answered with '500 Server Error' closing the connection, as are the failed ones. The late
+ * answer is dropped: completing the cancelled future has no effect, its response body is never iterated, and a module still
+ * pulling the request body sees the reads fail once the connection is closed.
+ *
+ * Bodies are streamed both ways: the request body is read from the connection only as the module iterates it, and the response
+ * body is written to the client as the server iterates it, so a module inspecting or rewriting the data incrementally, e.g. by
+ * answering with chunks mapped from the request ones, never holds the whole body. Reading beyond a preview asks the client for
+ * the remaining body; answering without a response body and without having read beyond the preview answers on the preview.
+ * What's left of the request body once the response is written is dropped.
+ *
+ * Implementations must have a public no-arg constructor, and be thread-safe, one instance serves all the requests.
+ *
+ * @author pf-miles
+ */
+interface ModuleHandler {
+
+    /**
+     * @param request the request, with the body chunks followed by the final chunk, if any, iterated by one thread at a time
+     * @return the future response to be written out, '204 No Content' ones must carry no encapsulated message
+     */
+    @Throws(Exception::class)
+    fun handle(request: IcapRequest): CompletableFuture<IcapResponse>
+}
@@ -0,0 +1,34 @@
+package com.github.pfmiles.icapserver.impl.module
+
+import java.io.IOException
+import java.nio.charset.StandardCharsets
+
+/**
+ * The module index: the names of the [com.github.pfmiles.icapserver.Module] classes, listed at build time by
+ * [ModuleIndexProcessor] in a resource of each jar, one binary class name per line.
+ *
+ * @author pf-miles
+ */
+internal object ModuleIndex {
+
+    /**
+     * where the index of a jar resides
+     */
+    const val RESOURCE = "META-INF/icap-server/modules.idx"
+
+    /**
+     * the module classes listed in all the indexes visible to the class loader
+     *
+     * @return null if there is no index at all, the modules are then to be found by scanning the classpath
+     */
+    @Throws(IOException::class)
+    fun read(loader: ClassLoader): List<String>? {
+        val indexes = loader.getResources(RESOURCE).toList()
+        if (indexes.isEmpty()) return null
+        return indexes.flatMap { url ->
+            url.openStream().bufferedReader(StandardCharsets.UTF_8).use { reader ->
+                reader.readLines().map { it.trim() }.filter { it.isNotEmpty() && !it.startsWith("#") }
+            }
+        }.distinct()
+    }
+}
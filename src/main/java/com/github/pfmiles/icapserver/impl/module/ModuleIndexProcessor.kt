@@ -0,0 +1,58 @@
+package com.github.pfmiles.icapserver.impl.module
+
+import com.github.pfmiles.icapserver.Module
+import java.io.IOException
+import java.util.TreeSet
+import javax.annotation.processing.AbstractProcessor
+import javax.annotation.processing.RoundEnvironment
+import javax.annotation.processing.SupportedAnnotationTypes
+import javax.lang.model.SourceVersion
+import javax.lang.model.element.TypeElement
+import javax.tools.Diagnostic
+import javax.tools.StandardLocation
+
+/**
+ * Writes the [ModuleIndex] of the compiled [Module] classes, so they are found without scanning the classpath at startup.
+ *
+ * Not registered as a service, so it never runs unasked in the builds depending on this jar: a module project opts in with
+ * `-processor com.github.pfmiles.icapserver.impl.module.ModuleIndexProcessor` for javac, or by putting it on the kapt processor path for
+ * kotlin modules. Entries of a previous index in the output are kept as long as their classes still exist, for incremental compilations.
+ *
+ * @author pf-miles
+ */
+@SupportedAnnotationTypes("com.github.pfmiles.icapserver.Module")
+class ModuleIndexProcessor : AbstractProcessor() {
+
+    private val modules = TreeSet<String>()
+
+    override fun getSupportedSourceVersion(): SourceVersion = SourceVersion.latestSupported()
+
+    override fun process(annotations: Set<TypeElement>, roundEnv: RoundEnvironment): Boolean {
+        for (element in roundEnv.getElementsAnnotatedWith(Module::class.java)) {
+            if (element is TypeElement) modules += processingEnv.elementUtils.getBinaryName(element).toString()
+        }
+        if (roundEnv.processingOver() && modules.isNotEmpty()) {
+            try {
+                writeIndex()
+            } catch (e: IOException) {
+                processingEnv.messager.printMessage(Diagnostic.Kind.ERROR, "Writing module index failed: $e")
+            }
+        }
+        return false
+    }
+
+    private fun writeIndex() {
+        val filer = processingEnv.filer
+        val previous = runCatching {
+            filer.getResource(StandardLocation.CLASS_OUTPUT, "", ModuleIndex.RESOURCE).getCharContent(true).lines()
+        }.getOrDefault(emptyList())
+        previous.map { it.trim() }.filter { it.isNotEmpty() && !it.startsWith("#") && exists(it) }.forEach { modules += it }
+
+        filer.createResource(StandardLocation.CLASS_OUTPUT, "", ModuleIndex.RESOURCE).openWriter().use { w ->
+            modules.forEach { w.write(it); w.write("\n") }
+        }
+    }
+
+    // whether the class of a binary name is still compiled in, nested classes are looked up by their canonical names
+    private fun exists(binaryName: String): Boolean = processingEnv.elementUtils.getTypeElement(binaryName.replace('$', '.')) != null
+}
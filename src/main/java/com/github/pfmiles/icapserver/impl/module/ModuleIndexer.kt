@@ -0,0 +1,36 @@
+package com.github.pfmiles.icapserver.impl.module
+
+import java.io.File
+import javax.tools.ToolProvider
+import kotlin.system.exitProcess
+
+/**
+ * Runs [ModuleIndexProcessor] over the compiled classes of this project at build time, so that the kotlin modules, which javac
+ * never sees as sources, are indexed as well.
+ *
+ * Usage: `ModuleIndexer <classes dir>`, with the compile classpath as its own classpath.
+ *
+ * @author pf-miles
+ */
+internal object ModuleIndexer {
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val classesDir = File(args[0])
+        val compiler = ToolProvider.getSystemJavaCompiler()
+        if (compiler == null) {
+            System.err.println("[ICAP-SERVER] No java compiler available, module index not written, modules will be found by classpath scanning.")
+            return
+        }
+        // nested classes are processed along with their top-level ones
+        val classNames = classesDir.walk()
+            .filter { it.isFile && it.name.endsWith(".class") && '$' !in it.name && '-' !in it.name }
+            .map { it.relativeTo(classesDir).path.removeSuffix(".class").replace(File.separatorChar, '.') }
+            .sorted().toList()
+        val options = listOf(
+            "-proc:only", "-implicit:none", "-processor", ModuleIndexProcessor::class.java.name,
+            "-d", classesDir.path, "-classpath", System.getProperty("java.class.path")
+        )
+        if (!compiler.getTask(null, null, null, options, classNames, null).call()) exitProcess(1)
+    }
+}
@@ -6,9 +6,29 @@ package com.github.pfmiles.icapserver.impl.module
  * @author pf-miles
  *
  * @property endpoint endpoint of this module
+ * @property messagePreview the preview size advertised in OPTIONS responses, 0 if previews are not wanted
+ * @property methods the icap methods served besides OPTIONS, in the declared order
+ * @property workers the worker threads dedicated to the endpoint, 0 if served by the shared pool
+ * @property moduleClass the annotated class
  */
 internal data class ModuleMeta(
     /**
      * Endpoint of this module
      */
-    val endpoint: String)
+    val endpoint: String,
+    /**
+     * Bytes of the body the module wants to see before asking for the rest of it
+     */
+    val messagePreview: Int = 0,
+    /**
+     * The methods served on the endpoint
+     */
+    val methods: Set<String> = setOf("REQMOD", "RESPMOD"),
+    /**
+     * The worker threads dedicated to the endpoint
+     */
+    val workers: Int = 0,
+    /**
+     * The class declaring this module
+     */
+    val moduleClass: Class<*>? = null)
@@ -1,6 +1,9 @@
 package com.github.pfmiles.icapserver.impl.module
 
 import com.github.pfmiles.icapserver.Module
+import com.github.pfmiles.icapserver.impl.Constants
+import com.github.pfmiles.icapserver.impl.Metrics
+import com.github.pfmiles.icapserver.impl.Utils
 import org.reflections.ReflectionUtils
 import org.reflections.Reflections
 import org.reflections.scanners.Scanners
@@ -10,7 +13,11 @@ import org.slf4j.LoggerFactory
 
 
 /**
- * Scan icap-server modules in the whole classpath, under a specified base package.
+ * Scan icap-server modules in the whole classpath, under the standard modules package and the ones configured by
+ * [Constants.MODULE_PACKAGES_ENV_VAR].
+ *
+ * Modules are read from the [ModuleIndex] files written at build time, a package is only scanned on the classpath when no module of it
+ * is indexed, e.g. when it's compiled without the index processor.
  *
  * TODO may be the module mechanism should compatible with the e-cap standard: https://www.e-cap.org/
  *
@@ -20,6 +27,24 @@ internal object ModuleScanner {
 
     private val logger = LoggerFactory.getLogger(ModuleScanner::class.java)
 
+    /**
+     * the time taken by the last module scan, reported as a gauge
+     */
+    const val SCAN_MILLIS = "startup.module_scan_millis"
+
+    /**
+     * the packages modules are looked for under: the standard modules package, followed by the comma separated ones configured
+     */
+    fun configuredPackages(): List<String> {
+        val extra = Utils.optsInOrDefault(Constants.MODULE_PACKAGES_ENV_VAR, Constants.MODULE_PACKAGES_PROP_VAR, Constants.DFT_MODULE_PACKAGES)
+        return (listOf(Constants.STD_MODULE_PKG) + extra.split(',').map { it.trim() }.filter { it.isNotEmpty() }).distinct()
+    }
+
+    /**
+     * scan far all available icap-server modules under the standard modules package and the configured ones
+     */
+    fun scanForModules(): Set<ModuleMeta> = scanForModules(configuredPackages())
+
     /**
      * scan far all available icap-server modules under specified base package
      *
@@ -27,27 +52,77 @@ internal object ModuleScanner {
      *
      * @return scanned modules under the specified package
      */
-    fun scanForModules(basePackage: String): Set<ModuleMeta> {
+    fun scanForModules(basePackage: String): Set<ModuleMeta> = scanForModules(listOf(basePackage))
+
+    /**
+     * scan far all available icap-server modules under specified base packages
+     *
+     * @param basePackages the base packages where modules resides
+     *
+     * @return scanned modules under the specified packages
+     */
+    fun scanForModules(basePackages: List<String>): Set<ModuleMeta> {
+        val start = System.nanoTime()
+        val indexed = runCatching { ModuleIndex.read(ModuleScanner::class.java.classLoader) }
+            .onFailure { logger.error("Reading module index failed, scanning the classpath instead.", it) }.getOrNull() ?: emptyList()
+        // list of <annotation to moduleClass>
+        val clses: MutableList<Pair<Module, Class<Any>>> = mutableListOf()
+        val scanned: MutableList<String> = mutableListOf()
+        basePackages.forEach { pkg ->
+            val names = indexed.filter { it.startsWith("$pkg.") }
+            if (names.isNotEmpty()) {
+                clses += loadIndexedClses(names)
+            } else {
+                clses += scanForModuleClses(pkg)
+                scanned += pkg
+            }
+        }
+        val modules = parseMetas(clses)
+        val millis = (System.nanoTime() - start) / 1_000_000
+        Metrics.gauge(SCAN_MILLIS) { millis }
+        logger.info("[ICAP-SERVER] ${modules.size} modules found under ${basePackages.joinToString { "'$it'" }} in ${millis}ms, " +
+                if (scanned.isEmpty()) "all from the module index" else "scanning the classpath for ${scanned.joinToString { "'$it'" }}")
+        return modules
+    }
+
+    /**
+     * scan the classpath for modules under specified base package, ignoring the module index
+     */
+    fun scanClasspathForModules(basePackage: String): Set<ModuleMeta> = parseMetas(scanForModuleClses(basePackage))
+
+    private fun parseMetas(clses: List<Pair<Module, Class<Any>>>): Set<ModuleMeta> {
         val modules: MutableSet<ModuleMeta> = mutableSetOf()
-        // list of <endpoint to moduleClass>
-        val clses: List<Pair<String, Class<Any>>> = scanForModuleClses(basePackage)
         clses.forEach { pair ->
             runCatching { modules.add(parseMeta(pair)) }.onFailure { logger.error("Module class: ${pair.second.name} parsing failed, this module will be omitted.", it) }
         }
         return modules
     }
 
-    // list of <endpoint to moduleClass>
-    private fun scanForModuleClses(pkg: String): List<Pair<String, Class<in Any>>> {
+    // list of <annotation to moduleClass> of the indexed classes
+    private fun loadIndexedClses(classNames: List<String>): List<Pair<Module, Class<Any>>> {
+        val ret: MutableList<Pair<Module, Class<Any>>> = mutableListOf()
+        classNames.forEach { name ->
+            runCatching {
+                @Suppress("UNCHECKED_CAST")
+                val cls = Class.forName(name, false, ModuleScanner::class.java.classLoader) as Class<Any>
+                val anno = requireNotNull(cls.getAnnotation(Module::class.java)) { "not annotated with @Module" }
+                ret.add(anno to cls)
+            }.onFailure { logger.error("Indexed module class: $name loading failed, this module will be omitted.", it) }
+        }
+        return ret
+    }
+
+    // list of <annotation to moduleClass>
+    private fun scanForModuleClses(pkg: String): List<Pair<Module, Class<in Any>>> {
         val reflections = Reflections(ConfigurationBuilder().forPackage(pkg).filterInputsBy(FilterBuilder().includePackage(pkg)).setScanners(Scanners.TypesAnnotated))
         val moduleClses = reflections.get(Scanners.TypesAnnotated.of(Module::class.java).asClass<Any>())
-        val ret: MutableList<Pair<String, Class<Any>>> = mutableListOf()
+        val ret: MutableList<Pair<Module, Class<Any>>> = mutableListOf()
         if (!moduleClses.isNullOrEmpty()) {
             moduleClses.forEach { cls ->
                 runCatching {
                     val annos = ReflectionUtils.get(ReflectionUtils.Annotations.get(cls), { it.annotationClass == Module::class })
                     annos.forEach {
-                        ret.add((it as Module).value to (cls as Class<Any>))
+                        ret.add((it as Module) to (cls as Class<Any>))
                     }
                 }.onFailure { logger.error("Module class: ${cls.name} scanning failed, this module will be omitted.", it) }
             }
@@ -55,8 +130,14 @@ internal object ModuleScanner {
         return ret
     }
 
-    private fun parseMeta(pair: Pair<String, Class<Any>>): ModuleMeta {
-        return ModuleMeta(endpoint = pair.first)
+    private fun parseMeta(pair: Pair<Module, Class<Any>>): ModuleMeta {
+        val anno = pair.first
+        require(anno.messagePreview >= 0) { "Negative message preview size: ${anno.messagePreview}." }
+        require(anno.workers >= 0) { "Negative worker count: ${anno.workers}." }
+        val methods = anno.methods.map { it.trim().uppercase() }.filter { it != "OPTIONS" }
+        require(methods.all { it == "REQMOD" || it == "RESPMOD" }) { "Unsupported methods: ${anno.methods.joinToString()}." }
+        return ModuleMeta(endpoint = anno.value, messagePreview = anno.messagePreview, methods = LinkedHashSet(methods), workers = anno.workers,
+            moduleClass = pair.second)
         // TODO other meta props
     }
 
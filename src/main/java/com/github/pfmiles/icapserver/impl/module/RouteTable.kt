@@ -0,0 +1,95 @@
+package com.github.pfmiles.icapserver.impl.module
+
+import org.slf4j.LoggerFactory
+import java.util.Collections
+
+/**
+ * A served endpoint.
+ *
+ * @author pf-miles
+ *
+ * @property service the endpoint without the leading '/', in lower case, e.g. 'echo'
+ * @property methods the icap methods served besides OPTIONS
+ * @property messagePreview the preview size advertised in OPTIONS responses, 0 if previews are not wanted
+ * @property handler the module serving the endpoint, null if it's built into the server
+ * @property workers the worker threads dedicated to the endpoint, 0 if served by the shared pool
+ */
+internal class Route(val service: String, val methods: Set<String>, val messagePreview: Int, val handler: ModuleHandler?, val workers: Int = 0) {
+
+    fun allows(method: String): Boolean = method in methods
+}
+
+/**
+ * The endpoints served, built once from the scanned modules and immutable afterwards.
+ *
+ * @author pf-miles
+ */
+internal class RouteTable private constructor(private val routes: Map<String, Route>) {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(RouteTable::class.java)
+
+        /**
+         * @param modules the scanned modules
+         * @param builtins the endpoints served by the server itself, modules declaring them need not implement [ModuleHandler]
+         */
+        @JvmStatic
+        fun build(modules: Collection<ModuleMeta>, builtins: Set<String>): RouteTable {
+            val routes = LinkedHashMap<String, Route>()
+            // in a stable order, so that conflicts are always resolved the same way
+            modules.sortedBy { it.moduleClass?.name.orEmpty() }.forEach { meta ->
+                val moduleName = meta.moduleClass?.name ?: meta.endpoint
+                val service = meta.endpoint.removePrefix("/").lowercase()
+                if (service.isEmpty()) {
+                    logger.error("Module: $moduleName declares no endpoint, omitted.")
+                    return@forEach
+                }
+                val handler = runCatching { newHandler(meta) }.getOrElse {
+                    logger.error("Module: $moduleName instantiation failed, omitted.", it)
+                    return@forEach
+                }
+                if (handler == null && service !in builtins) {
+                    logger.error("Module: $moduleName does not implement ${ModuleHandler::class.java.simpleName}, omitted.")
+                    return@forEach
+                }
+                val existing = routes[service]
+                routes[service] = when {
+                    existing == null -> Route(service, meta.methods, meta.messagePreview, handler, meta.workers)
+                    // e.g. the scanners of different platforms, all served by the built-in endpoint
+                    existing.handler == null && handler == null ->
+                        Route(service, existing.methods + meta.methods, maxOf(existing.messagePreview, meta.messagePreview), null,
+                            maxOf(existing.workers, meta.workers))
+                    else -> {
+                        logger.error("Module: $moduleName conflicts with another module on endpoint: /$service, omitted.")
+                        existing
+                    }
+                }
+            }
+            logger.info("[ICAP-SERVER] Serving endpoints: ${routes.keys.joinToString { "/$it" }}")
+            return RouteTable(Collections.unmodifiableMap(routes))
+        }
+
+        private fun newHandler(meta: ModuleMeta): ModuleHandler? {
+            val cls = meta.moduleClass ?: return null
+            if (!ModuleHandler::class.java.isAssignableFrom(cls)) return null
+            return cls.getDeclaredConstructor().newInstance() as ModuleHandler
+        }
+    }
+
+    /**
+     * all the routes, in a stable order
+     */
+    val all: Collection<Route>
+        get() = routes.values
+
+    /**
+     * @param servicePath the service path of a request uri, e.g. 'echo?mode=1'
+     * @return the route of the endpoint, or null if not served
+     */
+    fun route(servicePath: String): Route? {
+        val query = servicePath.indexOf('?')
+        val service = if (query < 0) servicePath else servicePath.substring(0, query)
+        // lower-cased only when not matched as it is
+        return routes[service] ?: routes[service.lowercase()]
+    }
+}
@@ -8,14 +8,14 @@ import java.nio.charset.StandardCharsets
  *
  * @author pf-miles
  */
-internal open class Chunk(val content: ByteArray) {
+open class Chunk(val content: ByteArray) {
 
     companion object {
         /**
          * The last chunk of a chunked-transfer session.
          */
         val FINAL_CHUNK = object : Chunk(ByteArray(0)) {
-            override fun toByteArray() = "0$CRLF$CRLF".toByteArray(StandardCharsets.UTF_8)
+            override fun toByteArray() = ChunkEncoder.FINAL_CHUNK.copyOf()
         }
 
         /**
@@ -23,10 +23,13 @@ internal open class Chunk(val content: ByteArray) {
          * Defined in rfc3507: https://datatracker.ietf.org/doc/html/rfc3507#section-4.5
          */
         val IEOF_CHUNK = object : Chunk(ByteArray(0)) {
-            override fun toByteArray() = "0; ieof$CRLF$CRLF".toByteArray(StandardCharsets.UTF_8)
+            override fun toByteArray() = ChunkEncoder.IEOF_CHUNK.copyOf()
         }
     }
 
+    /**
+     * the chunk in the chunked-transfer format as a new array, written to connections by [ChunkEncoder] instead
+     */
     open fun toByteArray() = "${Integer.toHexString(content.size)}${CRLF}".toByteArray(StandardCharsets.UTF_8) + content + CRLF.toByteArray(StandardCharsets.UTF_8)
 
     fun size() = this.content.size
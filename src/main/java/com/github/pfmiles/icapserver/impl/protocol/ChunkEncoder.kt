@@ -0,0 +1,86 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Writes chunks in the chunked-transfer format straight to an output: the size line, the payload as it is and the trailing CRLF,
+ * instead of concatenating them into a new array like [Chunk.toByteArray] does, so relaying a body copies its bytes only into
+ * the buffer of the connection.
+ *
+ * The size line is encoded into a scratch array owned by the caller, e.g. one per [ChunkedOutputStream], and written at once, a
+ * buffered output, e.g. a [ConnectionOutputStream], then gathers it with the payload into one write to the connection.
+ *
+ * @author pf-miles
+ */
+internal object ChunkEncoder {
+
+    /**
+     * the last chunk of a chunked body
+     */
+    @JvmField
+    val FINAL_CHUNK: ByteArray = "0\r\n\r\n".toByteArray(Charsets.US_ASCII)
+
+    /**
+     * the last chunk of a preview which is the whole body
+     */
+    @JvmField
+    val IEOF_CHUNK: ByteArray = "0; ieof\r\n\r\n".toByteArray(Charsets.US_ASCII)
+
+    /**
+     * the chunk size the coalescing of small writes starts from and never goes below, see [ChunkedOutputStream]
+     */
+    const val MIN_CHUNK_SIZE = 4096
+
+    /**
+     * the chunk size the coalescing of small writes grows up to
+     */
+    const val MAX_CHUNK_SIZE = 65536
+
+    /**
+     * the size of the scratch arrays the size lines are encoded into: at most 8 hex digits and the CRLF
+     */
+    const val SIZE_LINE_CAPACITY = 10
+
+    private const val CR = '\r'.code.toByte()
+    private const val LF = '\n'.code.toByte()
+    private val CRLF = "\r\n".toByteArray(Charsets.US_ASCII)
+    private val DIGITS = "0123456789abcdef".toByteArray(Charsets.US_ASCII)
+
+    /**
+     * write a chunk, an empty one is written as the last chunk
+     *
+     * @param sizeLine scratch array of at least [SIZE_LINE_CAPACITY] bytes the size line is encoded into
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun write(out: OutputStream, chunk: Chunk, sizeLine: ByteArray) {
+        when {
+            chunk === Chunk.IEOF_CHUNK -> out.write(IEOF_CHUNK)
+            chunk.size() == 0 -> out.write(FINAL_CHUNK)
+            else -> writeChunk(out, chunk.content, 0, chunk.size(), sizeLine)
+        }
+    }
+
+    /**
+     * write the bytes as one chunk, nothing is written if there are none, since an empty chunk is the last one
+     *
+     * @param sizeLine scratch array of at least [SIZE_LINE_CAPACITY] bytes the size line is encoded into
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun writeChunk(out: OutputStream, b: ByteArray, off: Int, len: Int, sizeLine: ByteArray) {
+        if (len == 0) return
+        var shift = (31 - Integer.numberOfLeadingZeros(len)) / 4 * 4
+        var n = 0
+        while (shift >= 0) {
+            sizeLine[n++] = DIGITS[(len ushr shift) and 0xF]
+            shift -= 4
+        }
+        sizeLine[n++] = CR
+        sizeLine[n++] = LF
+        out.write(sizeLine, 0, n)
+        out.write(b, off, len)
+        out.write(CRLF)
+    }
+}
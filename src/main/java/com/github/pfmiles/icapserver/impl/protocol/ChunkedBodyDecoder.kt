@@ -0,0 +1,191 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import java.io.EOFException
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Decoder of the chunked bodies of icap requests: chunk-size lines with chunk-extensions(e.g. the 'ieof' of a preview), chunk data
+ * and trailers.
+ *
+ * The framing bytes are parsed in place from the buffer of the [IcapInputStream], and the chunk data is handed to the sink as
+ * slices of that buffer, so decoding a body allocates nothing itself.
+ *
+ * Not thread-safe, reused by the requests of one connection.
+ *
+ * @author pf-miles
+ */
+internal class ChunkedBodyDecoder(private val ins: IcapInputStream) {
+
+    private enum class State { SIZE, SIZE_WS, EXTENSION_NAME, EXTENSION_NAME_END, EXTENSION_VALUE }
+
+    /**
+     * whether the last chunk-size line read carries the 'ieof' extension, i.e. the preview is the whole body
+     */
+    var ieof = false
+        private set
+
+    // data bytes left of the chunk being read by [readPiece]
+    private var pieceRemaining = 0L
+
+    /**
+     * read a chunked body till its last chunk and trailers, writing the chunk data to the sink
+     *
+     * @param sink where the chunk data goes, receives the data as slices of the read buffer, and is flushed whenever reading on
+     * would block, so a sink relaying the body could coalesce the slices meanwhile
+     * @return whether the body ends with an 'ieof' last chunk, meaning the preview is the whole body
+     * @throws IcapBadRequestException if the chunked body is malformed
+     * @throws EOFException if the connection ends in the middle of the body
+     */
+    @Throws(IcapBadRequestException::class, IOException::class)
+    fun decode(sink: OutputStream): Boolean {
+        while (true) {
+            if (ins.isIdle) sink.flush()
+            val size = readChunkSize()
+            if (size == 0L) {
+                skipTrailers()
+                return ieof
+            }
+            var remaining = size
+            while (remaining > 0) {
+                if (ins.isIdle) sink.flush()
+                val n = ins.readSlice(minOf(remaining, Int.MAX_VALUE.toLong()).toInt()) { b, off, len -> sink.write(b, off, len) }
+                if (n == -1) throw EOFException("Connection closed in the middle of a chunk.")
+                remaining -= n
+            }
+            if (next() != CR || next() != LF) throw IcapBadRequestException(400, "Invalid chunk data termination")
+        }
+    }
+
+    /**
+     * read the next piece of chunk data, so a body is pulled piece by piece instead of as a whole
+     *
+     * @param maxSize max size of the piece, larger chunks are split
+     * @return the data, or null once the last chunk and trailers are read, [ieof] then tells how the body ended
+     * @throws IcapBadRequestException if the chunked body is malformed
+     * @throws EOFException if the connection ends in the middle of the body
+     */
+    @Throws(IcapBadRequestException::class, IOException::class)
+    fun readPiece(maxSize: Int): ByteArray? {
+        if (pieceRemaining == 0L) {
+            val size = readChunkSize()
+            if (size == 0L) {
+                skipTrailers()
+                return null
+            }
+            pieceRemaining = size
+        }
+        val piece = ByteArray(minOf(pieceRemaining, maxSize.toLong()).toInt())
+        var n = 0
+        while (n < piece.size) {
+            val read = ins.read(piece, n, piece.size - n)
+            if (read == -1) throw EOFException("Connection closed in the middle of a chunk.")
+            n += read
+        }
+        pieceRemaining -= n
+        if (pieceRemaining == 0L && (next() != CR || next() != LF)) throw IcapBadRequestException(400, "Invalid chunk data termination")
+        return piece
+    }
+
+    // parse a chunk-size line: chunk-size [ ";" ext-name [ "=" ext-val ] ]* CRLF
+    private fun readChunkSize(): Long {
+        var state = State.SIZE
+        var size = 0L
+        var digits = 0
+        // matched length of 'ieof' in the current extension name, -1 if not matching
+        var matched = 0
+        var lineLength = 0
+        ieof = false
+        while (true) {
+            val c = next()
+            if (++lineLength > MAX_LINE_LENGTH) throw IcapBadRequestException(400, "Chunk-size line too long")
+            when (state) {
+                State.SIZE -> {
+                    val d = hexValue(c)
+                    if (d >= 0) {
+                        if (++digits > MAX_SIZE_DIGITS) throw IcapBadRequestException(400, "Chunk size too large")
+                        size = size shl 4 or d.toLong()
+                        continue
+                    }
+                    if (digits == 0) throw IcapBadRequestException(400, "Invalid chunk size")
+                    state = State.SIZE_WS
+                }
+                State.EXTENSION_NAME -> when {
+                    isWs(c) && matched == 0 -> continue
+                    matched >= 0 && matched < IEOF.size && lower(c) == IEOF[matched] -> {
+                        matched++
+                        continue
+                    }
+                    c == SEMICOLON || c == EQUALS || c == CR || isWs(c) -> {
+                        if (matched == IEOF.size) ieof = true
+                    }
+                    else -> {
+                        matched = -1
+                        continue
+                    }
+                }
+                State.EXTENSION_VALUE -> if (c != SEMICOLON && c != CR) continue
+                else -> {}
+            }
+            // separators, shared by the states
+            when {
+                c == SEMICOLON -> {
+                    state = State.EXTENSION_NAME
+                    matched = 0
+                }
+                c == EQUALS && (state == State.EXTENSION_NAME || state == State.EXTENSION_NAME_END) -> state = State.EXTENSION_VALUE
+                c == CR -> {
+                    if (next() != LF) throw IcapBadRequestException(400, "Invalid chunk-size line termination")
+                    return size
+                }
+                isWs(c) -> if (state == State.EXTENSION_NAME) state = State.EXTENSION_NAME_END
+                else -> throw IcapBadRequestException(400, "Invalid chunk-size line")
+            }
+        }
+    }
+
+    // skip the trailer lines after the last chunk, till the terminating empty line
+    private fun skipTrailers() {
+        var lineLength = 0
+        while (true) {
+            val c = next()
+            if (c == CR) {
+                if (next() != LF) throw IcapBadRequestException(400, "Invalid trailer line termination")
+                if (lineLength == 0) return
+                lineLength = 0
+            } else if (++lineLength > MAX_LINE_LENGTH) {
+                throw IcapBadRequestException(400, "Trailer line too long")
+            }
+        }
+    }
+
+    private fun next(): Int {
+        val c = ins.read()
+        if (c == -1) throw EOFException("Connection closed in the middle of a chunked body.")
+        return c
+    }
+
+    private companion object {
+        const val MAX_LINE_LENGTH = 8192
+
+        // 15 hex digits could not overflow a long
+        const val MAX_SIZE_DIGITS = 15
+
+        const val CR = '\r'.code
+        const val LF = '\n'.code
+        const val SEMICOLON = ';'.code
+        const val EQUALS = '='.code
+        val IEOF = intArrayOf('i'.code, 'e'.code, 'o'.code, 'f'.code)
+
+        fun isWs(c: Int) = c == ' '.code || c == '\t'.code
+
+        fun lower(c: Int) = if (c in 'A'.code..'Z'.code) c + 32 else c
+
+        fun hexValue(c: Int): Int = when (c) {
+            in '0'.code..'9'.code -> c - '0'.code
+            in 'a'.code..'f'.code -> c - 'a'.code + 10
+            in 'A'.code..'F'.code -> c - 'A'.code + 10
+            else -> -1
+        }
+    }
+}
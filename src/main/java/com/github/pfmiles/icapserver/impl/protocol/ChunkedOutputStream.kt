@@ -0,0 +1,127 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Writes what it's given to the underlying stream in the chunked-transfer format, so a body could be relayed as it arrives without
+ * being buffered as a whole.
+ *
+ * Small writes are coalesced into chunks of an adaptive size: starting at [ChunkEncoder.MIN_CHUNK_SIZE], doubled each time a chunk
+ * fills up, till [ChunkEncoder.MAX_CHUNK_SIZE], and lowered to what was gathered when the source goes idle. A chunk is written and
+ * flushed once it's full, or on [flush] or once [idle] tells the source has nothing more to give at once, to keep the relaying going;
+ * writes at least as large as the chunk size are written as chunks of their own, without being copied. The final chunk is written by
+ * [finish], not by [close].
+ *
+ * @author pf-miles
+ *
+ * @param idle checked after each write, whether the source has nothing more to give without blocking, e.g. no bytes buffered from
+ * the connection; never by default, for writers flushing on their own
+ */
+internal open class ChunkedOutputStream @JvmOverloads constructor(
+    private val out: OutputStream,
+    private val idle: () -> Boolean = { false }
+) : OutputStream() {
+
+    private val single = ByteArray(1)
+    private val sizeLine = ByteArray(ChunkEncoder.SIZE_LINE_CAPACITY)
+
+    private var chunkSize = ChunkEncoder.MIN_CHUNK_SIZE
+    private var buf: ByteArray? = null
+    private var buffered = 0
+    private var started = false
+
+    /**
+     * count of body bytes written
+     */
+    var size = 0L
+        private set
+
+    /**
+     * called once right before the first chunk is written, e.g. to write out the message headers
+     */
+    @Throws(IOException::class)
+    protected open fun beforeFirstChunk() {
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        single[0] = b.toByte()
+        write(single, 0, 1)
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        // an empty chunk is the final chunk
+        if (len == 0) return
+        size += len
+        if (buffered == 0 && len >= chunkSize) {
+            emit(b, off, len)
+            grow()
+            out.flush()
+            return
+        }
+        var from = off
+        var left = len
+        while (left > 0) {
+            val buf = buffer()
+            val n = minOf(left, chunkSize - buffered)
+            System.arraycopy(b, from, buf, buffered, n)
+            buffered += n
+            from += n
+            left -= n
+            if (buffered == chunkSize) {
+                emitBuffered()
+                grow()
+                out.flush()
+            }
+        }
+        // the source would block, what is gathered is sent meanwhile
+        if (buffered > 0 && idle()) flush()
+    }
+
+    /**
+     * write the gathered bytes, if any, and the final chunk
+     */
+    @Throws(IOException::class)
+    fun finish() {
+        emitBuffered()
+        out.write(ChunkEncoder.FINAL_CHUNK)
+    }
+
+    /**
+     * write the gathered bytes as a chunk, and flush, the chunk size is lowered to what was gathered
+     */
+    @Throws(IOException::class)
+    override fun flush() {
+        if (buffered > 0) {
+            chunkSize = maxOf(Integer.highestOneBit(buffered), ChunkEncoder.MIN_CHUNK_SIZE)
+            emitBuffered()
+        }
+        out.flush()
+    }
+
+    private fun buffer(): ByteArray {
+        val current = buf
+        if (current != null && current.size >= chunkSize) return current
+        return (current?.copyOf(chunkSize) ?: ByteArray(chunkSize)).also { buf = it }
+    }
+
+    private fun grow() {
+        chunkSize = minOf(chunkSize * 2, ChunkEncoder.MAX_CHUNK_SIZE)
+    }
+
+    private fun emitBuffered() {
+        if (buffered == 0) return
+        emit(buf!!, 0, buffered)
+        buffered = 0
+    }
+
+    private fun emit(b: ByteArray, off: Int, len: Int) {
+        if (!started) {
+            started = true
+            beforeFirstChunk()
+        }
+        ChunkEncoder.writeChunk(out, b, off, len, sizeLine)
+    }
+}
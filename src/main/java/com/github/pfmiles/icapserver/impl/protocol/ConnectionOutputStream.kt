@@ -0,0 +1,77 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Buffered output of an icap connection, written to the connection only when the buffer is full or at the explicit flush points
+ * of the handler, i.e. the end of a response, '100 Continue' and the relayed chunks.
+ *
+ * Unlike [java.io.BufferedOutputStream], data larger than what's left of the buffer first tops the buffer up, so a response head
+ * goes out in the same write as the beginning of its body, instead of as a small segment of its own.
+ *
+ * Not thread-safe, owned by the handler of the connection.
+ *
+ * @author pf-miles
+ *
+ * @property out the raw connection output
+ * @param bufferSize size in bytes of the buffer
+ */
+internal class ConnectionOutputStream(private val out: OutputStream, bufferSize: Int) : OutputStream() {
+
+    private val buf = ByteArray(bufferSize)
+    private var count = 0
+
+    @Throws(IOException::class)
+    override fun write(b: Int) {
+        if (count == buf.size) flushBuffer()
+        buf[count++] = b.toByte()
+    }
+
+    @Throws(IOException::class)
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        if (len <= buf.size - count) {
+            System.arraycopy(b, off, buf, count, len)
+            count += len
+            return
+        }
+        var from = off
+        var left = len
+        if (count > 0) {
+            // gather what's buffered with the beginning of the data into one full write
+            val n = buf.size - count
+            System.arraycopy(b, from, buf, count, n)
+            count = buf.size
+            flushBuffer()
+            from += n
+            left -= n
+        }
+        if (left >= buf.size) {
+            out.write(b, from, left)
+        } else {
+            System.arraycopy(b, from, buf, 0, left)
+            count = left
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        flushBuffer()
+        out.flush()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        try {
+            flushBuffer()
+        } finally {
+            out.close()
+        }
+    }
+
+    private fun flushBuffer() {
+        if (count == 0) return
+        out.write(buf, 0, count)
+        count = 0
+    }
+}
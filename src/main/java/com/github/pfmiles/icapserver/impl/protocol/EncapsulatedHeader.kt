@@ -10,6 +10,8 @@ package com.github.pfmiles.icapserver.impl.protocol
  * @property optBody the offset in icap message body of the OPTIONS response body, defined in: https://datatracker.ietf.org/doc/html/rfc3507#section-4.10.2
  * @property nullBody the offset in icap message body when there is no encapsulated message body at all, used to indicate previews header data's size
  *
+ * Absent entries are [ABSENT].
+ *
  * Some validation restrictions according to rfc3507:
  * 1) there can only be zero or one 'body' value in this header
  * 2) RESPMOD request can have both reqHdr & resHdr, but its corresponding icap response can only have resHdr
@@ -18,4 +20,136 @@ package com.github.pfmiles.icapserver.impl.protocol
  *
  * @author pf-miles
  */
-internal data class EncapsulatedHeader(val reqHdr: Int, val resHdr: Int, val reqBody: Int, val resBody: Int, val optBody: Int, val nullBody: Int)
+data class EncapsulatedHeader(val reqHdr: Int, val resHdr: Int, val reqBody: Int, val resBody: Int, val optBody: Int, val nullBody: Int) {
+
+    companion object {
+        /**
+         * the offset of an absent entry
+         */
+        const val ABSENT = -1
+
+        private val LABELS = arrayOf("req-hdr", "res-hdr", "req-body", "res-body", "opt-body", "null-body")
+
+        /**
+         * parse the value of an 'Encapsulated' header in a single pass, e.g. 'req-hdr=0, res-hdr=822, res-body=1655'
+         *
+         * The entries must be in the order of the message data: 'req-hdr' before 'res-hdr', and exactly one body entry, the last,
+         * with offsets never decreasing.
+         *
+         * @throws IcapBadRequestException(400) if the value is malformed or breaks the ordering rules
+         */
+        @JvmStatic
+        @Throws(IcapBadRequestException::class)
+        fun parse(value: String): EncapsulatedHeader {
+            val offsets = IntArray(LABELS.size) { ABSENT }
+            // 0: req-hdr, 1: res-hdr, 2: a body entry
+            var lastRank = -1
+            var lastOffset = 0
+            var i = 0
+            while (i < value.length) {
+                val eq = value.indexOf('=', i)
+                if (eq < 0) throw malformed(value)
+                val comma = value.indexOf(',', eq).let { if (it < 0) value.length else it }
+                val label = labelOf(value, i, eq)
+                if (label < 0) throw malformed(value)
+                val offset = offsetOf(value, eq + 1, comma)
+                if (offset < 0) throw malformed(value)
+
+                val rank = minOf(label, 2)
+                if (rank <= lastRank) throw IcapBadRequestException(400, "Invalid ICAP Encapsulated Header: entries out of order: '$value'")
+                if (offset < lastOffset) throw IcapBadRequestException(400, "Invalid ICAP Encapsulated Header: offsets decreasing: '$value'")
+                offsets[label] = offset
+                lastRank = rank
+                lastOffset = offset
+                i = comma + 1
+            }
+            if (lastRank != 2) throw IcapBadRequestException(400, "Invalid ICAP Encapsulated Header: no body entry: '$value'")
+            return EncapsulatedHeader(offsets[0], offsets[1], offsets[2], offsets[3], offsets[4], offsets[5])
+        }
+
+        private fun malformed(value: String) = IcapBadRequestException(400, "Invalid ICAP Encapsulated Header: '$value'")
+
+        // the index of the trimmed label in LABELS, ignoring case, -1 if unknown
+        private fun labelOf(value: String, from: Int, to: Int): Int {
+            var s = from
+            var e = to
+            while (s < e && value[s].isWhitespace()) s++
+            while (e > s && value[e - 1].isWhitespace()) e--
+            return LABELS.indexOfFirst { it.length == e - s && value.regionMatches(s, it, 0, it.length, ignoreCase = true) }
+        }
+
+        // the trimmed decimal offset, -1 if malformed
+        private fun offsetOf(value: String, from: Int, to: Int): Int {
+            var s = from
+            var e = to
+            while (s < e && value[s].isWhitespace()) s++
+            while (e > s && value[e - 1].isWhitespace()) e--
+            if (s == e || e - s > 9) return -1
+            var n = 0
+            for (k in s until e) {
+                val d = value[k] - '0'
+                if (d !in 0..9) return -1
+                n = n * 10 + d
+            }
+            return n
+        }
+    }
+
+    /**
+     * the label of the body entry, one of 'req-body', 'res-body', 'opt-body' and 'null-body'
+     */
+    val bodyLabel: String
+        get() = when {
+            reqBody != ABSENT -> "req-body"
+            resBody != ABSENT -> "res-body"
+            optBody != ABSENT -> "opt-body"
+            else -> "null-body"
+        }
+
+    /**
+     * the offset of the body entry, which is the total size of the encapsulated http headers
+     */
+    val bodyOffset: Int
+        get() = maxOf(reqBody, resBody, maxOf(optBody, nullBody))
+
+    /**
+     * whether a message body follows the encapsulated headers
+     */
+    fun hasBody(): Boolean = nullBody == ABSENT
+
+    /**
+     * size of the encapsulated http request headers, 0 if absent
+     */
+    val reqHdrSize: Int
+        get() = if (reqHdr == ABSENT) 0 else (if (resHdr == ABSENT) bodyOffset else resHdr) - reqHdr
+
+    /**
+     * size of the encapsulated http response headers, 0 if absent
+     */
+    val resHdrSize: Int
+        get() = if (resHdr == ABSENT) 0 else bodyOffset - resHdr
+
+    /**
+     * check the entries allowed in a request of the method: REQMOD requests encapsulate no http response, RESPMOD requests no http
+     * request body, and OPTIONS requests no http message at all
+     *
+     * @throws IcapBadRequestException(400) if an entry is not allowed
+     */
+    @Throws(IcapBadRequestException::class)
+    fun checkFor(method: String) {
+        val allowed = when (method.uppercase()) {
+            "REQMOD" -> resHdr == ABSENT && resBody == ABSENT && optBody == ABSENT
+            "RESPMOD" -> reqBody == ABSENT && optBody == ABSENT
+            "OPTIONS" -> reqHdr == ABSENT && resHdr == ABSENT && reqBody == ABSENT && resBody == ABSENT
+            else -> true
+        }
+        if (!allowed) throw IcapBadRequestException(400, "Invalid ICAP Encapsulated Header for a $method request: '$this'")
+    }
+
+    /**
+     * the header value, e.g. 'req-hdr=0, req-body=412'
+     */
+    override fun toString(): String =
+        intArrayOf(reqHdr, resHdr, reqBody, resBody, optBody, nullBody).withIndex().filter { it.value != ABSENT }
+            .joinToString(", ") { "${LABELS[it.index]}=${it.value}" }
+}
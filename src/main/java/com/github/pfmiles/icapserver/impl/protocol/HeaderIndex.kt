@@ -0,0 +1,210 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import java.util.AbstractMap.SimpleImmutableEntry
+
+/**
+ * The header lines of a message head, indexed by the offsets of their names and values in the bytes of the head: parsing allocates
+ * no string, names and values are materialized only when accessed, and looked up ignoring case by comparing the bytes.
+ *
+ * Values are trimmed, a value folded over several lines is joined by single spaces. Lines without a colon are ignored.
+ *
+ * Safe to look up from several threads once parsed, e.g. by a module on its own threads; the indexed bytes must not change afterwards.
+ *
+ * @author pf-miles
+ *
+ * @property size count of the headers
+ */
+class HeaderIndex private constructor(
+    private val buf: ByteArray,
+    private val from: Int,
+    private val to: Int,
+    // name start, name end, value start, value end of each header
+    private val offsets: IntArray,
+    val size: Int
+) {
+
+    companion object {
+        private const val CR = '\r'.code.toByte()
+        private const val LF = '\n'.code.toByte()
+        private const val SP = ' '.code.toByte()
+        private const val HT = '\t'.code.toByte()
+        private const val COLON = ':'.code.toByte()
+
+        /**
+         * no headers at all
+         */
+        @JvmField
+        val EMPTY = HeaderIndex(ByteArray(0), 0, 0, IntArray(0), 0)
+
+        /**
+         * index the header lines of a range, up to the empty line ending them or the end of the range
+         *
+         * @param buf the bytes holding the header lines, not copied
+         * @param from start offset of the first header line
+         * @param to end offset of the range
+         */
+        @JvmStatic
+        fun parse(buf: ByteArray, from: Int, to: Int): HeaderIndex {
+            var offsets = IntArray(64)
+            var n = 0
+            var lineStart = from
+            while (lineStart < to) {
+                val e = indexOfCr(buf, lineStart, to)
+                if (e == lineStart) break
+                if ((buf[lineStart] == SP || buf[lineStart] == HT) && n > 0) {
+                    // obsolete line folding, the previous value extends over this line
+                    val s = trimStart(buf, lineStart, e)
+                    if (s < e) {
+                        val last = (n - 1) * 4
+                        if (offsets[last + 2] == offsets[last + 3]) offsets[last + 2] = s
+                        offsets[last + 3] = trimEnd(buf, s, e)
+                    }
+                } else {
+                    val colon = indexOf(buf, COLON, lineStart, e)
+                    if (colon > lineStart) {
+                        if (n * 4 == offsets.size) offsets = offsets.copyOf(offsets.size * 2)
+                        val i = n * 4
+                        offsets[i] = trimStart(buf, lineStart, colon)
+                        offsets[i + 1] = trimEnd(buf, offsets[i], colon)
+                        offsets[i + 2] = trimStart(buf, colon + 1, e)
+                        offsets[i + 3] = trimEnd(buf, offsets[i + 2], e)
+                        n++
+                    }
+                }
+                lineStart = if (e + 1 < to && buf[e + 1] == LF) e + 2 else e + 1
+            }
+            return HeaderIndex(buf, from, minOf(lineStart, to), offsets, n)
+        }
+
+        private fun indexOf(buf: ByteArray, b: Byte, from: Int, to: Int): Int {
+            for (i in from until to) if (buf[i] == b) return i
+            return -1
+        }
+
+        private fun indexOfCr(buf: ByteArray, from: Int, to: Int): Int {
+            val i = indexOf(buf, CR, from, to)
+            return if (i < 0) to else i
+        }
+
+        private fun trimStart(buf: ByteArray, from: Int, to: Int): Int {
+            var s = from
+            while (s < to && (buf[s] == SP || buf[s] == HT)) s++
+            return s
+        }
+
+        private fun trimEnd(buf: ByteArray, from: Int, to: Int): Int {
+            var e = to
+            while (e > from && (buf[e - 1] == SP || buf[e - 1] == HT)) e--
+            return e
+        }
+
+        private fun lower(c: Int) = if (c in 'A'.code..'Z'.code) c + 32 else c
+    }
+
+    // materialized names and values, by header index * 2; racing threads at worst materialize a string twice, strings being immutable
+    // are safely seen through the array either way
+    @Volatile
+    private var strings: Array<String?>? = null
+
+    private val map: Map<String, String> by lazy(LazyThreadSafetyMode.PUBLICATION) { MapView() }
+
+    /**
+     * the name of the i-th header, as sent
+     */
+    fun name(i: Int): String = string(i * 2, offsets[i * 4], offsets[i * 4 + 1])
+
+    /**
+     * the value of the i-th header
+     */
+    fun value(i: Int): String = string(i * 2 + 1, offsets[i * 4 + 2], offsets[i * 4 + 3])
+
+    /**
+     * the index of the first header with the specified name from an index on, ignoring case, without allocating
+     *
+     * @return -1 if not found
+     */
+    @JvmOverloads
+    fun indexOf(name: String, from: Int = 0): Int {
+        for (i in from until size) {
+            val s = offsets[i * 4]
+            if (offsets[i * 4 + 1] - s != name.length) continue
+            var j = 0
+            while (j < name.length && lower(buf[s + j].toInt() and 0xFF) == lower(name[j].code)) j++
+            if (j == name.length) return i
+        }
+        return -1
+    }
+
+    /**
+     * the value of the first header with the specified name, ignoring case
+     */
+    operator fun get(name: String): String? {
+        val i = indexOf(name)
+        return if (i < 0) null else value(i)
+    }
+
+    /**
+     * whether a header with the specified name presents, ignoring case
+     */
+    fun contains(name: String): Boolean = indexOf(name) >= 0
+
+    /**
+     * the values of all the headers with the specified name, ignoring case, in the order of appearance
+     */
+    fun values(name: String): List<String> {
+        var i = indexOf(name)
+        if (i < 0) return emptyList()
+        val ret = ArrayList<String>(1)
+        while (i >= 0) {
+            ret.add(value(i))
+            i = indexOf(name, i + 1)
+        }
+        return ret
+    }
+
+    /**
+     * a read-only map view of the headers, keyed by names ignoring case, to the value of the first header of each name
+     */
+    fun asMap(): Map<String, String> = map
+
+    /**
+     * the header lines as sent, each terminated by its CRLF, excluding the empty line ending them
+     */
+    fun text(): String = String(buf, from, to - from, Charsets.ISO_8859_1)
+
+    override fun toString(): String = text()
+
+    private fun string(slot: Int, s: Int, e: Int): String {
+        val cache = strings ?: arrayOfNulls<String>(size * 2).also { strings = it }
+        return cache[slot] ?: materialize(s, e).also { cache[slot] = it }
+    }
+
+    // latin-1, with the line folds within the range replaced by single spaces
+    private fun materialize(s: Int, e: Int): String {
+        if (indexOf(buf, CR, s, e) < 0) return String(buf, s, e - s, Charsets.ISO_8859_1)
+        val sb = StringBuilder(e - s)
+        var i = s
+        while (i < e) {
+            val b = buf[i]
+            if (b == CR || b == LF) {
+                while (sb.isNotEmpty() && (sb[sb.length - 1] == ' ' || sb[sb.length - 1] == '\t')) sb.setLength(sb.length - 1)
+                while (i < e && (buf[i] == CR || buf[i] == LF || buf[i] == SP || buf[i] == HT)) i++
+                sb.append(' ')
+            } else {
+                sb.append((b.toInt() and 0xFF).toChar())
+                i++
+            }
+        }
+        return sb.toString()
+    }
+
+    private inner class MapView : AbstractMap<String, String>() {
+        override val entries: Set<Map.Entry<String, String>> by lazy(LazyThreadSafetyMode.PUBLICATION) {
+            (0 until this@HeaderIndex.size).filter { indexOf(name(it)) == it }.mapTo(LinkedHashSet()) { SimpleImmutableEntry(name(it), value(it)) }
+        }
+
+        override fun get(key: String): String? = this@HeaderIndex[key]
+
+        override fun containsKey(key: String): Boolean = this@HeaderIndex.contains(key)
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import java.time.Instant
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+import java.util.Locale
+
+/**
+ * The current time in the http-compatible format of the 'Date' headers, e.g. 'Sun, 5 Nov 2023 15:22:07 GMT', formatted once per
+ * second and shared by all the responses of that second.
+ *
+ * @author pf-miles
+ */
+internal object HttpDate {
+
+    private val format = DateTimeFormatter.ofPattern("EEE, d MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC)
+
+    private class Formatted(val second: Long, val str: String) {
+        val bytes: ByteArray = str.toByteArray(Charsets.US_ASCII)
+    }
+
+    @Volatile
+    private var cached = Formatted(Long.MIN_VALUE, "")
+
+    /**
+     * the current date string
+     */
+    fun current(): String = formatted().str
+
+    /**
+     * the current date string in ascii bytes, must not be modified
+     */
+    fun currentBytes(): ByteArray = formatted().bytes
+
+    private fun formatted(): Formatted {
+        val second = System.currentTimeMillis() / 1000
+        val c = cached
+        if (c.second == second) return c
+        // racing threads may format the same second more than once, which is harmless
+        return Formatted(second, format.format(Instant.ofEpochSecond(second))).also { cached = it }
+    }
+}
@@ -0,0 +1,133 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+/**
+ * The encapsulated http request or response headers of an icap request, parsed lazily: nothing is parsed until first accessed, then
+ * the start line is split and the header lines are indexed by [HeaderIndex] at once, so a header block is parsed at most once
+ * however many times it's looked up, by the server and the module handling the request alike.
+ *
+ * Safe to look up from several threads, e.g. by the module on its own threads: the block is parsed once under a lock, the [HeaderIndex]
+ * then shared is safe to look up concurrently.
+ *
+ * @author pf-miles
+ *
+ * @property bytes the header block, including the terminating CRLF * 2, not copied
+ */
+class HttpHeaders(private val bytes: ByteArray) {
+
+    companion object {
+        private const val CR = '\r'.code.toByte()
+        private const val LF = '\n'.code.toByte()
+        private const val SP = ' '.code.toByte()
+    }
+
+    // start line end, then the 2 offsets of the spaces splitting it
+    private class Parsed(val lineEnd: Int, val sp1: Int, val sp2: Int, val headers: HeaderIndex)
+
+    private val parsed: Parsed by lazy {
+        var lineEnd = 0
+        while (lineEnd < bytes.size && bytes[lineEnd] != CR && bytes[lineEnd] != LF) lineEnd++
+        var sp1 = 0
+        while (sp1 < lineEnd && bytes[sp1] != SP) sp1++
+        var sp2 = sp1 + 1
+        while (sp2 < lineEnd && bytes[sp2] != SP) sp2++
+        val next = if (lineEnd + 1 < bytes.size && bytes[lineEnd] == CR && bytes[lineEnd + 1] == LF) lineEnd + 2 else lineEnd + 1
+        Parsed(lineEnd, sp1, minOf(sp2, lineEnd), HeaderIndex.parse(bytes, minOf(next, bytes.size), bytes.size))
+    }
+
+    private val text: String by lazy { String(bytes, Charsets.ISO_8859_1) }
+
+    /**
+     * the request line or the status line, e.g. 'GET /index.html HTTP/1.1' or 'HTTP/1.1 200 OK'
+     */
+    val startLine: String by lazy { part(0, parsed.lineEnd) }
+
+    /**
+     * whether the block is of an http response, by its status line
+     */
+    val isResponse: Boolean by lazy { bytes.size >= 5 && String(bytes, 0, 5, Charsets.ISO_8859_1).equals("HTTP/", ignoreCase = true) }
+
+    /**
+     * the request method, null for a response
+     */
+    val method: String?
+        get() = if (isResponse) null else part(0, parsed.sp1)
+
+    /**
+     * the request uri, null for a response
+     */
+    val uri: String?
+        get() = if (isResponse) null else part(parsed.sp1 + 1, parsed.sp2)
+
+    /**
+     * the protocol version, e.g. 'HTTP/1.1'
+     */
+    val version: String
+        get() = if (isResponse) part(0, parsed.sp1) else part(parsed.sp2 + 1, parsed.lineEnd)
+
+    /**
+     * the status code of a response, -1 for a request or a malformed status line
+     */
+    val statusCode: Int
+        get() = if (isResponse) part(parsed.sp1 + 1, parsed.sp2).toIntOrNull() ?: -1 else -1
+
+    /**
+     * the reason phrase of a response, null for a request
+     */
+    val reason: String?
+        get() = if (isResponse) part(parsed.sp2 + 1, parsed.lineEnd) else null
+
+    /**
+     * the header lines, excluding the start line
+     */
+    val headers: HeaderIndex
+        get() = parsed.headers
+
+    /**
+     * the value of the first header with the specified name, ignoring case
+     */
+    operator fun get(name: String): String? = parsed.headers[name]
+
+    /**
+     * the values of all the headers with the specified name, ignoring case, in the order of appearance
+     */
+    fun values(name: String): List<String> = parsed.headers.values(name)
+
+    /**
+     * the 'Content-Length' of the message, -1 if absent or malformed
+     */
+    val contentLength: Long
+        get() = get("Content-Length")?.toLongOrNull()?.takeIf { it >= 0 } ?: -1
+
+    /**
+     * the 'Content-Type' of the message, e.g. 'text/html; charset=utf-8'
+     */
+    val contentType: String?
+        get() = get("Content-Type")
+
+    /**
+     * the media type of the 'Content-Type', in lower case and without parameters, e.g. 'text/html'
+     */
+    val mediaType: String?
+        get() = contentType?.substringBefore(';')?.trim()?.lowercase()
+
+    /**
+     * the 'Content-Encoding' of the message, e.g. 'gzip'
+     */
+    val contentEncoding: String?
+        get() = get("Content-Encoding")
+
+    /**
+     * the size of the block in bytes
+     */
+    val size: Int
+        get() = bytes.size
+
+    /**
+     * the block as sent, including the terminating CRLF * 2
+     */
+    fun text(): String = text
+
+    override fun toString(): String = text
+
+    private fun part(from: Int, to: Int): String = if (from >= to) "" else String(bytes, from, to - from, Charsets.ISO_8859_1)
+}
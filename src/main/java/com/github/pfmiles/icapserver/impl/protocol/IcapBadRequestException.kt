@@ -0,0 +1,10 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+/**
+ * Thrown when an icap request can not be accepted as it is sent, the connection could not be reused afterwards.
+ *
+ * @author pf-miles
+ *
+ * @property status the icap status code to respond with, e.g. 400 or 413
+ */
+class IcapBadRequestException(val status: Int, message: String) : Exception(message)
@@ -0,0 +1,168 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Buffered input of an icap connection.
+ *
+ * Request heads are found by scanning for the terminating CRLF * 2 incrementally in a reusable buffer, so reading a head costs a
+ * few bulk reads and a single pass over its bytes. The bytes read beyond a head stay buffered for the encapsulated message.
+ *
+ * @author pf-miles
+ *
+ * @property source the raw connection input
+ * @property maxHeadSize the max size in bytes of icap request heads(the request line and headers, including the terminating CRLF * 2)
+ * @param bufferSize the initial size of the buffer, which also bounds the bytes taken by one read of a body; grown only for heads
+ */
+internal class IcapInputStream @JvmOverloads constructor(
+    private val source: InputStream,
+    private val maxHeadSize: Int,
+    bufferSize: Int = minOf(INITIAL_BUFFER_SIZE, maxHeadSize)
+) : InputStream() {
+
+    private var buf = ByteArray(maxOf(MIN_BUFFER_SIZE, bufferSize))
+    private var pos = 0
+    private var limit = 0
+
+    /**
+     * count of bytes read from the connection but not consumed yet
+     */
+    val buffered: Int
+        get() = limit - pos
+
+    /**
+     * whether reading on would block: nothing buffered and nothing arrived at the connection, which is only asked, possibly a
+     * syscall, once the buffer is drained
+     */
+    val isIdle: Boolean
+        get() = pos == limit && source.available() == 0
+
+    /**
+     * read the next request head
+     *
+     * @return the parsed head, or null if the connection ends before a new request
+     * @throws IcapBadRequestException if the head exceeds the max size(413) or its request line is malformed(400)
+     * @throws EOFException if the connection ends in the middle of a head
+     */
+    @Throws(IcapBadRequestException::class, IOException::class)
+    fun readHead(): IcapRequestHead? {
+        var scanFrom = pos
+        while (true) {
+            val end = indexOfHeadEnd(scanFrom)
+            if (end >= 0) {
+                val head = IcapRequestHead.parse(buf, pos, end - pos)
+                pos = end
+                return head ?: throw IcapBadRequestException(400, "Invalid ICAP Method Syntax")
+            }
+            if (limit - pos >= maxHeadSize) throw IcapBadRequestException(413, "ICAP request head exceeds the max size of $maxHeadSize bytes")
+            // the terminator may span the boundary of what is buffered
+            scanFrom = maxOf(pos, limit - 3)
+            if (limit == buf.size) {
+                val shift = pos
+                makeRoom()
+                scanFrom -= shift
+            }
+            val n = source.read(buf, limit, buf.size - limit)
+            if (n == -1) {
+                if (limit == pos) return null
+                throw EOFException("Connection closed in the middle of an icap request head.")
+            }
+            limit += n
+        }
+    }
+
+    // @return the offset right after the CRLF * 2, or -1 if not found
+    private fun indexOfHeadEnd(from: Int): Int {
+        var i = from
+        while (i + 3 < limit) {
+            if (buf[i + 3] != LF) {
+                // skip ahead according to where a terminator could start
+                i += if (buf[i + 3] == CR) 1 else 4
+                continue
+            }
+            if (buf[i] == CR && buf[i + 1] == LF && buf[i + 2] == CR) return i + 4
+            i++
+        }
+        return -1
+    }
+
+    // move the unconsumed bytes to the buffer start, or grow the buffer when it's full of them
+    private fun makeRoom() {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos)
+            limit -= pos
+            pos = 0
+        } else {
+            buf = buf.copyOf(minOf(buf.size * 2, maxHeadSize + 4))
+        }
+    }
+
+    /**
+     * hand at most 'max' bytes to the consumer as a slice of the internal buffer, filling the buffer with one read if it's empty
+     *
+     * The slice is only valid during the call of the consumer.
+     *
+     * @return count of bytes consumed, or -1 if the connection ends
+     */
+    @Throws(IOException::class)
+    inline fun readSlice(max: Int, consumer: (ByteArray, Int, Int) -> Unit): Int {
+        if (buffered == 0 && !fill()) return -1
+        val n = minOf(max, buffered)
+        consumer(buffer, position, n)
+        skipBuffered(n)
+        return n
+    }
+
+    internal val buffer: ByteArray
+        get() = buf
+
+    internal val position: Int
+        get() = pos
+
+    internal fun skipBuffered(n: Int) {
+        pos += n
+    }
+
+    // refill the drained buffer from the source, @return false if the connection ends
+    internal fun fill(): Boolean {
+        pos = 0
+        limit = 0
+        val n = source.read(buf, 0, buf.size)
+        if (n == -1) return false
+        limit = n
+        return true
+    }
+
+    override fun read(): Int {
+        if (pos < limit) return buf[pos++].toInt() and 0xFF
+        if (!fill()) return -1
+        return buf[pos++].toInt() and 0xFF
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        if (pos < limit) {
+            val n = minOf(len, limit - pos)
+            System.arraycopy(buf, pos, b, off, n)
+            pos += n
+            return n
+        }
+        // nothing buffered, no need to copy through the buffer
+        return source.read(b, off, len)
+    }
+
+    // the source is only asked when nothing is buffered, which may cost a syscall
+    override fun available(): Int = if (limit > pos) limit - pos else source.available()
+
+    override fun close() = source.close()
+
+    private companion object {
+        const val INITIAL_BUFFER_SIZE = 8192
+        // room for at least a head terminator
+        const val MIN_BUFFER_SIZE = 4
+        const val CR = '\r'.code.toByte()
+        const val LF = '\n'.code.toByte()
+    }
+}
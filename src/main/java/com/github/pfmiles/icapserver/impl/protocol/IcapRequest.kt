@@ -7,17 +7,24 @@ import com.github.pfmiles.icapserver.IcapMethod
  *
  * @author pf-miles
  */
-internal class IcapRequest {
+class IcapRequest {
 
     lateinit var requestLine: String
 
     lateinit var method: IcapMethod
 
+    // the icap request headers, indexed in the bytes of the request head and materialized only as looked up
+    lateinit var icapReqHeaders: HeaderIndex
+
     // origin icap request headers string, excludes the ending CRLF * 2
-    lateinit var icapReqHeadersStr: String
+    val icapReqHeadersStr: String
+        get() = icapReqHeaders.text()
 
-    lateinit var icapReqHeadersMap: Map<String, String>
+    // the first value of each icap request header, by names ignoring case
+    val icapReqHeadersMap: Map<String, String>
+        get() = icapReqHeaders.asMap()
 
+    // the parsed 'Encapsulated' header, absent for OPTIONS requests
     var encapsulatedHeader: EncapsulatedHeader? = null
 
     /**
@@ -26,16 +33,28 @@ internal class IcapRequest {
 
     // the encapsulated http message headers, if any
 
+    // the http request headers, if any, parsed as first looked up
+    var httpReqHeaders: HttpHeaders? = null
+
     // origin http request headers string, if any, including the terminating CRLF * 2
-    var httpReqHeadersStr: String? = null
+    val httpReqHeadersStr: String?
+        get() = httpReqHeaders?.text()
+
+    // the first value of each http request header, by names ignoring case
+    val httpReqHeadersMap: Map<String, String>?
+        get() = httpReqHeaders?.headers?.asMap()
 
-    var httpReqHeadersMap: Map<String, String>? = null
+    // the http response headers, if any, parsed as first looked up
+    var httpRespHeaders: HttpHeaders? = null
 
     // origin http response headers string, if any, including the terminating CRLF * 2
-    var httpRespHeadersStr: String? = null
+    val httpRespHeadersStr: String?
+        get() = httpRespHeaders?.text()
 
-    var httpRespHeadersMap: Map<String, String>? = null
+    // the first value of each http response header, by names ignoring case
+    val httpRespHeadersMap: Map<String, String>?
+        get() = httpRespHeaders?.headers?.asMap()
 
-    // the encapsulated http message body chunks, if any, including the final chunk/ieof chunk
+    // the encapsulated http message body chunks, if any, including the final chunk, decoded from the connection only as iterated
     var httpBodyChunks: Iterator<Chunk>? = null
 }
\ No newline at end of file
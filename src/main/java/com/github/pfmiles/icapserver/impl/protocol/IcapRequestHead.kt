@@ -0,0 +1,119 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+/**
+ * The parsed request line and headers of an icap request.
+ *
+ * The head keeps its bytes, the headers are only indexed by [HeaderIndex] and materialized as they are looked up, and the
+ * 'Encapsulated' header is parsed on first access.
+ *
+ * @author pf-miles
+ *
+ * @property method the request method, as sent by the client
+ * @property headers the icap headers, in the order of appearance
+ */
+internal class IcapRequestHead private constructor(
+    private val buf: ByteArray,
+    private val sp1: Int,
+    private val sp2: Int,
+    private val lineEnd: Int,
+    val method: String,
+    val headers: HeaderIndex
+) {
+
+    companion object {
+        private const val CR = '\r'.code.toByte()
+        private const val SP = ' '.code.toByte()
+        private const val HT = '\t'.code.toByte()
+
+        /**
+         * parse a request head
+         *
+         * @param buf the buffer holding the head
+         * @param off start offset of the head
+         * @param len length of the head, including the terminating CRLF * 2
+         * @param copy whether the head is copied out of the buffer, false only if the buffer is never reused
+         *
+         * @return the parsed head, or null if the request line is malformed
+         */
+        @JvmOverloads
+        fun parse(buf: ByteArray, off: Int, len: Int, copy: Boolean = true): IcapRequestHead? {
+            val end = off + len
+            val lineEnd = indexOfCr(buf, off, end)
+            // request line: method SP uri SP version
+            val sp1 = indexOf(buf, SP, off, lineEnd)
+            if (sp1 <= off) return null
+            val sp2 = indexOf(buf, SP, sp1 + 1, lineEnd)
+            if (sp2 <= sp1 + 1 || sp2 + 1 >= lineEnd || indexOf(buf, SP, sp2 + 1, lineEnd) >= 0) return null
+
+            // the connection buffer is overwritten by the following reads, a head lives as long as its request
+            val bytes = if (copy) buf.copyOfRange(off, end) else buf
+            val shift = if (copy) off else 0
+            return IcapRequestHead(bytes, sp1 - shift, sp2 - shift, lineEnd - shift, str(bytes, off - shift, sp1 - shift),
+                HeaderIndex.parse(bytes, minOf(lineEnd + 2, end) - shift, end - shift))
+        }
+
+        private fun indexOf(buf: ByteArray, b: Byte, from: Int, to: Int): Int {
+            for (i in from until to) if (buf[i] == b) return i
+            return -1
+        }
+
+        private fun indexOfCr(buf: ByteArray, from: Int, to: Int): Int {
+            val i = indexOf(buf, CR, from, to)
+            return if (i < 0) to else i
+        }
+
+        // the trimmed latin-1 string of a range
+        private fun str(buf: ByteArray, from: Int, to: Int): String {
+            var s = from
+            var e = to
+            while (s < e && (buf[s] == SP || buf[s] == HT)) s++
+            while (e > s && (buf[e - 1] == SP || buf[e - 1] == HT)) e--
+            return String(buf, s, e - s, Charsets.ISO_8859_1)
+        }
+    }
+
+    /**
+     * the request uri, e.g. 'icap://127.0.0.1:1344/echo'
+     */
+    val uri: String by lazy(LazyThreadSafetyMode.NONE) { str(buf, sp1 + 1, sp2) }
+
+    /**
+     * the protocol version, e.g. 'ICAP/1.0'
+     */
+    val version: String by lazy(LazyThreadSafetyMode.NONE) { str(buf, sp2 + 1, lineEnd) }
+
+    private var encapsulated: EncapsulatedHeader? = null
+
+    /**
+     * the value of the first header with the specified name, ignoring case
+     */
+    fun header(name: String): String? = headers[name]
+
+    /**
+     * the parsed 'Encapsulated' header, checked against the method of the request
+     *
+     * @return null if absent
+     * @throws IcapBadRequestException(400) if malformed, or not allowed for the method
+     */
+    @Throws(IcapBadRequestException::class)
+    fun encapsulated(): EncapsulatedHeader? {
+        encapsulated?.let { return it }
+        val value = headers["Encapsulated"] ?: return null
+        return EncapsulatedHeader.parse(value).also {
+            it.checkFor(method)
+            encapsulated = it
+        }
+    }
+
+    /**
+     * the service path of the request uri, without the leading '/', e.g. 'echo' for 'icap://127.0.0.1:1344/echo'
+     *
+     * @return null if the uri is not an icap uri
+     */
+    fun servicePath(): String? {
+        if (!uri.regionMatches(0, "icap://", 0, 7, ignoreCase = true)) return null
+        val slash = uri.indexOf('/', 7)
+        if (slash < 0) return null
+        return uri.substring(slash + 1)
+    }
+}
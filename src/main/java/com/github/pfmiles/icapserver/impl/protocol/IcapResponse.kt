@@ -7,7 +7,7 @@ import java.util.*
  *
  * @author pf-miles
  */
-internal class IcapResponse(val icapRequest: IcapRequest) {
+class IcapResponse(val icapRequest: IcapRequest) {
 
     lateinit var statusLine: String
 
@@ -22,6 +22,7 @@ internal class IcapResponse(val icapRequest: IcapRequest) {
     // the out-going encapsulated http response headers string, if any, including the terminating CRLF * 2
     var httpRespHeadersStr: String? = null
 
-    // the out-going http message body chunks, if any, including the final chunk, these chunks will be written out to client as the iteration order
+    // the out-going http message body chunks, if any, including the final chunk, these chunks will be written out to client as the iteration order,
+    // each one as soon as it's produced, e.g. rewritten from the chunks of the request
     var httpBodyChunks: Iterator<Chunk>? = null
 }
\ No newline at end of file
@@ -7,6 +7,6 @@ import com.github.pfmiles.icapserver.IcapMethod
  *
  * @author pf-miles
  */
-internal enum class IcapStdMethod : IcapMethod {
+enum class IcapStdMethod : IcapMethod {
     OPTIONS, REQMOD, RESPMOD
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import java.io.IOException
+import java.io.OutputStream
+
+/**
+ * Assembles icap response heads in a reusable buffer, out of pre-encoded byte templates, ascii strings and numbers encoded in
+ * place, then writes each head out with a single write, so no garbage is made per response on the usual paths.
+ *
+ * Not thread-safe, owned by a connection.
+ *
+ * @author pf-miles
+ */
+internal class ResponseWriter(private val out: OutputStream) {
+
+    private var buf = ByteArray(INITIAL_CAPACITY)
+    private var size = 0
+
+    /**
+     * append a pre-encoded template
+     */
+    fun bytes(b: ByteArray): ResponseWriter {
+        ensureCapacity(b.size)
+        System.arraycopy(b, 0, buf, size, b.size)
+        size += b.size
+        return this
+    }
+
+    /**
+     * append a string of which each char is encoded as one byte, chars out of latin-1 become '?'
+     */
+    fun ascii(s: CharSequence): ResponseWriter {
+        ensureCapacity(s.length)
+        for (i in s.indices) {
+            val c = s[i]
+            buf[size++] = if (c.code < 0x100) c.code.toByte() else '?'.code.toByte()
+        }
+        return this
+    }
+
+    fun decimal(n: Long): ResponseWriter {
+        if (n < 0) {
+            ensureCapacity(1)
+            buf[size++] = '-'.code.toByte()
+            // Long.MIN_VALUE could not be negated, its last digit is written separately
+            if (n == Long.MIN_VALUE) return decimal(-(n / 10)).decimal(-(n % 10))
+            return decimal(-n)
+        }
+        var digits = 1
+        var t = n
+        while (t >= 10) {
+            t /= 10
+            digits++
+        }
+        ensureCapacity(digits)
+        var v = n
+        for (i in size + digits - 1 downTo size) {
+            buf[i] = DIGITS[(v % 10).toInt()]
+            v /= 10
+        }
+        size += digits
+        return this
+    }
+
+    /**
+     * append a non-negative number in lower-case hex, e.g. a chunk size
+     */
+    fun hex(n: Long): ResponseWriter {
+        require(n >= 0) { "Negative hex number: $n." }
+        val digits = maxOf(1, (67 - java.lang.Long.numberOfLeadingZeros(n)) / 4)
+        ensureCapacity(digits)
+        var v = n
+        for (i in size + digits - 1 downTo size) {
+            buf[i] = DIGITS[(v and 0xF).toInt()]
+            v = v ushr 4
+        }
+        size += digits
+        return this
+    }
+
+    fun crlf(): ResponseWriter = bytes(CRLF)
+
+    /**
+     * append the current http-compatible date
+     */
+    fun date(): ResponseWriter = bytes(HttpDate.currentBytes())
+
+    /**
+     * write out what's assembled, with a single write
+     */
+    @Throws(IOException::class)
+    fun send() {
+        if (size == 0) return
+        out.write(buf, 0, size)
+        size = 0
+        // do not keep the room of an unusually large head for the whole connection lifetime
+        if (buf.size > RETAINED_CAPACITY) buf = ByteArray(INITIAL_CAPACITY)
+    }
+
+    /**
+     * drop what's assembled but not sent yet, e.g. a head abandoned by an error
+     */
+    fun reset() {
+        size = 0
+    }
+
+    private fun ensureCapacity(n: Int) {
+        if (size + n > buf.size) buf = buf.copyOf(maxOf(buf.size * 2, size + n))
+    }
+
+    private companion object {
+        const val INITIAL_CAPACITY = 1024
+        const val RETAINED_CAPACITY = 16 * 1024
+        val CRLF = byteArrayOf('\r'.code.toByte(), '\n'.code.toByte())
+        val DIGITS = "0123456789abcdef".toByteArray(Charsets.US_ASCII)
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import java.io.IOException
+import java.io.OutputStream
+import java.io.UncheckedIOException
+
+/**
+ * The encapsulated body of a request as handed to modules, decoded from the connection only as the module iterates, so the body
+ * is never held as a whole: while the module does not pull, nothing more is read, and the client is held back by tcp flow control.
+ *
+ * When a preview is in progress, iterating beyond the preview asks the client for the remaining body with '100 Continue' first.
+ * Data chunks are followed by the final chunk, read failures surface as [UncheckedIOException].
+ *
+ * Not thread-safe, pulled by one thread at a time: the module until its answer completes, then the server writing the answer.
+ *
+ * @author pf-miles
+ *
+ * @param preview whether the body starts with a preview
+ * @property pieceSize max size of the data chunks, larger chunks of the client are split
+ * @property continuer asks the client for the remaining body after the preview
+ */
+internal class StreamedBody(
+    private val decoder: ChunkedBodyDecoder,
+    preview: Boolean,
+    private val pieceSize: Int,
+    private val continuer: Continuer
+) : Iterator<Chunk> {
+
+    /**
+     * sends '100 Continue'
+     */
+    fun interface Continuer {
+        @Throws(IOException::class)
+        fun requestRemaining()
+    }
+
+    private var inPreview = preview
+
+    // the final chunk has been read
+    private var ended = false
+
+    // read but not iterated yet
+    private val pending = java.util.ArrayDeque<Chunk>()
+
+    /**
+     * where the data chunks are copied to as they're iterated, to be sent back when the module leaves the message unmodified but
+     * '204 No Content' is not allowed; null for no copies
+     *
+     * Set from the server thread while a late module may still be iterating on its own: once set to null, no copy is in progress
+     * and none follows, so the former target could be closed.
+     */
+    var retained: OutputStream? = null
+        set(value) = synchronized(this) { field = value }
+
+    /**
+     * whether the body is still within its preview, nothing beyond it has been asked for
+     */
+    val previewing: Boolean
+        get() = inPreview
+
+    override fun hasNext(): Boolean {
+        if (pending.isEmpty() && !ended) fetch()
+        return !pending.isEmpty()
+    }
+
+    override fun next(): Chunk {
+        if (!hasNext()) throw NoSuchElementException()
+        val chunk = pending.pollFirst()
+        if (chunk.size() > 0) synchronized(this) {
+            try {
+                retained?.write(chunk.content, 0, chunk.size())
+            } catch (e: IOException) {
+                throw UncheckedIOException(e)
+            }
+        }
+        return chunk
+    }
+
+    /**
+     * ask for the remaining body now if it's still behind a preview, holding what's left of the preview, so that '100 Continue'
+     * is never sent in the middle of an answer streaming the body
+     */
+    @Throws(IOException::class)
+    fun leavePreview() {
+        while (inPreview && !ended) read()
+    }
+
+    /**
+     * drop what's left of the preview when the request is answered on it
+     *
+     * @return whether the client is waiting for the answer before sending the remaining body, which it never sends then
+     */
+    @Throws(IOException::class)
+    fun answerOnPreview(): Boolean {
+        if (!inPreview || ended) return false
+        while (decoder.readPiece(pieceSize) != null) {
+            // dropped
+        }
+        ended = true
+        pending.clear()
+        return !decoder.ieof
+    }
+
+    /**
+     * drop what's left of the body once the request is answered, so the connection is ready for the next request
+     */
+    @Throws(IOException::class)
+    fun discardRemaining() {
+        if (ended) return
+        while (decoder.readPiece(pieceSize) != null) {
+            // dropped
+        }
+        ended = true
+        pending.clear()
+    }
+
+    private fun fetch() = try {
+        read()
+    } catch (e: IOException) {
+        throw UncheckedIOException(e)
+    }
+
+    private fun read() {
+        var piece = decoder.readPiece(pieceSize)
+        if (piece == null && inPreview && !decoder.ieof) {
+            inPreview = false
+            continuer.requestRemaining()
+            piece = decoder.readPiece(pieceSize)
+        }
+        if (piece == null) {
+            ended = true
+            pending.addLast(Chunk.FINAL_CHUNK)
+        } else {
+            pending.addLast(Chunk(piece))
+        }
+    }
+}
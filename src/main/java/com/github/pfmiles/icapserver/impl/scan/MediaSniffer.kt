@@ -0,0 +1,47 @@
+package com.github.pfmiles.icapserver.impl.scan
+
+/**
+ * Tells the top-level media type of a content by the magic numbers at its beginning, so a declared 'Content-Type' could be
+ * verified against the actual content before the content is trusted to be skipped.
+ *
+ * Only the common media container formats are recognized.
+ *
+ * @author pf-miles
+ */
+internal object MediaSniffer {
+
+    private class Magic(val type: String, val offset: Int, val bytes: ByteArray)
+
+    private fun magic(type: String, offset: Int, vararg bytes: Int) = Magic(type, offset, ByteArray(bytes.size) { bytes[it].toByte() })
+
+    private fun magic(type: String, offset: Int, ascii: String) = Magic(type, offset, ascii.toByteArray(Charsets.US_ASCII))
+
+    private val magics = listOf(
+        // iso base media: mp4, mov, m4a...
+        magic("video", 4, "ftyp"),
+        // matroska, webm
+        magic("video", 0, 0x1A, 0x45, 0xDF, 0xA3),
+        magic("video", 0, "FLV"),
+        magic("video", 0, 0x00, 0x00, 0x01, 0xBA),
+        magic("audio", 0, "ID3"),
+        magic("audio", 0, "OggS"),
+        magic("audio", 0, "fLaC"),
+        magic("audio", 0, 0xFF, 0xFB),
+        magic("image", 0, 0xFF, 0xD8, 0xFF),
+        magic("image", 0, 0x89, 'P'.code, 'N'.code, 'G'.code),
+        magic("image", 0, "GIF8")
+    )
+
+    /**
+     * @param head the beginning of the content, e.g. the preview of a body
+     *
+     * @return the top-level media type, i.e. 'video', 'audio' or 'image', or null if not recognized
+     */
+    fun sniff(head: ByteArray): String? = magics.firstOrNull { matches(head, it) }?.type
+
+    private fun matches(head: ByteArray, magic: Magic): Boolean {
+        if (head.size < magic.offset + magic.bytes.size) return false
+        for (i in magic.bytes.indices) if (head[magic.offset + i] != magic.bytes[i]) return false
+        return true
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.pfmiles.icapserver.impl.scan
+
+import org.slf4j.LoggerFactory
+import java.util.concurrent.Callable
+
+/**
+ * The signature version of a scanner, polled at most once per 'refreshMillis', since asking the scanner could be costly, e.g.
+ * forking a process.
+ *
+ * Thread-safe, the polling is never done while holding a lock, callers racing with a polling one get the known version.
+ *
+ * @author pf-miles
+ *
+ * @property refreshMillis how often the version is polled
+ * @property source the current signature version of the scanner, null if unknown
+ */
+internal class SignatureVersion(private val refreshMillis: Long, private val source: Callable<String?>) {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(SignatureVersion::class.java)
+    }
+
+    @Volatile
+    private var version: String? = null
+
+    private var checkedAt = Long.MIN_VALUE
+
+    /**
+     * @return the known signature version, null if unknown
+     */
+    fun current(): String? {
+        val now = System.currentTimeMillis()
+        synchronized(this) {
+            if (checkedAt != Long.MIN_VALUE && now - checkedAt < refreshMillis) return version
+            checkedAt = now
+        }
+        try {
+            version = source.call()
+        } catch (e: Exception) {
+            // keeps the known version
+            logger.warn("Checking the scanner signature version failed, ignored...", e)
+        }
+        return version
+    }
+}
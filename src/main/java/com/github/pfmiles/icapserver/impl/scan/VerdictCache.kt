@@ -0,0 +1,102 @@
+package com.github.pfmiles.icapserver.impl.scan
+
+import com.github.pfmiles.icapserver.impl.Metrics
+import org.slf4j.LoggerFactory
+import java.nio.ByteBuffer
+
+/**
+ * Remembers the scan verdicts of bodies by their content digests, so that the same content(installers, js bundles...) is scanned
+ * only once.
+ *
+ * Entries are evicted in LRU order when over the max count, expire after the ttl, and are all dropped once the signature version
+ * of the scanner changes.
+ *
+ * Thread-safe.
+ *
+ * @author pf-miles
+ *
+ * @property maxEntries max count of verdicts kept, 0 disables the cache
+ * @property ttlMillis how long a verdict is trusted
+ * @property signatureVersion the signature version of the scanner
+ */
+internal class VerdictCache(
+    private val maxEntries: Int,
+    private val ttlMillis: Long,
+    private val signatureVersion: SignatureVersion
+) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(VerdictCache::class.java)
+
+        const val HITS = "verdict_cache.hits"
+        const val MISSES = "verdict_cache.misses"
+        const val EVICTIONS = "verdict_cache.evictions"
+        const val INVALIDATIONS = "verdict_cache.invalidations"
+    }
+
+    /**
+     * @property threat the name of the threat found, null if the content is clean
+     */
+    class Verdict(val threat: String?, internal val version: String?, internal val createdAt: Long)
+
+    private val entries = object : LinkedHashMap<ByteBuffer, Verdict>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<ByteBuffer, Verdict>): Boolean {
+            val evict = size > maxEntries
+            if (evict) Metrics.inc(EVICTIONS)
+            return evict
+        }
+    }
+
+    // the signature version the entries are scanned with
+    private var version: String? = null
+
+    init {
+        Metrics.gauge("verdict_cache.size") { synchronized(this) { entries.size.toLong() } }
+    }
+
+    /**
+     * @return the cached verdict of the content, or null if it has to be scanned
+     */
+    fun get(digest: ByteArray): Verdict? {
+        if (maxEntries <= 0) return null
+        refreshVersion()
+        val now = System.currentTimeMillis()
+        synchronized(this) {
+            val key = ByteBuffer.wrap(digest)
+            val verdict = entries[key]
+            if (verdict == null || verdict.version != version || now - verdict.createdAt >= ttlMillis) {
+                if (verdict != null) entries.remove(key)
+                Metrics.inc(MISSES)
+                return null
+            }
+            Metrics.inc(HITS)
+            return verdict
+        }
+    }
+
+    /**
+     * remember the verdict of a scanned content
+     */
+    fun put(digest: ByteArray, threat: String?) {
+        if (maxEntries <= 0) return
+        refreshVersion()
+        val now = System.currentTimeMillis()
+        synchronized(this) {
+            entries[ByteBuffer.wrap(digest)] = Verdict(threat, version, now)
+        }
+    }
+
+    // drop all the verdicts once the signatures are updated
+    private fun refreshVersion() {
+        // polled outside the lock of the entries
+        val current = signatureVersion.current()
+        synchronized(this) {
+            if (current == version) return
+            if (entries.isNotEmpty()) {
+                logger.info("Scanner signature version changed from '$version' to '$current', ${entries.size} cached verdicts dropped.")
+                Metrics.inc(INVALIDATIONS)
+            }
+            entries.clear()
+            version = current
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import com.github.pfmiles.icapserver.impl.Constants
+import com.github.pfmiles.icapserver.impl.Metrics
+import com.github.pfmiles.icapserver.impl.Utils
+import com.github.pfmiles.icapserver.impl.protocol.HttpDate
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.net.Socket
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+
+/**
+ * Bounds the count of connections served at once, shared by both transports, the limit is the 'Max-Connections' advertised by
+ * OPTIONS responses.
+ *
+ * The acceptor takes a slot before accepting: when none is free, clients wait in the accept backlog of the os for at most
+ * [queueTimeoutMillis], after which the next connection is accepted only to be answered with '503 Service Overloaded' and closed
+ * at once, a clean signal for proxies to fail over on.
+ *
+ * @author pf-miles
+ *
+ * @property maxConnections the max count of connections served at once
+ * @property acceptBacklog how many connections the os queues while waiting to be accepted
+ * @property queueTimeoutMillis how long the acceptor waits for a slot before rejecting the next connection, 0 to reject at once
+ */
+internal class AdmissionControl(val maxConnections: Int, val acceptBacklog: Int, private val queueTimeoutMillis: Long) {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(AdmissionControl::class.java)
+
+        /**
+         * counter of the connections answered with '503 Service Overloaded'
+         */
+        const val REJECTED = "connections.rejected"
+
+        /**
+         * gauge of the connections being served
+         */
+        const val ACTIVE = "connections.active"
+
+        private val OVERLOADED = "ICAP/1.0 503 Service Overloaded\r\nDate: ".toByteArray(Charsets.US_ASCII)
+        private val OVERLOADED_END = "\r\nConnection: close\r\nEncapsulated: null-body=0\r\n\r\n".toByteArray(Charsets.US_ASCII)
+
+        /**
+         * the limits as configured
+         */
+        @JvmStatic
+        fun configured(): AdmissionControl = AdmissionControl(
+            opt(Constants.MAX_CONNECTIONS_ENV_VAR, Constants.MAX_CONNECTIONS_PROP_VAR, Constants.DFT_MAX_CONNECTIONS).toInt(),
+            opt(Constants.ACCEPT_BACKLOG_ENV_VAR, Constants.ACCEPT_BACKLOG_PROP_VAR, Constants.DFT_ACCEPT_BACKLOG).toInt(),
+            opt(Constants.ACCEPT_QUEUE_TIMEOUT_ENV_VAR, Constants.ACCEPT_QUEUE_TIMEOUT_PROP_VAR, Constants.DFT_ACCEPT_QUEUE_TIMEOUT).toLong()
+        )
+
+        private fun opt(env: String, prop: String, dft: String): String = Utils.optsInOrDefault(env, prop, dft).trim()
+    }
+
+    private val slots = Semaphore(maxConnections)
+
+    init {
+        require(maxConnections > 0) { "Max count of connections must be positive." }
+        Metrics.gauge(ACTIVE) { (maxConnections - slots.availablePermits()).toLong() }
+    }
+
+    /**
+     * take a slot for the connection about to be accepted, waiting for one in the accept queue if configured so
+     *
+     * @return false if no slot is free, the next connection should be [reject]ed then, unless [tryAdmit] succeeds in the meantime
+     */
+    @Throws(InterruptedException::class)
+    fun admit(): Boolean = slots.tryAcquire() || queueTimeoutMillis > 0 && slots.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)
+
+    /**
+     * take a slot if one is free at once
+     */
+    fun tryAdmit(): Boolean = slots.tryAcquire()
+
+    /**
+     * give back the slot of a closed connection
+     */
+    fun release() = slots.release()
+
+    /**
+     * answer an accepted connection which got no slot with '503 Service Overloaded', and close it
+     */
+    fun reject(socket: Socket) {
+        Metrics.inc(REJECTED)
+        logger.warn("Max count of $maxConnections connections reached, connection rejected.")
+        try {
+            socket.use {
+                val out = it.getOutputStream()
+                out.write(OVERLOADED + HttpDate.current().toByteArray(Charsets.US_ASCII) + OVERLOADED_END)
+                out.flush()
+                // drop what the client has sent already, unread data would turn the close into a reset, losing the response
+                it.shutdownOutput()
+                val ins = it.getInputStream()
+                ins.skip(ins.available().toLong())
+            }
+        } catch (e: IOException) {
+            logger.warn("Rejecting client connection error, ignored...", e)
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import com.github.pfmiles.icapserver.impl.body.MemoryBudget
+import com.github.pfmiles.icapserver.impl.buffer.BufferPool
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.net.SocketTimeoutException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * The inbound byte stream of a nio connection, made of the frames handed over by the event loop, held in pooled direct buffers
+ * which are given back as soon as they are consumed.
+ *
+ * Reads only block when a request handler waits for data the client has not sent yet, e.g. the remaining body after a
+ * '100 Continue' response, or the rest of a large body.
+ *
+ * Once the buffered frames reach [maxBuffered] bytes, the event loop is told to stop reading the connection, and [onDrained] is
+ * called when the reader has consumed half of them, so a slow consumer of a large body holds back the client instead of growing
+ * the buffer. The buffered frames are also accounted in the [MemoryBudget] shared by all the connections: while it's exhausted,
+ * reading pauses after every frame and resumes only once the reader has consumed all of them.
+ *
+ * @author pf-miles
+ *
+ * @property readTimeoutMillis how long a read could wait for the next frame before failing
+ * @property maxBuffered buffered bytes at which reading from the connection should pause
+ * @property budget where the buffered frames are accounted
+ * @property pool where the buffers holding the frames are acquired from
+ * @property onDrained called by the reader once the connection could be read again, on the reading thread
+ */
+internal class FrameInputStream(
+    private val readTimeoutMillis: Long,
+    private val maxBuffered: Long = Long.MAX_VALUE,
+    private val budget: MemoryBudget = MemoryBudget.global,
+    private val pool: BufferPool = BufferPool.global,
+    private val onDrained: () -> Unit = {}
+) : InputStream() {
+
+    private val lock = ReentrantLock()
+    private val arrived = lock.newCondition()
+
+    // in read mode
+    private val frames = java.util.ArrayDeque<ByteBuffer>()
+
+    // released once consumed
+    private var current: ByteBuffer? = null
+
+    // no more frames are coming
+    private var sealed = false
+
+    private var buffered = 0L
+
+    // reading from the connection is paused until the reader catches up
+    private var full = false
+
+    /**
+     * append a frame, copied into pooled buffers, called by the event loop
+     *
+     * @return false if the buffered frames are full, reading from the connection should pause till [onDrained] is called
+     */
+    fun offer(frame: ByteArray, off: Int, len: Int): Boolean = lock.withLock {
+        // dropped once the stream is sealed, e.g. discarded as the connection is closed
+        if (sealed) return false
+        var from = off
+        val end = off + len
+        while (from < end) {
+            val buf = pool.acquire(minOf(end - from, BufferPool.MAX_SIZE))
+            val n = minOf(end - from, buf.remaining())
+            buf.put(frame, from, n)
+            buf.flip()
+            frames.addLast(buf)
+            from += n
+        }
+        buffered += len
+        budget.reserve(len.toLong())
+        arrived.signalAll()
+        if (buffered >= maxBuffered || budget.exhausted) full = true
+        !full
+    }
+
+    /**
+     * mark the end of the stream, once the buffered frames are consumed reads return -1
+     */
+    fun seal() = lock.withLock {
+        sealed = true
+        arrived.signalAll()
+    }
+
+    /**
+     * drop the buffered frames and end the stream, e.g. when the connection is closed
+     */
+    fun discard() = lock.withLock {
+        budget.release(buffered)
+        buffered = 0
+        current?.let { pool.release(it) }
+        current = null
+        frames.forEach { pool.release(it) }
+        frames.clear()
+        sealed = true
+        arrived.signalAll()
+    }
+
+    /**
+     * whether some frames are available without blocking
+     */
+    fun hasBuffered(): Boolean = lock.withLock { current != null || !frames.isEmpty() }
+
+    /**
+     * look at the unread part of the current frame, or the next frame if the current one is consumed, without consuming it
+     *
+     * @param reader given the buffer, offset and length of the unread bytes
+     * @return what the reader returns, or null if no frames are buffered
+     */
+    fun <T> peek(reader: (ByteBuffer) -> T): T? = lock.withLock {
+        val next = current ?: frames.peekFirst() ?: return null
+        reader(next.duplicate())
+    }
+
+    override fun available(): Int = lock.withLock { minOf(buffered, Int.MAX_VALUE.toLong()).toInt() }
+
+    override fun read(): Int {
+        lock.withLock {
+            val buf = awaitData() ?: return -1
+            val b = buf.get().toInt() and 0xFF
+            consumed(buf, 1)
+            return b
+        }
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        lock.withLock {
+            val buf = awaitData() ?: return -1
+            val n = minOf(len, buf.remaining())
+            buf.get(b, off, n)
+            consumed(buf, n)
+            return n
+        }
+    }
+
+    private fun consumed(buf: ByteBuffer, n: Int) {
+        if (!buf.hasRemaining()) {
+            pool.release(buf)
+            current = null
+        }
+        buffered -= n
+        budget.release(n.toLong())
+        // with the budget exhausted, the connection still makes progress one frame at a time
+        if (full && buffered <= maxBuffered / 2 && (buffered == 0L || !budget.exhausted)) {
+            full = false
+            onDrained()
+        }
+    }
+
+    // @return the buffer to read from, null if the stream ends
+    private fun awaitData(): ByteBuffer? {
+        var nanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis)
+        while (current == null) {
+            current = frames.pollFirst()
+            if (current != null) break
+            if (sealed) return null
+            if (nanos <= 0L) throw SocketTimeoutException("No more data received in $readTimeoutMillis milliseconds.")
+            nanos = arrived.awaitNanos(nanos)
+        }
+        return current
+    }
+}
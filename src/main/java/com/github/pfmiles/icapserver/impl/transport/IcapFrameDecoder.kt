@@ -0,0 +1,277 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import com.github.pfmiles.icapserver.impl.protocol.EncapsulatedHeader
+import com.github.pfmiles.icapserver.impl.protocol.HeaderIndex
+import com.github.pfmiles.icapserver.impl.protocol.IcapBadRequestException
+import java.nio.ByteBuffer
+
+/**
+ * Incremental framer of icap requests, fed with whatever bytes the event loop has read from a connection.
+ *
+ * A frame is emitted once it can be processed without waiting on the network: the icap headers, the encapsulated http headers
+ * and the whole chunked body. When a 'Preview' is in progress, the preview data forms a frame of its own, and the remaining
+ * body (sent by the client after '100 Continue') forms the next one. Large bodies are not held as a whole though: once the
+ * frame grows to the body frame size in the middle of chunk data, what's decoded so far is emitted, so the request handler
+ * starts consuming the body while the rest is still on its way.
+ *
+ * The decoder only finds message boundaries, validation is left to the request handler, which consumes the emitted frames as a
+ * plain byte stream. Once a boundary can not be determined anymore, the decoder is 'broken': what has been read is still emitted
+ * as a last frame, and the connection should be closed after the response.
+ *
+ * Not thread-safe, only used by the event loop owning the connection.
+ *
+ * @author pf-miles
+ */
+internal class IcapFrameDecoder(private val maxHeadSize: Int = 65536, private val bodyFrameSize: Int = DFT_BODY_FRAME_SIZE) {
+
+    private enum class State { HEAD, ENCAPSULATED_HEADERS, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_CRLF, TRAILER, BROKEN }
+
+    private var state = State.HEAD
+
+    // bytes of the frame being decoded
+    private var frame = ByteArray(INITIAL_CAPACITY)
+    private var size = 0
+
+    // how many bytes of the terminating CRLF * 2 of the icap headers have been matched
+    private var headMatched = 0
+
+    // start offset in 'frame' of the chunk-size line or trailer line being decoded
+    private var lineStart = 0
+
+    // bytes left to consume in state 'ENCAPSULATED_HEADERS', 'CHUNK_DATA' or 'CHUNK_DATA_CRLF'
+    private var remaining = 0L
+
+    private var hasBody = false
+    private var inPreview = false
+    private var ieof = false
+
+    /**
+     * whether the message boundaries have been lost, no more frames will be emitted then
+     */
+    val broken: Boolean
+        get() = state == State.BROKEN
+
+    /**
+     * decode the readable bytes of the buffer, all of them are consumed
+     *
+     * @param buf bytes read from the connection, in read mode
+     * @param sink receives every complete frame, as a slice of the decoder's buffer only valid during the call
+     */
+    fun decode(buf: ByteBuffer, sink: (ByteArray, Int, Int) -> Unit) {
+        while (buf.hasRemaining() && state != State.BROKEN) {
+            when (state) {
+                State.HEAD -> decodeHead(buf, sink)
+                State.ENCAPSULATED_HEADERS -> {
+                    copyData(buf)
+                    if (remaining == 0L) afterEncapsulatedHeaders(sink)
+                }
+                State.CHUNK_SIZE -> decodeChunkSize(buf, sink)
+                State.CHUNK_DATA -> {
+                    copyData(buf)
+                    if (remaining == 0L) {
+                        remaining = 2
+                        state = State.CHUNK_DATA_CRLF
+                    } else if (size >= bodyFrameSize) {
+                        emit(sink)
+                    }
+                }
+                State.CHUNK_DATA_CRLF -> {
+                    copyData(buf)
+                    if (remaining == 0L) {
+                        lineStart = size
+                        state = State.CHUNK_SIZE
+                    }
+                }
+                State.TRAILER -> decodeTrailer(buf, sink)
+                State.BROKEN -> {}
+            }
+        }
+    }
+
+    /**
+     * Forget the request being decoded, when the request handler has already answered it, e.g. it responded to a preview without
+     * asking for the remaining body.
+     */
+    fun reset() {
+        if (state != State.BROKEN) {
+            size = 0
+            resetRequestState()
+        }
+    }
+
+    private fun resetRequestState() {
+        state = State.HEAD
+        headMatched = 0
+        hasBody = false
+        inPreview = false
+        ieof = false
+    }
+
+    private fun decodeHead(buf: ByteBuffer, sink: (ByteArray, Int, Int) -> Unit) {
+        while (buf.hasRemaining()) {
+            val b = buf.get()
+            append(b)
+            headMatched = when {
+                b == HEAD_END[headMatched] -> headMatched + 1
+                b == CR -> 1
+                else -> 0
+            }
+            if (headMatched == HEAD_END.size) {
+                onHeadComplete(sink)
+                return
+            }
+            if (size > maxHeadSize) {
+                breakFrame(sink)
+                return
+            }
+        }
+    }
+
+    private fun onHeadComplete(sink: (ByteArray, Int, Int) -> Unit) {
+        // the header lines follow the request line, indexed in place since the frame is not touched meanwhile
+        var lineEnd = 0
+        while (frame[lineEnd] != LF) lineEnd++
+        val headers = HeaderIndex.parse(frame, lineEnd + 1, size)
+        val value = headers["Encapsulated"]
+        if (value == null) {
+            // OPTIONS requests
+            complete(sink)
+            return
+        }
+        val encapsulated = try {
+            EncapsulatedHeader.parse(value)
+        } catch (e: IcapBadRequestException) {
+            // answered by the handler, which parses the head again
+            breakFrame(sink)
+            return
+        }
+        hasBody = encapsulated.hasBody()
+        inPreview = hasBody && headers.contains("Preview")
+        // the offset of the body entity equals to the total size of the encapsulated http headers
+        remaining = encapsulated.bodyOffset.toLong()
+        if (remaining > 0) state = State.ENCAPSULATED_HEADERS else afterEncapsulatedHeaders(sink)
+    }
+
+    private fun afterEncapsulatedHeaders(sink: (ByteArray, Int, Int) -> Unit) {
+        if (hasBody) {
+            lineStart = size
+            state = State.CHUNK_SIZE
+        } else {
+            complete(sink)
+        }
+    }
+
+    private fun decodeChunkSize(buf: ByteBuffer, sink: (ByteArray, Int, Int) -> Unit) {
+        while (buf.hasRemaining()) {
+            append(buf.get())
+            if (endsWithCrlf()) {
+                parseChunkSizeLine(sink)
+                return
+            }
+            if (size - lineStart > MAX_LINE_SIZE) {
+                breakFrame(sink)
+                return
+            }
+        }
+    }
+
+    private fun parseChunkSizeLine(sink: (ByteArray, Int, Int) -> Unit) {
+        val end = size - 2
+        var i = lineStart
+        var chunkSize = 0L
+        var digits = 0
+        while (i < end) {
+            val d = Character.digit(frame[i].toInt(), 16)
+            if (d < 0) break
+            chunkSize = chunkSize * 16 + d
+            if (++digits > 15) break
+            i++
+        }
+        if (digits == 0 || digits > 15) {
+            breakFrame(sink)
+            return
+        }
+        if (chunkSize > 0) {
+            remaining = chunkSize
+            state = State.CHUNK_DATA
+        } else {
+            ieof = String(frame, i, end - i, Charsets.US_ASCII).contains("ieof")
+            lineStart = size
+            state = State.TRAILER
+        }
+    }
+
+    private fun decodeTrailer(buf: ByteBuffer, sink: (ByteArray, Int, Int) -> Unit) {
+        while (buf.hasRemaining()) {
+            append(buf.get())
+            if (endsWithCrlf()) {
+                if (size - lineStart == 2) {
+                    // the empty line terminating the chunked body
+                    if (inPreview && !ieof) {
+                        // the remaining body comes after '100 Continue'
+                        inPreview = false
+                        emit(sink)
+                        lineStart = 0
+                        state = State.CHUNK_SIZE
+                    } else {
+                        complete(sink)
+                    }
+                    return
+                }
+                lineStart = size
+            } else if (size - lineStart > MAX_LINE_SIZE) {
+                breakFrame(sink)
+                return
+            }
+        }
+    }
+
+    private fun copyData(buf: ByteBuffer) {
+        val n = minOf(remaining, buf.remaining().toLong()).toInt()
+        ensureCapacity(n)
+        buf.get(frame, size, n)
+        size += n
+        remaining -= n
+    }
+
+    private fun complete(sink: (ByteArray, Int, Int) -> Unit) {
+        emit(sink)
+        resetRequestState()
+        // the room of a large body is reused by its frames, but not kept for the whole connection lifetime
+        if (frame.size > RETAINED_CAPACITY) frame = ByteArray(INITIAL_CAPACITY)
+    }
+
+    private fun breakFrame(sink: (ByteArray, Int, Int) -> Unit) {
+        emit(sink)
+        state = State.BROKEN
+    }
+
+    private fun emit(sink: (ByteArray, Int, Int) -> Unit) {
+        sink(frame, 0, size)
+        size = 0
+    }
+
+    private fun endsWithCrlf() = size - lineStart >= 2 && frame[size - 2] == CR && frame[size - 1] == LF
+
+    private fun append(b: Byte) {
+        ensureCapacity(1)
+        frame[size++] = b
+    }
+
+    private fun ensureCapacity(n: Int) {
+        if (size + n > frame.size) frame = frame.copyOf(maxOf(frame.size * 2, size + n))
+    }
+
+    private companion object {
+        const val CR = '\r'.code.toByte()
+        const val LF = '\n'.code.toByte()
+        val HEAD_END = byteArrayOf(CR, LF, CR, LF)
+
+        const val INITIAL_CAPACITY = 4096
+        const val RETAINED_CAPACITY = 65536
+        const val DFT_BODY_FRAME_SIZE = 65536
+
+        // chunk-size lines and trailer lines longer than this are considered malformed
+        const val MAX_LINE_SIZE = 8192
+    }
+}
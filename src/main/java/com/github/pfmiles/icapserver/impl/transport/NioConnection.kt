@@ -0,0 +1,349 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import io.github.rfc3507.server.ClientHandler
+import com.github.pfmiles.icapserver.impl.buffer.BufferPool
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.io.OutputStream
+import java.net.SocketTimeoutException
+import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
+import java.nio.channels.SocketChannel
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * A client connection served by a nio event loop.
+ *
+ * Reading, framing and writing happen on the event loop thread; once a request is framed, it is handed to the worker stage,
+ * where a [ClientHandler] processes it as if it was reading from a socket. The worker stage returns as soon as no more framed
+ * requests are buffered, or a request is waiting for the answer of its module, so neither idle persistent connections nor
+ * pending module answers hold a thread.
+ *
+ * Each request is served on the worker lane its head is classified into, the buffered requests are served in a row only as long
+ * as they belong to the same lane, so a request of a slow endpoint never holds back the next request of another one.
+ *
+ * Large bodies are streamed rather than framed as a whole: the handler starts on the first part of the body, reading from the
+ * connection pauses while too much of it is buffered, and the handler's flushes block while too much of its output is queued,
+ * so the memory taken by a connection stays bounded however large its messages are.
+ *
+ * @author pf-miles
+ *
+ * @property lanes the worker stage, split into lanes by the endpoints requested
+ * @property onClosed called once the connection is closed, e.g. to give back its admission slot
+ */
+internal class NioConnection(
+    private val channel: SocketChannel,
+    private val loop: NioEventLoop,
+    private val lanes: WorkerLanes,
+    readTimeoutMillis: Long,
+    private val idleTimeoutMillis: Long,
+    maxHeadSize: Int,
+    private val onClosed: () -> Unit = {}
+) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(NioConnection::class.java)
+
+        // received bytes buffered before reading from the connection pauses
+        const val MAX_BUFFERED_INPUT = 1024 * 1024L
+
+        // response bytes queued before the writing handler blocks
+        const val MAX_QUEUED_OUTPUT = 1024 * 1024L
+
+        // size of the pooled buffers responses are written into
+        const val OUTPUT_BUFFER_SIZE = 16 * 1024
+    }
+
+    private lateinit var key: SelectionKey
+
+    private val decoder = IcapFrameDecoder(maxHeadSize)
+    private val input = FrameInputStream(readTimeoutMillis, MAX_BUFFERED_INPUT) { loop.execute(this::resumeReading) }
+    private val output = LoopOutputStream(readTimeoutMillis)
+
+    // keeps the per-connection state, e.g. the count of requests served, only used by one worker at a time
+    private val handler = ClientHandler(input, output).apply {
+        // queued before the answer is written, so the decoder is reset before the client could send the next request
+        setPreviewAnsweredListener { loop.execute { decoder.reset() } }
+    }
+
+    // the following are only accessed by the event loop thread
+    private val writeQueue = java.util.ArrayDeque<ByteBuffer>()
+    private var dispatched = false
+    private var inputEnded = false
+    private var readPaused = false
+    private var closeAfterWrites = false
+
+    // also read by the handler waiting for its output to be written
+    @Volatile
+    private var closed = false
+    private var lastActive = System.currentTimeMillis()
+
+    /**
+     * register to the selector of the owning event loop, called on the event loop thread
+     */
+    fun register() {
+        channel.configureBlocking(false)
+        key = channel.register(loop.selector, SelectionKey.OP_READ, this)
+    }
+
+    /**
+     * read and frame the available bytes, called on the event loop thread
+     *
+     * @param readBuf the shared read buffer of the event loop
+     */
+    fun onReadable(readBuf: ByteBuffer) {
+        val n = try {
+            readBuf.clear()
+            channel.read(readBuf)
+        } catch (e: IOException) {
+            logger.warn("Reading from client connection failed, closing it.", e)
+            close()
+            return
+        }
+        lastActive = System.currentTimeMillis()
+        if (n == -1) {
+            // client closed its sending side, requests already received are still answered
+            endInput()
+            if (!dispatched && !input.hasBuffered()) close()
+            return
+        }
+        readBuf.flip()
+        var full = false
+        decoder.decode(readBuf) { b, off, len -> if (!input.offer(b, off, len)) full = true }
+        if (decoder.broken) {
+            endInput()
+        } else if (full) {
+            // resumed once the handler has consumed enough of the buffered frames
+            readPaused = true
+            key.interestOps(key.interestOps() and SelectionKey.OP_READ.inv())
+        }
+        if (!dispatched && input.hasBuffered()) dispatch()
+    }
+
+    private fun resumeReading() {
+        if (!readPaused || inputEnded || closed) return
+        readPaused = false
+        key.interestOps(key.interestOps() or SelectionKey.OP_READ)
+    }
+
+    /**
+     * close the connection if it has been idle for too long, called on the event loop thread
+     */
+    fun checkIdle(now: Long) {
+        if (!dispatched && writeQueue.isEmpty() && now - lastActive > idleTimeoutMillis) {
+            logger.info("Persistent connection idle for ${idleTimeoutMillis}ms, closing it.")
+            close()
+        }
+    }
+
+    private fun endInput() {
+        inputEnded = true
+        input.seal()
+        key.interestOps(key.interestOps() and SelectionKey.OP_READ.inv())
+    }
+
+    /**
+     * write pending responses, called on the event loop thread
+     */
+    fun onWritable() = flushWrites()
+
+    private fun dispatch() {
+        dispatched = true
+        val lane = nextLane()
+        try {
+            lane.execute { process(lane) }
+        } catch (e: RejectedExecutionException) {
+            logger.error("Worker stage is saturated, connection dropped.", e)
+            close()
+        }
+    }
+
+    // the lane of the next buffered request, which begins the unread frame
+    private fun nextLane(): Executor = input.peek(lanes::laneOf) ?: lanes.laneOf(null)
+
+    // runs on a worker thread of the lane, serving the buffered requests of the same lane
+    private fun process(lane: Executor) {
+        var keepAlive = true
+        var pending = false
+        try {
+            // requests of other lanes are dispatched again once this one ends
+            while (keepAlive && input.hasBuffered() && nextLane() === lane) {
+                val result = handler.handleRequestAsync(lane)
+                if (!result.isDone) {
+                    // the worker is released until the module answers, serving goes on from the worker writing the answer
+                    pending = true
+                    result.whenComplete { answered, _ -> resume(lane, answered == true) }
+                    return
+                }
+                keepAlive = result.join()
+                logger.info("Client request completed.")
+            }
+        } catch (e: IOException) {
+            keepAlive = false
+            logger.error("IO Exception when processing client request, processing terminated.", e)
+        } finally {
+            if (!pending) endProcess(keepAlive)
+        }
+    }
+
+    // called once a module answer is written out, or could not be
+    private fun resume(lane: Executor, keepAlive: Boolean) {
+        logger.info("Client request completed.")
+        if (keepAlive) process(lane) else endProcess(false)
+    }
+
+    private fun endProcess(keepAlive: Boolean) {
+        output.flush()
+        loop.execute { afterProcess(keepAlive) }
+    }
+
+    private fun afterProcess(keepAlive: Boolean) {
+        dispatched = false
+        lastActive = System.currentTimeMillis()
+        if (!keepAlive || inputEnded && !input.hasBuffered()) {
+            closeAfterWrites = true
+            flushWrites()
+        } else if (input.hasBuffered()) {
+            // framed while the previous requests were being processed
+            dispatch()
+        }
+    }
+
+    private fun enqueueWrite(bufs: List<ByteBuffer>) {
+        if (closed) {
+            bufs.forEach { BufferPool.global.release(it) }
+            return
+        }
+        writeQueue.addAll(bufs)
+        flushWrites()
+    }
+
+    private fun flushWrites() {
+        if (closed) return
+        try {
+            while (!writeQueue.isEmpty()) {
+                val head = writeQueue.peekFirst()
+                channel.write(head)
+                lastActive = System.currentTimeMillis()
+                if (head.hasRemaining()) {
+                    // socket send buffer is full, wait for the channel to be writable again
+                    key.interestOps(key.interestOps() or SelectionKey.OP_WRITE)
+                    return
+                }
+                writeQueue.pollFirst()
+                output.written(head.limit().toLong())
+                BufferPool.global.release(head)
+            }
+        } catch (e: IOException) {
+            logger.warn("Writing to client connection failed, closing it.", e)
+            close()
+            return
+        }
+        key.interestOps(key.interestOps() and SelectionKey.OP_WRITE.inv())
+        if (closeAfterWrites) close()
+    }
+
+    /**
+     * close the connection, called on the event loop thread
+     */
+    fun close() {
+        if (closed) return
+        closed = true
+        input.discard()
+        output.written(Long.MAX_VALUE)
+        writeQueue.forEach { BufferPool.global.release(it) }
+        writeQueue.clear()
+        if (this::key.isInitialized) key.cancel()
+        try {
+            channel.close()
+        } catch (e: IOException) {
+            logger.warn("Closing client channel error, ignored...", e)
+        } finally {
+            onClosed()
+        }
+    }
+
+    /**
+     * Collects what a request handler writes into pooled direct buffers, and passes them to the event loop on every flush, which
+     * writes them to the channel without another copy and gives them back to the pool.
+     *
+     * A flush blocks while more than [MAX_QUEUED_OUTPUT] bytes are waiting to be written, so a client not reading its responses
+     * holds back the handler instead of growing the queue.
+     *
+     * @param timeoutMillis how long a flush could wait for the queue to drain before failing
+     */
+    private inner class LoopOutputStream(private val timeoutMillis: Long) : OutputStream() {
+        // owned by the writing handler till flushed, in write mode
+        private val filled = ArrayList<ByteBuffer>()
+        private var current: ByteBuffer? = null
+
+        private val lock = ReentrantLock()
+        private val drained = lock.newCondition()
+
+        // bytes handed to the event loop but not written to the channel yet
+        private var queued = 0L
+
+        override fun write(b: Int) {
+            room().put(b.toByte())
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            var from = off
+            var left = len
+            while (left > 0) {
+                val buf = room()
+                val n = minOf(left, buf.remaining())
+                buf.put(b, from, n)
+                from += n
+                left -= n
+            }
+        }
+
+        // the current buffer, a new one if it's full
+        private fun room(): ByteBuffer {
+            val buf = current
+            if (buf != null && buf.hasRemaining()) return buf
+            if (buf != null) filled.add(buf)
+            return BufferPool.global.acquire(OUTPUT_BUFFER_SIZE).also { current = it }
+        }
+
+        override fun flush() {
+            // nothing is kept between flushes, so a closing connection could not strand a buffer here
+            current?.let { if (it.position() > 0) filled.add(it) else BufferPool.global.release(it) }
+            current = null
+            if (filled.isEmpty()) return
+            val bufs = ArrayList(filled)
+            filled.clear()
+            var bytes = 0L
+            bufs.forEach {
+                it.flip()
+                bytes += it.limit()
+            }
+            lock.withLock { queued += bytes }
+            loop.execute { enqueueWrite(bufs) }
+            awaitDrained()
+        }
+
+        override fun close() = flush()
+
+        /**
+         * some queued bytes are written, or all of them are dropped as the connection is closed, called on the event loop thread
+         */
+        fun written(n: Long) = lock.withLock {
+            queued = maxOf(queued - n, 0)
+            if (queued <= MAX_QUEUED_OUTPUT) drained.signalAll()
+        }
+
+        private fun awaitDrained() = lock.withLock {
+            var nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+            while (queued > MAX_QUEUED_OUTPUT || closed) {
+                if (closed) throw IOException("Client connection closed.")
+                if (nanos <= 0L) throw SocketTimeoutException("Responses not read by the client in $timeoutMillis milliseconds.")
+                nanos = drained.awaitNanos(nanos)
+            }
+        }
+    }
+}
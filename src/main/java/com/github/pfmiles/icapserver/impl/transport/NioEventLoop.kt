@@ -0,0 +1,103 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import com.github.pfmiles.icapserver.impl.buffer.BufferPool
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.nio.channels.ClosedSelectorException
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * A selector thread serving the io of many client connections.
+ *
+ * Other threads interact with the connections of this loop only by submitting tasks through [execute].
+ *
+ * @author pf-miles
+ */
+internal class NioEventLoop(val name: String, private val idleCheckIntervalMillis: Long) : Runnable {
+    companion object {
+        private val logger = LoggerFactory.getLogger(NioEventLoop::class.java)
+    }
+
+    val selector: Selector = Selector.open()
+
+    private val tasks = ConcurrentLinkedQueue<Runnable>()
+
+    // shared by all connections of this loop, bytes read are always consumed by the frame decoder at once; a direct one, so the
+    // channels are read into it without a temp buffer
+    private val readBuf = BufferPool.global.acquire(BufferPool.MAX_SIZE)
+
+    @Volatile
+    private var running = true
+
+    /**
+     * run the task on the event loop thread
+     */
+    fun execute(task: Runnable) {
+        tasks.add(task)
+        selector.wakeup()
+    }
+
+    fun shutdown() {
+        running = false
+        selector.wakeup()
+    }
+
+    override fun run() {
+        var lastIdleCheck = System.currentTimeMillis()
+        try {
+            while (running) {
+                selector.select(idleCheckIntervalMillis)
+                runTasks()
+                val now = System.currentTimeMillis()
+                if (now - lastIdleCheck >= idleCheckIntervalMillis) {
+                    lastIdleCheck = now
+                    selector.keys().toList().forEach { if (it.isValid) (it.attachment() as NioConnection).checkIdle(now) }
+                }
+                val keys = selector.selectedKeys().iterator()
+                while (keys.hasNext()) {
+                    val key = keys.next()
+                    keys.remove()
+                    handle(key)
+                }
+            }
+        } catch (e: ClosedSelectorException) {
+            // stopped
+        } catch (e: IOException) {
+            logger.error("Event loop $name failed, its connections are closed.", e)
+        } finally {
+            closeAll()
+        }
+    }
+
+    private fun handle(key: SelectionKey) {
+        val conn = key.attachment() as NioConnection
+        try {
+            if (key.isValid && key.isReadable) conn.onReadable(readBuf)
+            if (key.isValid && key.isWritable) conn.onWritable()
+        } catch (e: Exception) {
+            logger.error("Error when serving client connection, closing it.", e)
+            conn.close()
+        }
+    }
+
+    private fun runTasks() {
+        while (true) {
+            val task = tasks.poll() ?: return
+            try {
+                task.run()
+            } catch (e: Exception) {
+                logger.error("Event loop task failed, ignored...", e)
+            }
+        }
+    }
+
+    private fun closeAll() {
+        runCatching {
+            selector.keys().forEach { (it.attachment() as NioConnection).close() }
+            selector.close()
+        }.onFailure { logger.warn("Closing event loop $name error, ignored...", it) }
+        BufferPool.global.release(readBuf)
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.channels.AsynchronousCloseException
+import java.nio.channels.ServerSocketChannel
+import java.util.concurrent.Executor
+
+/**
+ * The selector-based transport: an acceptor thread distributes connections over a small number of event loops, which only hand
+ * fully-framed requests to the worker stage.
+ *
+ * An alternative to the thread-per-connection accept loop in [io.github.rfc3507.server.Server], selected by the
+ * 'icap.server.transport' option.
+ *
+ * @author pf-miles
+ *
+ * @property port the listening port
+ * @property workers the shared worker pool, processing framed requests
+ * @property loopCount the count of event loop threads
+ * @property idleTimeoutMillis how long a persistent connection could stay idle between requests
+ * @property maxHeadSize the max size in bytes of icap request heads
+ * @property socketOptions the options of the listening socket and accepted connections, connections are read into the shared
+ * buffer of their event loops instead of buffers of their own
+ * @property admission bounds the count of connections served at once
+ * @property lanes the worker stage, the shared pool only by default
+ */
+internal class NioTransport(
+    private val port: Int,
+    private val workers: Executor,
+    private val loopCount: Int,
+    private val idleTimeoutMillis: Long,
+    private val maxHeadSize: Int,
+    private val socketOptions: SocketOptions = SocketOptions.configured(),
+    private val admission: AdmissionControl = AdmissionControl.configured(),
+    private val lanes: WorkerLanes = WorkerLanes(workers)
+) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(NioTransport::class.java)
+    }
+
+    private lateinit var serverChannel: ServerSocketChannel
+    private lateinit var loops: List<NioEventLoop>
+
+    /**
+     * bind the listening port and start the acceptor and event loop threads
+     */
+    fun start() {
+        serverChannel = ServerSocketChannel.open()
+        socketOptions.applyTo(serverChannel.socket())
+        serverChannel.socket().bind(InetSocketAddress(port), admission.acceptBacklog)
+        val idleCheckInterval = minOf(1000L, maxOf(1L, idleTimeoutMillis / 2))
+        loops = (0 until maxOf(1, loopCount)).map { NioEventLoop("icap-server-nio-loop-$it", idleCheckInterval) }
+        loops.forEach { Thread(it, it.name).start() }
+        Thread(this::accept, "icap-server-nio-acceptor").start()
+        logger.info("[ICAP-SERVER] Listening on port $port with ${loops.size} nio event loops")
+    }
+
+    fun stop() {
+        runCatching { serverChannel.close() }.onFailure { logger.error("Error when closing the server channel.", it) }
+        loops.forEach { it.shutdown() }
+        lanes.shutdown()
+    }
+
+    private fun accept() {
+        var next = 0
+        while (true) {
+            // a slot is taken before accepting, so clients queue in the accept backlog while all are taken
+            val admitted = try {
+                admission.admit()
+            } catch (e: InterruptedException) {
+                logger.info("Acceptor interrupted, it will exit.")
+                break
+            }
+            val channel = try {
+                serverChannel.accept()
+            } catch (e: AsynchronousCloseException) {
+                logger.info("Server channel closed, acceptor will exit.")
+                break
+            } catch (e: IOException) {
+                if (admitted) admission.release()
+                if (!serverChannel.isOpen) break
+                logger.error("Error when accepting incoming connection, ignored...", e)
+                continue
+            }
+            logger.info("[ICAP-SERVER] Connection received!")
+            if (!admitted && !admission.tryAdmit()) {
+                // still in blocking mode, the rejection is written directly
+                admission.reject(channel.socket())
+                continue
+            }
+            try {
+                socketOptions.applyTo(channel.socket())
+            } catch (e: IOException) {
+                logger.error("Setting socket options failed, connection dropped.", e)
+                runCatching { channel.close() }
+                admission.release()
+                continue
+            }
+            val loop = loops[next]
+            next = (next + 1) % loops.size
+            val conn = NioConnection(channel, loop, lanes, socketOptions.readTimeoutMillis.toLong(), idleTimeoutMillis, maxHeadSize,
+                admission::release)
+            loop.execute {
+                try {
+                    conn.register()
+                } catch (e: IOException) {
+                    logger.error("Registering client connection failed, connection dropped.", e)
+                    conn.close()
+                }
+            }
+        }
+    }
+}
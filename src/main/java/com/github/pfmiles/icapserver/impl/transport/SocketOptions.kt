@@ -0,0 +1,64 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import com.github.pfmiles.icapserver.impl.Constants
+import com.github.pfmiles.icapserver.impl.Utils
+import java.io.IOException
+import java.net.ServerSocket
+import java.net.Socket
+
+/**
+ * The socket level options of client connections, shared by both transports.
+ *
+ * @author pf-miles
+ *
+ * @property tcpNoDelay whether nagle's algorithm is disabled, responses are then only sent at the flush points of the handler
+ * @property receiveBufferSize SO_RCVBUF in bytes, 0 keeps the os default
+ * @property sendBufferSize SO_SNDBUF in bytes, 0 keeps the os default
+ * @property readBufferSize size of the buffer a connection is read into
+ * @property writeBufferSize size of the buffer responses are gathered in before written to a connection
+ * @property readTimeoutMillis how long a started request could wait for more of its data
+ */
+internal class SocketOptions(
+    val tcpNoDelay: Boolean,
+    val receiveBufferSize: Int,
+    val sendBufferSize: Int,
+    val readBufferSize: Int,
+    val writeBufferSize: Int,
+    val readTimeoutMillis: Int
+) {
+    companion object {
+        /**
+         * the options as configured
+         */
+        @JvmStatic
+        fun configured(): SocketOptions = SocketOptions(
+            opt(Constants.TCP_NODELAY_ENV_VAR, Constants.TCP_NODELAY_PROP_VAR, Constants.DFT_TCP_NODELAY).toBoolean(),
+            opt(Constants.SO_RCVBUF_ENV_VAR, Constants.SO_RCVBUF_PROP_VAR, Constants.DFT_SO_RCVBUF).toInt(),
+            opt(Constants.SO_SNDBUF_ENV_VAR, Constants.SO_SNDBUF_PROP_VAR, Constants.DFT_SO_SNDBUF).toInt(),
+            opt(Constants.SOCKET_READ_BUFFER_ENV_VAR, Constants.SOCKET_READ_BUFFER_PROP_VAR, Constants.DFT_SOCKET_READ_BUFFER).toInt(),
+            opt(Constants.SOCKET_WRITE_BUFFER_ENV_VAR, Constants.SOCKET_WRITE_BUFFER_PROP_VAR, Constants.DFT_SOCKET_WRITE_BUFFER).toInt(),
+            opt(Constants.READ_TIMEOUT_ENV_VAR, Constants.READ_TIMEOUT_PROP_VAR, Constants.DFT_READ_TIMEOUT).toInt()
+        )
+
+        private fun opt(env: String, prop: String, dft: String): String = Utils.optsInOrDefault(env, prop, dft).trim()
+    }
+
+    init {
+        require(readBufferSize > 0 && writeBufferSize > 0) { "Socket read and write buffer sizes must be positive." }
+    }
+
+    /**
+     * set on the listening socket before it's bound, so that accepted connections could negotiate a tcp window that large
+     */
+    @Throws(IOException::class)
+    fun applyTo(serverSocket: ServerSocket) {
+        if (receiveBufferSize > 0) serverSocket.receiveBufferSize = receiveBufferSize
+    }
+
+    @Throws(IOException::class)
+    fun applyTo(socket: Socket) {
+        socket.tcpNoDelay = tcpNoDelay
+        if (receiveBufferSize > 0) socket.receiveBufferSize = receiveBufferSize
+        if (sendBufferSize > 0) socket.sendBufferSize = sendBufferSize
+    }
+}
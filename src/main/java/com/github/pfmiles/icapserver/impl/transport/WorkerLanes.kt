@@ -0,0 +1,193 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import com.github.pfmiles.icapserver.impl.Constants
+import com.github.pfmiles.icapserver.impl.Metrics
+import com.github.pfmiles.icapserver.impl.Utils
+import com.github.pfmiles.icapserver.impl.module.RouteTable
+import com.github.pfmiles.icapserver.impl.protocol.IcapRequestHead
+import org.slf4j.LoggerFactory
+import java.nio.ByteBuffer
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The worker stage of the nio transport, split into lanes so that a burst of slow requests on one endpoint could not starve the
+ * others: endpoints given workers of their own are served on their own pools, OPTIONS and body-less requests on a fast lane, and
+ * the rest on the shared pool.
+ *
+ * The lanes only bound the threads of their endpoints, their queues are left unbounded since a connection has at most one request
+ * in the worker stage at a time, and connections are already bounded by [AdmissionControl].
+ *
+ * @author pf-miles
+ *
+ * @property shared serves the endpoints without workers of their own
+ * @property fastLane serves OPTIONS and 'null-body' requests, the shared pool if null
+ * @property services the pools of the endpoints with workers of their own, by service name in lower case
+ */
+internal class WorkerLanes(
+    private val shared: Executor,
+    private val fastLane: ExecutorService? = null,
+    private val services: Map<String, ExecutorService> = emptyMap()
+) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(WorkerLanes::class.java)
+
+        private const val CR = '\r'.code.toByte()
+        private const val LF = '\n'.code.toByte()
+        private const val SP = ' '.code.toByte()
+        private const val HT = '\t'.code.toByte()
+        private const val COLON = ':'.code.toByte()
+        private const val SLASH = '/'.code.toByte()
+        private const val QUESTION = '?'.code.toByte()
+
+        /**
+         * the lanes as configured, endpoints get the workers declared by their modules unless overridden by the
+         * 'icap.server.service.workers' option
+         *
+         * @param shared the shared worker pool
+         * @param routes the served endpoints
+         */
+        @JvmStatic
+        fun configured(shared: Executor, routes: RouteTable): WorkerLanes {
+            val sizes = LinkedHashMap<String, Int>()
+            routes.all.forEach { if (it.workers > 0) sizes[it.service] = it.workers }
+            parseServiceWorkers(Utils.optsInOrDefault(Constants.SERVICE_WORKERS_ENV_VAR, Constants.SERVICE_WORKERS_PROP_VAR,
+                Constants.DFT_SERVICE_WORKERS)).forEach { (service, size) ->
+                if (routes.route(service) == null) logger.warn("Workers configured for endpoint: /$service, which is not served.")
+                if (size > 0) sizes[service] = size else sizes.remove(service)
+            }
+            val fastLaneSize = Utils.optsInOrDefault(Constants.FAST_LANE_WORKERS_ENV_VAR, Constants.FAST_LANE_WORKERS_PROP_VAR,
+                Constants.DFT_FAST_LANE_WORKERS).trim().toInt()
+            val lanes = WorkerLanes(shared, if (fastLaneSize > 0) newLane("fast", fastLaneSize) else null,
+                sizes.mapValues { (service, size) -> newLane(service, size) })
+            logger.info("[ICAP-SERVER] Worker lanes: fast lane of $fastLaneSize threads" +
+                    sizes.entries.joinToString("") { ", /${it.key} of ${it.value} threads" })
+            return lanes
+        }
+
+        /**
+         * parse the 'service=count' pairs of the 'icap.server.service.workers' option
+         *
+         * @return worker counts by service name in lower case
+         */
+        fun parseServiceWorkers(spec: String): Map<String, Int> {
+            val ret = LinkedHashMap<String, Int>()
+            spec.split(',').map { it.trim() }.filter { it.isNotEmpty() }.forEach { pair ->
+                val eq = pair.indexOf('=')
+                val size = if (eq > 0) pair.substring(eq + 1).trim().toIntOrNull() else null
+                require(size != null && size >= 0) { "Malformed service workers: '$pair', 'service=count' expected." }
+                ret[pair.substring(0, eq).trim().removePrefix("/").lowercase()] = size
+            }
+            return ret
+        }
+
+        /**
+         * a bounded pool of platform threads, which time out when idle
+         *
+         * @param name names the threads and the queue size gauge of the lane
+         */
+        fun newLane(name: String, size: Int): ExecutorService {
+            val seq = AtomicLong()
+            val pool = ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS, LinkedBlockingQueue()) { r ->
+                Thread(r, "icap-server-$name-worker-" + seq.getAndIncrement())
+            }
+            pool.allowCoreThreadTimeOut(true)
+            Metrics.gauge("lanes.$name.queued") { pool.queue.size.toLong() }
+            return pool
+        }
+
+        // the index of the byte within the range, the end of the range if absent
+        private fun indexOf(buf: ByteBuffer, b: Byte, from: Int, to: Int): Int {
+            for (i in from until to) if (buf.get(i) == b) return i
+            return to
+        }
+
+        // whether the range holds the ascii string, ignoring case
+        private fun regionMatches(buf: ByteBuffer, from: Int, to: Int, s: String): Boolean {
+            if (to - from != s.length) return false
+            for (j in s.indices) if (lower(buf.get(from + j).toInt() and 0xFF) != lower(s[j].code)) return false
+            return true
+        }
+
+        // whether the range contains the ascii string, ignoring case
+        private fun contains(buf: ByteBuffer, from: Int, to: Int, s: String): Boolean {
+            for (i in from..to - s.length) if (regionMatches(buf, i, i + s.length, s)) return true
+            return false
+        }
+
+        private fun lower(c: Int) = if (c in 'A'.code..'Z'.code) c + 32 else c
+    }
+
+    /**
+     * the lane serving the request, classified by its head
+     *
+     * @param head the icap request head, null if it could not be parsed
+     */
+    fun laneOf(head: IcapRequestHead?): Executor {
+        if (head == null) return shared
+        if (fastLane != null && (head.method == "OPTIONS" || head.header("Encapsulated")?.contains("null-body", ignoreCase = true) == true)) {
+            return fastLane
+        }
+        if (services.isEmpty()) return shared
+        val path = head.servicePath() ?: return shared
+        val query = path.indexOf('?')
+        return services[(if (query < 0) path else path.substring(0, query)).lowercase()] ?: shared
+    }
+
+    /**
+     * the lane serving the request at the position of the buffer, classified in place: only the request line and the
+     * 'Encapsulated' header are scanned, nothing is copied or parsed into strings, the frames being pooled direct buffers
+     *
+     * @param frame a buffer starting with the whole head of an icap request, e.g. the first frame of the request
+     */
+    fun laneOf(frame: ByteBuffer): Executor {
+        if (fastLane == null && services.isEmpty()) return shared
+        val start = frame.position()
+        val limit = frame.limit()
+        // request line: method SP uri SP version
+        val lineEnd = indexOf(frame, CR, start, limit)
+        val sp1 = indexOf(frame, SP, start, lineEnd)
+        val sp2 = indexOf(frame, SP, sp1 + 1, lineEnd)
+        if (sp1 == start || sp2 >= lineEnd) return shared
+        if (fastLane != null && (regionMatches(frame, start, sp1, "OPTIONS") || nullBody(frame, lineEnd, limit))) return fastLane
+        if (services.isEmpty()) return shared
+        // the service path of an icap uri, up to the query string
+        if (sp2 - sp1 - 1 < 7 || !regionMatches(frame, sp1 + 1, sp1 + 8, "icap://")) return shared
+        val pathStart = indexOf(frame, SLASH, sp1 + 8, sp2) + 1
+        if (pathStart > sp2) return shared
+        val pathEnd = indexOf(frame, QUESTION, pathStart, sp2)
+        for ((service, lane) in services) if (regionMatches(frame, pathStart, pathEnd, service)) return lane
+        return shared
+    }
+
+    // whether the 'Encapsulated' header among the header lines from the end of the request line declares a 'null-body'
+    private fun nullBody(frame: ByteBuffer, from: Int, limit: Int): Boolean {
+        var lineStart = from
+        while (lineStart < limit) {
+            // past the CRLF ending the previous line
+            if (frame.get(lineStart) == CR) lineStart++
+            if (lineStart < limit && frame.get(lineStart) == LF) lineStart++
+            // the empty line ending the head
+            if (lineStart >= limit || frame.get(lineStart) == CR) return false
+            val lineEnd = indexOf(frame, CR, lineStart, limit)
+            val colon = indexOf(frame, COLON, lineStart, lineEnd)
+            var nameEnd = colon
+            while (nameEnd > lineStart && (frame.get(nameEnd - 1) == SP || frame.get(nameEnd - 1) == HT)) nameEnd--
+            if (colon < lineEnd && regionMatches(frame, lineStart, nameEnd, "Encapsulated")) return contains(frame, colon + 1, lineEnd, "null-body")
+            lineStart = lineEnd
+        }
+        return false
+    }
+
+    /**
+     * stop the dedicated lanes, the shared pool is left to its owner
+     */
+    fun shutdown() {
+        fastLane?.shutdown()
+        services.values.forEach { it.shutdown() }
+    }
+}
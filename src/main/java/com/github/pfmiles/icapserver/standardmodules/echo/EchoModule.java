@@ -0,0 +1,7 @@
+package com.github.pfmiles.icapserver.standardmodules.echo;
+
+import com.github.pfmiles.icapserver.Module;
+
+@Module("/echo")
+public class EchoModule {
+}
@@ -0,0 +1,7 @@
+package com.github.pfmiles.icapserver.standardmodules.info;
+
+import com.github.pfmiles.icapserver.Module;
+
+@Module(value = "/info", methods = "RESPMOD")
+public class InfoModule {
+}
@@ -1,6 +1,82 @@
 package com.github.pfmiles.icapserver.standardmodules.msgdump
 
 import com.github.pfmiles.icapserver.Module
+import com.github.pfmiles.icapserver.impl.module.ModuleHandler
+import com.github.pfmiles.icapserver.impl.protocol.Chunk
+import com.github.pfmiles.icapserver.impl.protocol.IcapRequest
+import com.github.pfmiles.icapserver.impl.protocol.IcapResponse
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayOutputStream
+import java.util.Base64
+import java.util.concurrent.CompletableFuture
 
+/**
+ * Dumps the encapsulated messages to the 'msgDumper' logger, leaving them unmodified.
+ *
+ * The body is relayed back chunk by chunk as it's read, only its beginning is kept for the dump.
+ *
+ * @author pf-miles
+ */
 @Module("/msg-dump")
-class MessageDumpModule {}
\ No newline at end of file
+internal class MessageDumpModule : ModuleHandler {
+
+    private companion object {
+        val msgDumper = LoggerFactory.getLogger("msgDumper")
+
+        // how much of a body is dumped
+        const val MAX_DUMP_BODY_SIZE = 64 * 1024
+    }
+
+    override fun handle(request: IcapRequest): CompletableFuture<IcapResponse> {
+        val dump = Dump(request)
+        val body = request.httpBodyChunks
+
+        val response = IcapResponse(request)
+        if (request.icapReqHeadersMap["Allow"]?.split(',')?.any { it.trim() == "204" } == true) {
+            body?.forEach { dump.keep(it) }
+            dump.log()
+            response.statusLine = "ICAP/1.0 204 No Content"
+            return CompletableFuture.completedFuture(response)
+        }
+        // sent back as it is
+        response.statusLine = "ICAP/1.0 200 OK"
+        if (request.httpRespHeaders == null) {
+            response.httpReqHeadersStr = request.httpReqHeadersStr
+        } else {
+            response.httpRespHeadersStr = request.httpRespHeadersStr
+        }
+        if (body == null) {
+            dump.log()
+        } else {
+            // dumped once the final chunk is relayed
+            response.httpBodyChunks = body.asSequence().onEach {
+                dump.keep(it)
+                if (it.size() == 0) dump.log()
+            }.iterator()
+        }
+        return CompletableFuture.completedFuture(response)
+    }
+
+    private class Dump(private val request: IcapRequest) {
+        private val kept = ByteArrayOutputStream()
+        private var size = 0L
+
+        fun keep(chunk: Chunk) {
+            size += chunk.size()
+            val n = minOf(chunk.size(), MAX_DUMP_BODY_SIZE - kept.size())
+            if (n > 0) kept.write(chunk.content, 0, n)
+        }
+
+        fun log() {
+            if (!msgDumper.isInfoEnabled) return
+            val dump = StringBuilder(request.requestLine).append('\n')
+            request.httpReqHeadersStr?.let { dump.append(it) }
+            request.httpRespHeadersStr?.let { dump.append(it) }
+            if (size > 0) {
+                dump.append(Base64.getEncoder().encodeToString(kept.toByteArray()))
+                if (size > kept.size()) dump.append("...($size bytes in total)")
+            }
+            msgDumper.info(dump.toString())
+        }
+    }
+}
@@ -2,6 +2,6 @@ package com.github.pfmiles.icapserver.standardmodules.windowsdefender;
 
 import com.github.pfmiles.icapserver.Module;
 
-@Module("/virus-scan")
+@Module(value = "/virus_scan", messagePreview = 4096, workers = 32)
 public class WindowsDefenderModule {
 }
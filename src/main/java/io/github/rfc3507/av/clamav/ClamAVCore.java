@@ -38,6 +38,40 @@ public class ClamAVCore {
 
 	}
 
+	/**
+	 * Scans content which is already in a file, e.g. a body spilled to disk, without copying it.
+	 */
+	public ClamAVResponse checkThreat(File file)
+			throws ClamAVException {
+
+		return scanContent(file);
+
+	}
+
+	/**
+	 * The version of clamscan and its signature database, e.g. 'ClamAV 1.0.1/26961/Mon Jul 10 07:28:54 2023'.
+	 */
+	public String signatureVersion() throws ClamAVException {
+
+		final String testMode = System.getProperty("testMode");
+		if ("true".equals(testMode)) {
+			return "ClamAV test";
+		}
+
+		final Process process;
+		final ByteArrayOutputStream response = new ByteArrayOutputStream();
+		try {
+			process = Runtime.getRuntime().exec(new String[] { "/usr/bin/clamscan", "--version" });
+			IOUtils.copy(process.getInputStream(), response);
+			process.waitFor();
+		} catch (Exception e) {
+			throw new ClamAVException(e.getMessage());
+		}
+
+		return new String(response.toByteArray(), StandardCharsets.UTF_8).trim();
+
+	}
+
 	private File saveContent(byte[] content) throws ClamAVException {
 
 		final File workDir = new File(System.getProperty("java.io.tmpdir"), getId());
@@ -57,9 +91,9 @@ public class ClamAVCore {
 	}
 
 	private ClamAVResponse scanContent(File file) throws ClamAVException {
-		final String path = file.getParent();
+		final String path = file.getPath();
 
-		logger.info("Scanning file: " + path + "/" + file.getName() + "...");
+		logger.info("Scanning file: " + path + "...");
 
 		final String testMode = System.getProperty("testMode");
 		final String[] command = "true".equals(testMode) 
@@ -0,0 +1,302 @@
+package io.github.rfc3507.av.clamav;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans content through a running clamd daemon, which keeps the signature database loaded,
+ * instead of forking a clamscan process per request.
+ *
+ * Content is sent with the INSTREAM command over IDSESSION connections, which are kept in a
+ * bounded pool and reused across scans. Each call is bounded by a timeout, after which its
+ * connection is closed.
+ *
+ * The address is either 'host:port' or 'unix:/path/to/clamd.sock', unix sockets require java 16+.
+ */
+public class ClamdClient implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ClamdClient.class);
+
+	// the size of the INSTREAM chunks sent
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	// closes the connections of the calls which time out
+	private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread t = new Thread(r, "icap-server-clamd-watchdog");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final String address;
+	private final int timeoutMillis;
+
+	// bounds the count of connections, idle or in use
+	private final Semaphore permits;
+	private final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+	private volatile boolean closed = false;
+
+	public ClamdClient(String address, int poolSize, int timeoutMillis) {
+		this.address = address;
+		this.timeoutMillis = timeoutMillis;
+		this.permits = new Semaphore(Math.max(1, poolSize));
+	}
+
+	/**
+	 * @return 'PONG' when clamd is alive
+	 */
+	public String ping() throws ClamAVException {
+		return call("PING", null);
+	}
+
+	/**
+	 * @return the clamd version and its signature database version, e.g. 'ClamAV 1.0.1/26961/Mon Jul 10 07:28:54 2023'
+	 */
+	public String version() throws ClamAVException {
+		return call("VERSION", null);
+	}
+
+	public ClamAVResponse checkThreat(File file) throws ClamAVException {
+		return parseScanReply(call("INSTREAM", () -> new FileInputStream(file)));
+	}
+
+	public ClamAVResponse checkThreat(byte[] content) throws ClamAVException {
+		return parseScanReply(call("INSTREAM", () -> new ByteArrayInputStream(content)));
+	}
+
+	/**
+	 * @param content opens the content to scan, called again when the call is retried over a new connection
+	 */
+	public ClamAVResponse checkThreat(Content content) throws ClamAVException {
+		return parseScanReply(call("INSTREAM", content));
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		Connection conn;
+		while ((conn = idle.pollFirst()) != null) {
+			conn.end();
+		}
+	}
+
+	// 'stream: OK' or 'stream: Eicar-Signature FOUND'
+	static ClamAVResponse parseScanReply(String reply) throws ClamAVException {
+		final ClamAVResponse response = new ClamAVResponse();
+		if (reply.endsWith(" FOUND")) {
+			final String threat = reply.substring(0, reply.length() - " FOUND".length());
+			final int colon = threat.indexOf(": ");
+			response.setThreat(colon >= 0 ? threat.substring(colon + 2) : threat);
+		} else if (!reply.endsWith("OK")) {
+			throw new ClamAVException("Unexpected clamd reply: " + reply);
+		}
+		return response;
+	}
+
+	private String call(String command, Content content) throws ClamAVException {
+		for (int attempt = 0; ; attempt++) {
+			final Connection conn = acquire();
+			final boolean reused = conn.used;
+			final ScheduledFuture<?> alarm = watchdog.schedule(conn::abort, timeoutMillis, TimeUnit.MILLISECONDS);
+			boolean reusable = false;
+			try {
+				final String reply = conn.send(command, content);
+				if (reply.endsWith("ERROR")) {
+					throw new ClamAVException("clamd error: " + reply);
+				}
+				reusable = true;
+				return reply;
+			} catch (IOException e) {
+				if (conn.aborted) {
+					throw new ClamAVException("clamd call timed out after " + timeoutMillis + "ms");
+				}
+				if (reused && attempt == 0) {
+					// the pooled session may have been closed by clamd in the meantime, e.g. by its 'IdleTimeout'
+					logger.debug("Pooled clamd connection failed, retrying with a new one.", e);
+					continue;
+				}
+				throw new ClamAVException("clamd call failed: " + e.getMessage());
+			} finally {
+				alarm.cancel(false);
+				release(conn, reusable);
+			}
+		}
+	}
+
+	private Connection acquire() throws ClamAVException {
+		if (closed) {
+			throw new ClamAVException("clamd client closed");
+		}
+		try {
+			if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new ClamAVException("No clamd connection available within " + timeoutMillis + "ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ClamAVException("Interrupted when waiting for a clamd connection");
+		}
+		final Connection pooled = idle.pollFirst();
+		if (pooled != null) {
+			return pooled;
+		}
+		try {
+			return new Connection(address, timeoutMillis);
+		} catch (IOException e) {
+			permits.release();
+			throw new ClamAVException("Connecting clamd at " + address + " failed: " + e.getMessage());
+		}
+	}
+
+	private void release(Connection conn, boolean reusable) {
+		if (reusable && !closed) {
+			idle.offerFirst(conn);
+		} else {
+			conn.abort();
+		}
+		permits.release();
+	}
+
+	/**
+	 * The content to scan, opened again when a call is retried.
+	 */
+	public interface Content {
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * An IDSESSION connection, the replies are prefixed with the sequence number of their commands.
+	 */
+	private static final class Connection {
+
+		private final Closeable channel;
+		private final InputStream in;
+		private final OutputStream out;
+
+		private int nextId = 1;
+		private boolean used = false;
+		private volatile boolean aborted = false;
+
+		Connection(String address, int timeoutMillis) throws IOException {
+			if (address.startsWith("unix:")) {
+				final SocketChannel ch = SocketChannel.open(unixAddress(address.substring("unix:".length())));
+				this.channel = ch;
+				this.in = new BufferedInputStream(Channels.newInputStream(ch));
+				this.out = new BufferedOutputStream(Channels.newOutputStream(ch), CHUNK_SIZE + 4);
+			} else {
+				final int colon = address.lastIndexOf(':');
+				final Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))), timeoutMillis);
+				} catch (IOException e) {
+					socket.close();
+					throw e;
+				}
+				socket.setTcpNoDelay(true);
+				this.channel = socket;
+				this.in = new BufferedInputStream(socket.getInputStream());
+				this.out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 4);
+			}
+			out.write("zIDSESSION\0".getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+		}
+
+		String send(String command, Content content) throws IOException {
+			used = true;
+			final int id = nextId++;
+			out.write(("z" + command + "\0").getBytes(StandardCharsets.US_ASCII));
+			if (content != null) {
+				// chunks prefixed with their lengths, terminated by a zero length
+				try (InputStream data = content.open()) {
+					final byte[] buf = new byte[CHUNK_SIZE + 4];
+					int n;
+					while ((n = data.read(buf, 4, CHUNK_SIZE)) != -1) {
+						if (n == 0) {
+							continue;
+						}
+						buf[0] = (byte) (n >>> 24);
+						buf[1] = (byte) (n >>> 16);
+						buf[2] = (byte) (n >>> 8);
+						buf[3] = (byte) n;
+						out.write(buf, 0, n + 4);
+					}
+				}
+				out.write(new byte[4]);
+			}
+			out.flush();
+
+			final String reply = readReply();
+			final String prefix = id + ": ";
+			if (!reply.startsWith(prefix)) {
+				throw new IOException("Unexpected clamd reply: " + reply);
+			}
+			return reply.substring(prefix.length());
+		}
+
+		private String readReply() throws IOException {
+			final ByteArrayOutputStream reply = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) != 0) {
+				if (b == -1) {
+					throw new EOFException("clamd closed the connection");
+				}
+				reply.write(b);
+			}
+			return new String(reply.toByteArray(), StandardCharsets.US_ASCII).trim();
+		}
+
+		// end the session politely
+		void end() {
+			try {
+				out.write("zEND\0".getBytes(StandardCharsets.US_ASCII));
+				out.flush();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			abort();
+		}
+
+		void abort() {
+			aborted = true;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.warn("Closing clamd connection error, ignored...", e);
+			}
+		}
+
+		// java.net.UnixDomainSocketAddress is only available since java 16
+		private static SocketAddress unixAddress(String path) throws IOException {
+			try {
+				return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+			} catch (ReflectiveOperationException e) {
+				throw new IOException("Unix domain sockets are not supported by this jvm, java 16+ required", e);
+			}
+		}
+	}
+
+}
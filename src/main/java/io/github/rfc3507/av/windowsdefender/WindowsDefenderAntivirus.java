@@ -30,6 +30,16 @@ public class WindowsDefenderAntivirus {
 		
 	}
 	
+	/**
+	 * Scans content which is already in a file, e.g. a body spilled to disk, without copying it.
+	 */
+	public WindowsDefenderResponse checkThreat(File file) 
+			throws WindowsDefenderException {
+		
+		return scanContent(file);
+		
+	}
+	
 	private WindowsDefenderResponse scanContent(File file) throws WindowsDefenderException {
 		
 		String programFiles = System.getenv("ProgramFiles");
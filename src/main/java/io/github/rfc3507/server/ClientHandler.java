@@ -1,33 +1,66 @@
 package io.github.rfc3507.server;
 
 import com.github.pfmiles.icapserver.impl.Constants;
+import com.github.pfmiles.icapserver.impl.Metrics;
 import com.github.pfmiles.icapserver.impl.Utils;
+import com.github.pfmiles.icapserver.impl.WorkerPools;
+import com.github.pfmiles.icapserver.impl.body.BodyStore;
+import com.github.pfmiles.icapserver.impl.module.ModuleDeadline;
+import com.github.pfmiles.icapserver.impl.module.ModuleHandler;
+import com.github.pfmiles.icapserver.impl.module.ModuleScanner;
+import com.github.pfmiles.icapserver.impl.module.Route;
+import com.github.pfmiles.icapserver.impl.module.RouteTable;
 import com.github.pfmiles.icapserver.impl.protocol.Chunk;
+import com.github.pfmiles.icapserver.impl.protocol.ChunkEncoder;
+import com.github.pfmiles.icapserver.impl.protocol.ChunkedBodyDecoder;
+import com.github.pfmiles.icapserver.impl.protocol.ChunkedOutputStream;
+import com.github.pfmiles.icapserver.impl.protocol.ConnectionOutputStream;
+import com.github.pfmiles.icapserver.impl.protocol.HttpDate;
+import com.github.pfmiles.icapserver.impl.protocol.EncapsulatedHeader;
+import com.github.pfmiles.icapserver.impl.protocol.HttpHeaders;
+import com.github.pfmiles.icapserver.impl.protocol.IcapBadRequestException;
+import com.github.pfmiles.icapserver.impl.protocol.IcapInputStream;
+import com.github.pfmiles.icapserver.impl.protocol.IcapRequest;
+import com.github.pfmiles.icapserver.impl.protocol.IcapRequestHead;
+import com.github.pfmiles.icapserver.impl.protocol.IcapResponse;
+import com.github.pfmiles.icapserver.impl.protocol.IcapStdMethod;
+import com.github.pfmiles.icapserver.impl.protocol.ResponseWriter;
+import com.github.pfmiles.icapserver.impl.protocol.StreamedBody;
+import com.github.pfmiles.icapserver.impl.scan.MediaSniffer;
+import com.github.pfmiles.icapserver.impl.scan.SignatureVersion;
+import com.github.pfmiles.icapserver.impl.scan.VerdictCache;
+import com.github.pfmiles.icapserver.impl.transport.SocketOptions;
 import io.github.rfc3507.av.clamav.ClamAVCore;
 import io.github.rfc3507.av.clamav.ClamAVResponse;
+import io.github.rfc3507.av.clamav.ClamdClient;
 import io.github.rfc3507.av.windowsdefender.WindowsDefenderAntivirus;
 import io.github.rfc3507.av.windowsdefender.WindowsDefenderResponse;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 public class ClientHandler implements Runnable {
 
@@ -35,12 +68,61 @@ public class ClientHandler implements Runnable {
     private static final Logger msgDumper = LoggerFactory.getLogger("msgDumper");
 
     private static final String serverName = Utils.INSTANCE.optsInOrDefault(Constants.SVR_NAME_ENV_VAR, Constants.SVR_NAME_PROPS_VAR, Constants.DFT_SVC_VAL);
-    private static final byte[] SERVICE_RESP_HEADER = ("Service: " + serverName + "\r\n").getBytes(StandardCharsets.UTF_8);
     private static final String SERVER_HEADER = "Server: " + serverName + "\r\n";
     private static final String VIA_HEADER = "Via: " + serverName + "\r\n";
 
     private static final String localIp = Constants.INSTANCE.getLOCAL_IP();
 
+    private static final int idleTimeoutMillis = Integer.parseInt(Utils.INSTANCE.optsInOrDefault(Constants.IDLE_TIMEOUT_ENV_VAR, Constants.IDLE_TIMEOUT_PROP_VAR, Constants.DFT_IDLE_TIMEOUT));
+    private static final SocketOptions socketOptions = SocketOptions.configured();
+    private static final long moduleTimeoutMillis = Long.parseLong(Utils.INSTANCE.optsInOrDefault(Constants.MODULE_TIMEOUT_ENV_VAR, Constants.MODULE_TIMEOUT_PROP_VAR, Constants.DFT_MODULE_TIMEOUT));
+    private static final int maxHeaderSize = Integer.parseInt(Utils.INSTANCE.optsInOrDefault(Constants.MAX_HEADER_SIZE_ENV_VAR, Constants.MAX_HEADER_SIZE_PROP_VAR, Constants.DFT_MAX_HEADER_SIZE));
+    // how much of a streamed body is kept for the message dump
+    private static final int MAX_DUMP_BODY_SIZE = 64 * 1024;
+    // max size of the body chunks handed to modules, the most of a body they are given at once
+    private static final int MODULE_BODY_PIECE_SIZE = 64 * 1024;
+    private static final long bodySpillThreshold = Long.parseLong(Utils.INSTANCE.optsInOrDefault(Constants.BODY_SPILL_THRESHOLD_ENV_VAR, Constants.BODY_SPILL_THRESHOLD_PROP_VAR, Constants.DFT_BODY_SPILL_THRESHOLD));
+    private static final File bodySpillDir = new File(Utils.INSTANCE.optsInOrDefault(Constants.BODY_SPILL_DIR_ENV_VAR, Constants.BODY_SPILL_DIR_PROP_VAR, Constants.INSTANCE.getDFT_BODY_SPILL_DIR()));
+    private static final boolean clamdBackend = "clamd".equalsIgnoreCase(Utils.INSTANCE.optsInOrDefault(Constants.CLAMAV_BACKEND_ENV_VAR, Constants.CLAMAV_BACKEND_PROP_VAR, Constants.DFT_CLAMAV_BACKEND));
+    private static final String SCAN_DIGEST_ALGORITHM = "SHA-256";
+    private static final long SIGNATURE_VERSION_REFRESH_MILLIS = 60 * 1000L;
+    private static final String serverVersion = Optional.ofNullable(ClientHandler.class.getPackage().getImplementationVersion()).orElse("");
+    private static final int optionsTtl = Integer.parseInt(Utils.INSTANCE.optsInOrDefault(Constants.OPTIONS_TTL_ENV_VAR, Constants.OPTIONS_TTL_PROP_VAR, Constants.DFT_OPTIONS_TTL));
+    // how much of a preview is needed to tell its media type
+    private static final int SNIFF_SIZE = 16;
+    // the services built into the handler, declared by the standard modules
+    private static final String INFO = "info";
+    private static final String ECHO = "echo";
+    private static final String VIRUS_SCAN = "virus_scan";
+    // the served endpoints, built from the scanned modules once
+    private static final RouteTable ROUTES = RouteTable.build(ModuleScanner.INSTANCE.scanForModules(),
+            new HashSet<>(Arrays.asList(INFO, ECHO, VIRUS_SCAN)));
+    // bodies of these declared content types are not scanned, once their previews turn out to be of the same media types
+    private static final String[] scanSkipTypes = Utils.INSTANCE.optsInOrDefault(Constants.SCAN_SKIP_TYPES_ENV_VAR, Constants.SCAN_SKIP_TYPES_PROP_VAR, Constants.DFT_SCAN_SKIP_TYPES).toLowerCase().split("\\s*,\\s*");
+    // enforced by the admission control of the transports
+    private static final int maxConnections = Integer.parseInt(Utils.INSTANCE.optsInOrDefault(Constants.MAX_CONNECTIONS_ENV_VAR, Constants.MAX_CONNECTIONS_PROP_VAR, Constants.DFT_MAX_CONNECTIONS).trim());
+    private static final int maxRequestsPerConnection = Integer.parseInt(Utils.INSTANCE.optsInOrDefault(Constants.MAX_CONN_REQUESTS_ENV_VAR, Constants.MAX_CONN_REQUESTS_PROP_VAR, Constants.DFT_MAX_CONN_REQUESTS));
+
+    // pre-encoded response templates
+    private static final byte[] STATUS_200 = "ICAP/1.0 200 OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STATUS_204 = "ICAP/1.0 204 No Content\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STATUS_400 = "ICAP/1.0 400 Bad request\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STATUS_404 = "ICAP/1.0 404 Service not found\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STATUS_405 = "ICAP/1.0 405 Method not allowed\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STATUS_413 = "ICAP/1.0 413 Request Entity Too Large\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STATUS_500 = "ICAP/1.0 500 Server Error\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTINUE = "ICAP/1.0 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DATE_HEADER = "Date: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SERVER_HEADER_BYTES = SERVER_HEADER.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes(StandardCharsets.US_ASCII);
+    // the 'Encapsulated' header and the end of the head
+    private static final byte[] NULL_BODY_END = "Encapsulated: null-body=0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OPT_BODY_END = "Encapsulated: opt-body=0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FINAL_CHUNK = ChunkEncoder.FINAL_CHUNK;
+    private static final Map<String, byte[]> OPTIONS_HEADERS = encodeOptionsHeaders();
+    // the 'ISTag' headers of the services, by service name
+    private static final Map<String, TagHeader> tagHeaders = new ConcurrentHashMap<>();
+
     // TODO methods may extend in future
     private static final String OPTIONS = "OPTIONS";
     private static final String REQMOD = "REQMOD";
@@ -48,33 +130,94 @@ public class ClientHandler implements Runnable {
 
     private final Socket socket;
 
-    private InputStream in;
+    private IcapInputStream in;
+    private ChunkedBodyDecoder chunkDecoder;
     private OutputStream out;
+    // assembles the response heads
+    private ResponseWriter resp;
+
+    // connection state
+    private int requestsServed = 0;
+    // SO_TIMEOUT currently set on the socket
+    private int socketTimeoutMillis = -1;
+    // the client has closed the connection
+    private boolean connectionEnded = false;
+    // the connection is going to be closed after the current response
+    private boolean closeConnection = false;
+
+    // per-request state, reset before each request of a persistent connection
+    private boolean requestStarted = false;
 
     private String methodInProgress = null;
+    private IcapRequestHead headInProgress = null;
+    private Route routeInProgress = null;
+    // the name of the routed endpoint, e.g. 'echo'
     private String serviceInProgress = null;
-
-    private String encapsulatedHeader = null;
+    // the answer of the module the request is dispatched to, until it's written out
+    private CompletableFuture<IcapResponse> moduleResponseInProgress = null;
+    // the body the module pulls from the connection, if any
+    private StreamedBody moduleBody = null;
+    // what the module has pulled of the body, kept until its answer is written out when '204 No Content' is not allowed
+    private BodyStore moduleBodyCopy = null;
+
+    private EncapsulatedHeader encapsulatedHeader = null;
     private String previewHeader = null;
+    // the client accepts '204 No Content' for unmodified messages
+    private boolean allow204 = false;
 
     private ByteArrayOutputStream httpRequestHeaders = null;
-    // TODO http req body is fully read in mem, should be streaming processed
-    private ByteArrayOutputStream httpRequestBody = null;
+    // the parsed view of the same headers, shared with the module handling the request
+    private HttpHeaders httpRequestHeaderView = null;
+    // large bodies are spilled to disk, closed after each request
+    private BodyStore httpRequestBody = null;
 
     private ByteArrayOutputStream httpResponseHeaders = null;
-    // TODO http resp body is fully read in mem, should be streaming processed
-    private ByteArrayOutputStream httpResponseBody = null;
+    private HttpHeaders httpResponseHeaderView = null;
+    private BodyStore httpResponseBody = null;
+
+    // notified when a request is answered on its preview, so the remaining body is not expected anymore
+    private Runnable previewAnsweredListener = null;
 
     public ClientHandler(Socket c) {
         this.socket = c;
     }
 
+    /**
+     * Handles requests over streams owned by a transport, e.g. the nio event loops, which is responsible for closing the connection.
+     */
+    public ClientHandler(InputStream in, OutputStream out) {
+        this.socket = null;
+        this.in = new IcapInputStream(in, maxHeaderSize);
+        this.chunkDecoder = new ChunkedBodyDecoder(this.in);
+        this.out = out;
+        this.resp = new ResponseWriter(out);
+    }
+
+    /**
+     * The served endpoints, e.g. for the transports to give them workers of their own.
+     */
+    static RouteTable routes() {
+        return ROUTES;
+    }
+
+    /**
+     * Set the listener notified when a request is answered on its preview, before the answer is written out, e.g. for the
+     * transports which frame the remaining body after '100 Continue'.
+     */
+    public void setPreviewAnsweredListener(Runnable previewAnsweredListener) {
+        this.previewAnsweredListener = previewAnsweredListener;
+    }
+
     @Override
     public void run() {
         try {
-            in = socket.getInputStream();
+            socketOptions.applyTo(socket);
+            in = new IcapInputStream(socket.getInputStream(), maxHeaderSize, socketOptions.getReadBufferSize());
+            chunkDecoder = new ChunkedBodyDecoder(in);
 //            out = new TeeOutputStream(socket.getOutputStream());
-            out = socket.getOutputStream();
+            // written to the socket only at the flush points, i.e. the end of each response, '100 Continue' and relayed chunks
+            out = new ConnectionOutputStream(socket.getOutputStream(), socketOptions.getWriteBufferSize());
+            resp = new ResponseWriter(out);
             handle();
             logger.info("Client request completed.");
         } catch (IOException e) {
@@ -86,145 +229,250 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    // serve requests over the persistent connection until it's closed by either side
     private void handle() throws IOException {
+        while (handleRequest()) {
+            logger.debug("Request completed, waiting for the next one on the persistent connection.");
+        }
+    }
 
-//        while (true) { // label: handleStart
+    /**
+     * Process the next request of the connection, waiting for the module answering it if any.
+     *
+     * @return whether the connection could be kept for further requests
+     */
+    public boolean handleRequest() throws IOException {
 
-        httpRequestHeaders = new ByteArrayOutputStream();
-        httpRequestBody = new ByteArrayOutputStream();
-        httpResponseHeaders = new ByteArrayOutputStream();
-        httpResponseBody = new ByteArrayOutputStream();
+        boolean keepAlive = startRequest();
+        if (moduleResponseInProgress == null) {
+            return keepAlive;
+        }
 
-        methodInProgress = null;
+        // the connection is owned by this thread anyway, the deadline bounds the wait
+        IcapResponse response = null;
+        Throwable failure = null;
+        try {
+            response = moduleResponseInProgress.join();
+        } catch (CompletionException | CancellationException e) {
+            failure = e;
+        }
+        return completeModuleRequest(response, failure);
+
+    }
+
+    /**
+     * Process the next request of the connection without waiting for the module answering it, used directly by transports which
+     * manage the connection themselves: the calling thread returns once the request is dispatched to the module, its answer is
+     * then written out on the given executor.
+     *
+     * @param executor where the module answer is written out
+     * @return whether the connection could be kept for further requests, once the response is written out
+     */
+    public CompletableFuture<Boolean> handleRequestAsync(Executor executor) throws IOException {
+
+        boolean keepAlive = startRequest();
+        if (moduleResponseInProgress == null) {
+            return CompletableFuture.completedFuture(keepAlive);
+        }
+        return moduleResponseInProgress.handleAsync(this::completeModuleRequest, executor);
+
+    }
+
+    // read and answer the request, up to its dispatch to a module if it's served by one
+    private boolean startRequest() throws IOException {
+
+        resetRequestState();
 
         try {
             handleIcapRequestHeaders();
+            if (connectionEnded) {
+                return false;
+            }
             if (methodInProgress != null) {
                 handleEncapsulatedMessage();
             }
             out.flush();
+        } catch (IcapBadRequestException e) {
+            logger.warn("Bad icap request received: " + e.getMessage());
+            requestStarted = true;
+            if (e.getStatus() == 413) {
+                sendRequestTooLarge(e.getMessage());
+            } else {
+                sendBadRequest(e.getMessage());
+            }
+            out.flush();
+        } catch (SocketTimeoutException e) {
+            if (!requestStarted && in.getBuffered() == 0) {
+                logger.info("Persistent connection idle for " + idleTimeoutMillis + "ms, closing it.");
+                return false;
+            }
+            logger.error("Timeout when reading icap request, process for this request terminated.", e);
+            sendServerError(e.getMessage());
+            out.flush();
         } catch (Exception e) {
             logger.error("Error when processing icap request, process for this request terminated.", e);
             sendServerError(e.getMessage());
+            out.flush();
+        } finally {
+            httpRequestBody.close();
+            httpResponseBody.close();
+            if (moduleResponseInProgress == null) {
+                releaseModuleBodyCopy();
+            }
         }
 
-//            if (OPTIONS.equals(methodInProgress)) { // TODO what if 'too many OPTIONS' attack?
-//                continue; // goto: handleStart
-//            }
-//            break;
-//        }
+        return !closeConnection;
 
     }
 
-    // processing icap-request related headers
-    private void handleIcapRequestHeaders() throws Exception {
-
-        ByteArrayOutputStream cache = new ByteArrayOutputStream();
+    private void resetRequestState() {
+        requestStarted = false;
 
-        // TODO: to detect the first CRLF, this logic requires a more elegant way, at least not to hang when malformed request received
-        int reader = -1;
-        while ((reader = in.read()) != -1) {
+        methodInProgress = null;
+        headInProgress = null;
+        routeInProgress = null;
+        serviceInProgress = null;
+        moduleResponseInProgress = null;
+        moduleBody = null;
+        moduleBodyCopy = null;
 
-            cache.write(reader);
+        encapsulatedHeader = null;
+        previewHeader = null;
+        allow204 = false;
 
-            byte[] memory = cache.toByteArray();
-            // CRLF encountered, analyze icap headers
-            if (memory.length >= 4) {
-                if (memory[memory.length - 4] == '\r'
-                        && memory[memory.length - 3] == '\n'
-                        && memory[memory.length - 2] == '\r'
-                        && memory[memory.length - 1] == '\n') {
+        httpRequestHeaders = new ByteArrayOutputStream();
+        httpRequestHeaderView = null;
+        httpRequestBody = new BodyStore(bodySpillThreshold, bodySpillDir);
+        httpResponseHeaders = new ByteArrayOutputStream();
+        httpResponseHeaderView = null;
+        httpResponseBody = new BodyStore(bodySpillThreshold, bodySpillDir);
 
-                    analyseIcapRequestHeader(memory);
-                    break;
+        icapThreatsHeader = new ByteArrayOutputStream();
+        threatName = null;
+    }
 
-                }
-            }
+    // processing icap-request related headers
+    private void handleIcapRequestHeaders() throws Exception {
 
+        IcapRequestHead head;
+        try {
+            // the waiting for the next request of a persistent connection is bounded by the idle timeout
+            setReadTimeout(idleTimeoutMillis);
+            head = in.readHead();
+        } catch (EOFException e) {
+            logger.warn("Client closed the connection in the middle of a request head, ignored...");
+            head = null;
         }
 
-    }
+        if (head == null) {
+            // the client closed the connection
+            connectionEnded = true;
+            closeConnection = true;
+            return;
+        }
 
-    // icap request headers processed, continue to process further REQMOD/RESPMOD request body
-    private void handleEncapsulatedMessage() throws Exception {
+        requestStarted = true;
+        // the rest of a started request is bounded by the read timeout
+        setReadTimeout(socketOptions.getReadTimeoutMillis());
+        analyseIcapRequestHeader(head);
 
-        extractEncapsulatedPayloads();
+    }
 
-        // OPTIONS is already handled in 'startHandleIcapRequest', so REQMOD/RESPMOD only here
-        if (REQMOD.equals(methodInProgress)) {
-            continueRequestModification();
-        } else if (RESPMOD.equals(methodInProgress)) {
-            continueResponseModification();
+    // only for the socket owned by this handler, the other transports bound their reads themselves
+    private void setReadTimeout(int timeoutMillis) throws IOException {
+        if (socket != null && timeoutMillis != socketTimeoutMillis) {
+            socket.setSoTimeout(timeoutMillis);
+            socketTimeoutMillis = timeoutMillis;
         }
-
     }
 
-    // parse the encapsulated http messages
-    private void extractEncapsulatedPayloads() throws Exception {
-
-        // the encapsulated http headers' size
-        int httpRequestHeaderSize = 0;
-        int httpResponseHeaderSize = 0;
-
-        String lastOffsetLabel = "";
-
-        int lastOffsetValue = 0;
+    // icap request headers processed, continue to process further REQMOD/RESPMOD request body
+    private void handleEncapsulatedMessage() throws Exception {
 
-        if (encapsulatedHeader != null) {
-            String[] encapsulatedValues = encapsulatedHeader.split(",");
+        String bodyLabel = extractEncapsulatedHeaders();
 
-            // compute encapsulated http headers' size in 'Encapsulated' header value, for example: 'req-hdr=0, res-hdr=822, res-body=1655'
-            for (String offset : encapsulatedValues) {
+        // modules pull the body from the connection themselves, as they go
+        if (routeInProgress != null && routeInProgress.getHandler() != null) {
+            if ("req-body".equals(bodyLabel) || "res-body".equals(bodyLabel)) {
+                moduleBody = new StreamedBody(chunkDecoder, previewHeader != null, MODULE_BODY_PIECE_SIZE, this::sendContinue);
+                if (!allow204) {
+                    // kept to be echoed, should the module answer '204 No Content' the client does not allow
+                    moduleBodyCopy = new BodyStore(bodySpillThreshold, bodySpillDir);
+                    moduleBody.setRetained(moduleBodyCopy);
+                }
+            }
+            continueModification();
+            return;
+        }
 
-                String[] offsetParser = offset.split("=");
+        // the echo service never modifies the message, it's not sent back when the client allows so
+        if (allow204 && ECHO.equals(serviceInProgress)) {
+            skipEcho(bodyLabel.endsWith("-body") && !"null-body".equals(bodyLabel));
+            return;
+        }
 
-                String offsetLabel = offsetParser[0].trim();
+        // the echo service relays the body as it arrives, instead of reading it in mem first
+        if (ECHO.equals(serviceInProgress)
+                && (REQMOD.equals(methodInProgress) && "req-body".equals(bodyLabel)
+                || RESPMOD.equals(methodInProgress) && "res-body".equals(bodyLabel))) {
+            streamEcho();
+            return;
+        }
 
-                int offsetValue = Integer.parseInt(offsetParser[1].trim());
+        // verdicts of the same content are cached by its digest, computed while the body is read
+        if (VIRUS_SCAN.equals(serviceInProgress)) {
+            httpRequestBody.trackDigest(SCAN_DIGEST_ALGORITHM);
+            httpResponseBody.trackDigest(SCAN_DIGEST_ALGORITHM);
+        }
 
-                switch (lastOffsetLabel) {
+        if ("req-body".equals(bodyLabel) && readBody(httpRequestBody)) {
+            return;
+        }
 
-                    case "req-hdr":
-                        httpRequestHeaderSize = (offsetValue - lastOffsetValue);
-                        break;
+        if ("res-body".equals(bodyLabel) && readBody(httpResponseBody)) {
+            return;
+        }
 
-                    case "res-hdr":
-                        httpResponseHeaderSize = (offsetValue - lastOffsetValue);
-                        break;
+        // OPTIONS is already handled in 'analyseIcapRequestHeader', so REQMOD/RESPMOD only here
+        if (!OPTIONS.equals(methodInProgress)) {
+            continueModification();
+        }
 
-                }
+    }
 
-                lastOffsetLabel = offsetLabel;
-                lastOffsetValue = offsetValue;
+    // read the encapsulated http headers, @return the label of the last 'Encapsulated' entry, telling which body follows
+    private String extractEncapsulatedHeaders() throws Exception {
 
-            }
+        if (encapsulatedHeader == null) {
+            return "";
         }
 
+        // the encapsulated http headers' size, by the offsets in 'Encapsulated' header value, for example: 'req-hdr=0, res-hdr=822, res-body=1655'
+        int httpRequestHeaderSize = encapsulatedHeader.getReqHdrSize();
+        int httpResponseHeaderSize = encapsulatedHeader.getResHdrSize();
+
         byte[] parseContent;
 
         if (httpRequestHeaderSize > 0) {
             parseContent = new byte[httpRequestHeaderSize];
             IOUtils.readFully(in, parseContent);
             httpRequestHeaders.write(parseContent);
+            httpRequestHeaderView = new HttpHeaders(parseContent);
         }
 
         if (httpResponseHeaderSize > 0) {
             parseContent = new byte[httpResponseHeaderSize];
             IOUtils.readFully(in, parseContent);
             httpResponseHeaders.write(parseContent);
+            httpResponseHeaderView = new HttpHeaders(parseContent);
         }
 
-        if ("req-body".equals(lastOffsetLabel)) {
-            readBody(httpRequestBody);
-        }
-
-        if ("res-body".equals(lastOffsetLabel)) {
-            readBody(httpResponseBody);
-        }
+        return encapsulatedHeader.getBodyLabel();
 
     }
 
-    private void readBody(OutputStream bodyData) throws Exception {
+    // @return true if the request has been answered on its preview, the remaining body is never sent by the client then
+    private boolean readBody(BodyStore bodyData) throws Exception {
 
         boolean terminateWhilePreview = false;
 
@@ -232,10 +480,12 @@ public class ClientHandler implements Runnable {
             /*
              * Read preview payload
              */
-            int expPreviewLength = Integer.parseInt(previewHeader);
             // actual preview data sent by client may be less than it claimed in the 'Preview' header
-            terminateWhilePreview = extractBody(bodyData, expPreviewLength);
+            terminateWhilePreview = chunkDecoder.decode(bodyData);
             if (!terminateWhilePreview) {
+                if (answerOnPreview(bodyData)) {
+                    return true;
+                }
                 sendContinue();
             }
         }
@@ -244,182 +494,104 @@ public class ClientHandler implements Runnable {
             /*
              * Read remaining body payload
              */
-            extractBody(bodyData, -1);
+            chunkDecoder.decode(bodyData);
         }
 
-    }
+        return false;
 
-    // @return whether the preview data is all the message body about
-    // TODO preview feature is not implemented
-    private boolean extractBody(OutputStream bodyData, int previewSize) throws Exception {
-
-        ByteArrayOutputStream backupDebug = new ByteArrayOutputStream();
-
-        // the hex representation of chunk size
-        StringBuilder chunkSizeHexStr = new StringBuilder();
-
-        int[] mark = new int[2];
-        Arrays.fill(mark, -1);
-
-        StringBuilder control = new StringBuilder();
-
-        // TODO the payload parsing progress need to be refactored
-        while (true) {
-
-            int nextChar = in.read();
-            shiftLeftByOne(mark);
-            mark[1] = nextChar;
-
-            backupDebug.write(nextChar);
+    }
 
-            control.append((char) nextChar);
+    // let the service decide on the preview whether the remaining body is needed, @return true if the request has been answered
+    private boolean answerOnPreview(BodyStore preview) throws IOException {
 
-            // try reading preview-specific 'ieof' chunk start
-            if (nextChar == ';') {
-                continue;
-            }
+        // only virus_scan skips media on purpose, the other built-in services need the whole body and modules decide on the streamed body themselves
+        if (!VIRUS_SCAN.equals(serviceInProgress) || !isSkippedMedia(preview)) {
+            return false;
+        }
 
-            if (nextChar == ' ' || nextChar == 'i') {
-                continue;
-            }
+        notifyPreviewAnswered();
+        // always allowed in response to a preview, no matter 'Allow: 204' is sent or not
+        sendNoContent();
+        return true;
 
-            if (nextChar == 'e') {
-                if (control.toString().equals("0; ie")) {
-                    continue;
-                }
-            }
+    }
 
-            if (nextChar == 'f') {
-                if (control.toString().equals("0; ieof")) {
-                    continue;
-                }
-            }
-            // try reading preview-specific 'ieof' chunk end
+    private void notifyPreviewAnswered() {
+        if (previewAnsweredListener != null) {
+            previewAnsweredListener.run();
+        }
+    }
 
-            if (nextChar == '\r') {
-                continue;
+    // whether the 'Allow' header value, e.g. '204, trailers', contains '204'
+    private static boolean allows204(String allow) {
+        if (allow == null) {
+            return false;
+        }
+        for (String token : allow.split(",")) {
+            if ("204".equals(token.trim())) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            // when a CRLF encountered
-            if (mark[0] == '\r' && mark[1] == '\n') {
-
-                if (control.toString().equals(Constants.INSTANCE.getIEOF_CHUNK_STR())) {
-                    return true;
-                }
-
-                if (control.toString().startsWith("0; ieof")) {
-                    continue;
-                }
-
-                if (chunkSizeHexStr.length() == 0) {
-                    return false;
-                }
-
-                // read the data chunk according to the chunk size
-                int amountToRead = Integer.parseInt(chunkSizeHexStr.toString(), 16);
-                if (amountToRead > 0) {
-                    byte[] cache = new byte[amountToRead];
-                    IOUtils.readFully(in, cache);
-                    bodyData.write(cache);
-                    backupDebug.write(cache);
-                }
-
-                // consume the CRLF after: a chunk of data/last empty chunk
-                int cr = -1, lf = -1;
-                cr = in.read();
-                lf = in.read();
-                backupDebug.write(cr);
-                backupDebug.write(lf);
-
-                if (cr != '\r' || lf != '\n') {
-                    throw new Exception("Error reading end of chunk");
-                }
-
-                if (amountToRead > 0) {
-                    // after previous chunk data read, the control string reset
-                    control = new StringBuilder();
-                } else {
-                    // append the last CRLF after a last empty chunk
-                    control.append((char) cr);
-                    control.append((char) lf);
-                }
-
-                if (control.toString().equals(Constants.INSTANCE.getFINAL_CHUNK_STR())) {
-                    return false;
-                }
-
-                chunkSizeHexStr.setLength(0);
-
-                continue;
-
+    // whether the encapsulated message is media of the skipped types, by both the declared 'Content-Type' and its preview
+    private boolean isSkippedMedia(BodyStore preview) throws IOException {
+        HttpHeaders httpHeaders = REQMOD.equals(methodInProgress) ? httpRequestHeaderView : httpResponseHeaderView;
+        String contentType = httpHeaders == null ? null : httpHeaders.getContentType();
+        if (contentType == null) {
+            return false;
+        }
+        contentType = contentType.toLowerCase();
+        for (String skipType : scanSkipTypes) {
+            if (!skipType.isEmpty() && contentType.startsWith(skipType)) {
+                String sniffed = MediaSniffer.INSTANCE.sniff(preview.head(SNIFF_SIZE));
+                return sniffed != null && contentType.startsWith(sniffed + "/");
             }
-
-            chunkSizeHexStr.append((char) nextChar);
-
         }
-
+        return false;
     }
 
-    private void analyseIcapRequestHeader(byte[] memory) throws Exception {
-
-        String data = new String(memory);
+    private void analyseIcapRequestHeader(IcapRequestHead head) throws Exception {
 
-        String[] entries = data.split("\\r\\n");
-
-        if (entries.length == 0) {
-            sendBadRequest("Invalid ICAP Request");
-            return;
-        }
-
-        String methodLine = entries[0];
-        String methodLineUpper = methodLine.toUpperCase();
+        String method = head.getMethod().toUpperCase();
 
         // TODO method would be extensible
-        if (!methodLineUpper.startsWith(OPTIONS)
-                && !methodLineUpper.startsWith(REQMOD)
-                && !methodLineUpper.startsWith(RESPMOD)) {
+        if (!OPTIONS.equals(method)
+                && !REQMOD.equals(method)
+                && !RESPMOD.equals(method)) {
             sendMethodNotAllowed();
             return;
         }
 
-        if (!methodLineUpper.startsWith(OPTIONS + " ")
-                && !methodLineUpper.startsWith(REQMOD + " ")
-                && !methodLineUpper.startsWith(RESPMOD + " ")) {
-            sendBadRequest("Invalid ICAP Method Sintax");
-            return;
-        }
+        // the path&query of the uri
+        String service = head.servicePath();
 
-        String[] methodContent = methodLine.split("\\s");
-
-        if (methodContent.length != 3) {
-            sendBadRequest("Invalid ICAP Method Syntax");
+        if (service == null) {
+            sendBadRequest("Invalid ICAP URI");
             return;
         }
 
-        String uri = methodContent[1];
-        // [server, path&query]
-        String[] uriParser = validateURI(uri);
-
-        if (uriParser == null) {
-            sendBadRequest("Invalid ICAP URI");
-            return;
+        if (++requestsServed >= maxRequestsPerConnection) {
+            closeConnection = true;
         }
 
-        // parse headers exception start line, TODO more icap request headers to be supported
-        for (int i = 1; i < entries.length; ++i) {
-            String icapHeader = entries[i];
-            if (icapHeader.toLowerCase().startsWith("encapsulated:")) {
-                encapsulatedHeader = icapHeader.substring(icapHeader.indexOf(':') + 1).trim();
-                continue;
-            }
-            if (icapHeader.toLowerCase().startsWith("preview:")) {
-                previewHeader = icapHeader.substring(icapHeader.indexOf(':') + 1).trim();
-                continue;
-            }
+        // TODO more icap request headers to be supported
+        String connection = head.header("Connection");
+        if (connection != null && "close".equalsIgnoreCase(connection)) {
+            closeConnection = true;
         }
+        try {
+            encapsulatedHeader = head.encapsulated();
+        } catch (IcapBadRequestException e) {
+            sendBadRequest(e.getMessage());
+            return;
+        }
+        previewHeader = head.header("Preview");
+        allow204 = allows204(head.header("Allow"));
 
         // only OPTIONS method can without Encapsulated header
-        if (encapsulatedHeader == null && !methodLineUpper.startsWith(OPTIONS)) {
+        if (encapsulatedHeader == null && !OPTIONS.equals(method)) {
             sendBadRequest("Invalid ICAP Requirements: <Encapsulated> Header not found and is not OPTIONS request.");
             return;
         }
@@ -433,243 +605,340 @@ public class ClientHandler implements Runnable {
             }
         }
 
-        // TODO methods should be extensible
-        if (methodLineUpper.startsWith(OPTIONS)) {
-
-            handleOptions(entries, uriParser);
-
-        } else if (methodLineUpper.startsWith(REQMOD)) {
-
-            prepareHandleRequestModification(entries, uriParser);
-
-        } else if (methodLineUpper.startsWith(RESPMOD)) {
-
-            prepareHandleResponseModification(entries, uriParser);
+        Route route = ROUTES.route(service);
+        if (route == null) {
+            sendServiceNotFound();
+            return;
+        }
 
+        if (OPTIONS.equals(method)) {
+            handleOptions(route);
+        } else if (!route.allows(method)) {
+            sendMethodNotAllowed();
+        } else {
+            headInProgress = head;
+            routeInProgress = route;
+            serviceInProgress = route.getService();
+            methodInProgress = method;
         }
 
     }
 
     private void writeFinalChunk() throws IOException {
-        out.write(Chunk.Companion.getFINAL_CHUNK().toByteArray());
+        out.write(FINAL_CHUNK);
     }
 
-    private void sendCloseConnection() throws IOException {
-        out.write("Connection: close\r\n".getBytes(StandardCharsets.UTF_8));
-        out.write(("Encapsulated: null-body=0\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+    // error responses, the rest of the request may be left unread, so the connection can not be reused
+    private void sendError(byte[] statusLine, String cause) throws IOException {
+        closeConnection = true;
+        resp.reset();
+        resp.bytes(statusLine).bytes(CONNECTION_CLOSE);
+        if (cause == null) {
+            resp.bytes(NULL_BODY_END);
+        } else {
+            resp.bytes(OPT_BODY_END).hex(cause.length()).crlf().ascii(cause).crlf().bytes(FINAL_CHUNK);
+        }
+        resp.send();
     }
 
     private void sendContinue() throws IOException {
-        out.write("ICAP/1.0 100 Continue\r\n".getBytes(StandardCharsets.UTF_8));
-        out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        out.write(CONTINUE);
+        // the client waits for it before sending the remaining body
+        out.flush();
     }
 
-    private void sendBadRequest(String cause) throws IOException {
-        out.write("ICAP/1.0 400 Bad request\r\n".getBytes(StandardCharsets.UTF_8));
-        if (cause == null) {
-            sendCloseConnection();
-        } else {
-            out.write("Connection: close\r\n".getBytes(StandardCharsets.UTF_8));
-            out.write(("Encapsulated: opt-body=0\r\n").getBytes(StandardCharsets.UTF_8));
-            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
-            out.write((Integer.toHexString(cause.length()) + "\r\n").getBytes(StandardCharsets.UTF_8));
-            out.write((cause + "\r\n").getBytes(StandardCharsets.UTF_8));
-            writeFinalChunk();
+    // the encapsulated message is left as it is
+    private void sendNoContent() throws IOException {
+        resp.bytes(STATUS_204).bytes(DATE_HEADER).date().crlf().bytes(SERVER_HEADER_BYTES).bytes(tagHeader(serviceInProgress));
+        if (closeConnection) {
+            resp.bytes(CONNECTION_CLOSE);
         }
+        resp.bytes(NULL_BODY_END).send();
+    }
+
+    private void sendBadRequest(String cause) throws IOException {
+        sendError(STATUS_400, cause);
+    }
+
+    private void sendRequestTooLarge(String cause) throws IOException {
+        sendError(STATUS_413, cause);
     }
 
     private void sendServiceNotFound() throws IOException {
-        out.write("ICAP/1.0 404 Service not found\r\n".getBytes(StandardCharsets.UTF_8));
-        sendCloseConnection();
+        sendError(STATUS_404, null);
     }
 
     private void sendMethodNotAllowed() throws IOException {
-        out.write("ICAP/1.0 405 Method not allowed\r\n".getBytes(StandardCharsets.UTF_8));
-        sendCloseConnection();
+        sendError(STATUS_405, null);
     }
 
     private void sendServerError(String cause) throws IOException {
-        out.write("ICAP/1.0 500 Server Error\r\n".getBytes(StandardCharsets.UTF_8));
-        if (cause == null) {
-            sendCloseConnection();
-        } else {
-            out.write("Connection: close\r\n".getBytes(StandardCharsets.UTF_8));
-            out.write(("Encapsulated: opt-body=0\r\n").getBytes(StandardCharsets.UTF_8));
-            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
-            out.write((Integer.toHexString(cause.length()) + "\r\n").getBytes(StandardCharsets.UTF_8));
-            out.write((cause + "\r\n").getBytes(StandardCharsets.UTF_8));
-            writeFinalChunk();
-        }
+        sendError(STATUS_500, cause);
     }
 
-    // returns: String[server, path]
-    private String[] validateURI(String uri) {
-
-        Pattern uriPattern = Pattern.compile("icap:\\/\\/(.*)(\\/.*)");
-        Matcher uriMatcher = uriPattern.matcher(uri);
+    private void handleOptions(Route route) throws Exception {
 
-        if (!uriMatcher.matches()) {
-            return null;
+        // all but the 'ISTag' and 'Connection' headers are pre-encoded per service
+        resp.bytes(STATUS_200).bytes(DATE_HEADER).date().crlf().bytes(SERVER_HEADER_BYTES).bytes(tagHeader(route.getService()))
+                .bytes(OPTIONS_HEADERS.get(route.getService()));
+        if (closeConnection) {
+            resp.bytes(CONNECTION_CLOSE);
         }
+        resp.bytes(NULL_BODY_END).send();
 
-        if (uriMatcher.groupCount() > 1) {
-            return new String[]{uriMatcher.group(1), uriMatcher.group(2).substring(1)};
-        } else {
-            return new String[]{uriMatcher.group(1), ""};
-        }
+        methodInProgress = OPTIONS;
 
     }
 
-    private void handleOptions(
-            String[] entries,
-            String[] uriParser) throws Exception {
-
-        String service = uriParser[1];
-        String service2 = service.toLowerCase();
-
-        // TODO endpoints should be extensible
-        if (!service2.startsWith("info")
-                && !service2.startsWith("echo")
-                && !service2.startsWith("virus_scan")) {
-
-            sendServiceNotFound();
-            return;
-
+    // the encoded 'ISTag' header of the service, changes only when the server version, or the signature version of the scanner in use changes
+    private static byte[] tagHeader(String service) {
+        String signatures = VIRUS_SCAN.equals(service) ? SignatureHolder.VERSION.current() : null;
+        TagHeader cached = tagHeaders.get(service);
+        if (cached == null || !Objects.equals(cached.signatures, signatures)) {
+            String tag = VIRUS_SCAN.equals(service)
+                    ? Utils.INSTANCE.serviceTag(service, serverName, serverVersion, scannerBackend(), signatures)
+                    : Utils.INSTANCE.serviceTag(service, serverName, serverVersion);
+            cached = new TagHeader(signatures, ("ISTag: \"" + tag + "\"\r\n").getBytes(StandardCharsets.US_ASCII));
+            tagHeaders.put(service, cached);
         }
+        return cached.bytes;
+    }
 
-        out.write(("ICAP/1.0 200 OK\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write(("Date: " + dateHeaderVal() + "\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write(SERVER_HEADER.getBytes(StandardCharsets.UTF_8));
+    private static final class TagHeader {
+        final String signatures;
+        final byte[] bytes;
 
-        // TODO endpoints and method could be extensible
-        if (service2.startsWith("info")) {
-            out.write(("Methods: " + RESPMOD + "\r\n").getBytes(StandardCharsets.UTF_8));
-        } else if (service2.startsWith("echo")) {
-            out.write(("Methods: " + REQMOD + ", " + RESPMOD + "\r\n").getBytes(StandardCharsets.UTF_8));
-        } else if (service2.startsWith("virus_scan")) {
-            out.write(("Methods: " + REQMOD + ", " + RESPMOD + "\r\n").getBytes(StandardCharsets.UTF_8));
+        TagHeader(String signatures, byte[] bytes) {
+            this.signatures = signatures;
+            this.bytes = bytes;
         }
+    }
 
-        out.write(SERVICE_RESP_HEADER);
-        // TODO ISTag is somewhat a session mechanism, not only a random string
-        out.write(("ISTag: \"" + Utils.INSTANCE.randomUUID32Chars() + "\"\r\n").getBytes(StandardCharsets.UTF_8));
-//        out.write(("Allow: 204\r\n").getBytes(StandardCharsets.UTF_8));
-        // TODO preview data should be supported in future
-        out.write(("Preview: 0\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write(("Max-Connections: 1024\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write(("Transfer-Complete: *\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write(("Encapsulated: null-body=0\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write(("\r\n").getBytes(StandardCharsets.UTF_8));
-
-        methodInProgress = OPTIONS;
-
+    // the pre-encoded OPTIONS headers of the services, but 'Date', 'ISTag' and 'Connection'
+    private static Map<String, byte[]> encodeOptionsHeaders() {
+        Map<String, byte[]> headers = new HashMap<>();
+        for (Route route : ROUTES.getAll()) {
+            StringBuilder h = new StringBuilder();
+            h.append("Methods: ").append(String.join(", ", route.getMethods())).append("\r\n");
+            h.append("Service: ").append(serverName).append("\r\n");
+            // the options, including the 'ISTag', could be cached by clients for a while
+            h.append("Options-TTL: ").append(optionsTtl).append("\r\n");
+            h.append("Allow: 204\r\n");
+            int preview = route.getMessagePreview();
+            if (preview > 0) {
+                h.append("Preview: ").append(preview).append("\r\n");
+            }
+            h.append("Max-Connections: ").append(maxConnections).append("\r\n");
+            h.append("Transfer-Complete: *\r\n");
+            headers.put(route.getService(), h.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return headers;
     }
 
-    // generate http-compatible date header value for now
+    // http-compatible date header value for now
     private String dateHeaderVal() {
-        SimpleDateFormat df = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z", Locale.US);
-        df.setTimeZone(TimeZone.getTimeZone("GMT"));
-        return df.format(new Date());
+        return HttpDate.INSTANCE.current();
     }
 
-    private void prepareHandleRequestModification(
-            String[] entries,
-            String[] uriParser) throws Exception {
+    private void continueModification() throws Exception {
 
-        String service = uriParser[1];
-        String service2 = service.toLowerCase();
-
-        // TODO endpoints should be extensible, the error msg reported here is not accurate
-        if (!service2.startsWith("echo")
-                && !service2.startsWith("virus_scan")) {
-
-            sendMethodNotAllowed();
+        ModuleHandler handler = routeInProgress.getHandler();
+        if (handler != null) {
+            // answered once the module completes the future
+            moduleResponseInProgress = ModuleDeadline.within(Objects.requireNonNull(handler.handle(toModuleRequest()), "module answer"), moduleTimeoutMillis);
             return;
+        }
 
+        switch (serviceInProgress) {
+            case VIRUS_SCAN:
+                findThreatsInPayload();
+                // clean messages pass through untouched
+                if (threatName == null && allow204) {
+                    sendNoContent();
+                    return;
+                }
+                writeOkHead();
+                completeHandleVirusScan();
+                break;
+            case ECHO:
+                writeOkHead();
+                completeHandleEcho();
+                break;
+            case INFO:
+                writeOkHead();
+                completeHandleInfo(dateHeaderVal());
+                break;
+            default:
+                throw new IllegalStateException("No handler for service: " + serviceInProgress);
         }
 
-        serviceInProgress = service2;
-        methodInProgress = REQMOD;
+    }
+
+    // write out the answer of the module, or '500 Server Error' if it fails or misses the deadline
+    private boolean completeModuleRequest(IcapResponse response, Throwable failure) {
+
+        try {
+            if (failure != null) {
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                logger.error("Module of service '" + serviceInProgress + "' failed to answer, process for this request terminated.", cause);
+                sendServerError(cause.getMessage());
+            } else {
+                writeModuleResponse(Objects.requireNonNull(response, "module answer"));
+                if (moduleBody != null) {
+                    moduleBody.discardRemaining();
+                }
+            }
+            out.flush();
+            return !closeConnection;
+        } catch (Exception e) {
+            logger.error("Writing the module response failed, processing terminated.", e);
+            return false;
+        } finally {
+            moduleResponseInProgress = null;
+            releaseModuleBodyCopy();
+        }
 
     }
 
-    private void prepareHandleResponseModification(
-            String[] entries,
-            String[] uriParser) throws Exception {
+    // detached from the body first, a module failed or late may still be iterating it on its own thread
+    private void releaseModuleBodyCopy() {
+        if (moduleBodyCopy != null) {
+            moduleBody.setRetained(null);
+            moduleBodyCopy.close();
+            moduleBodyCopy = null;
+        }
+    }
 
-        String service = uriParser[1];
-        String service2 = service.toLowerCase();
+    private void writeModuleResponse(IcapResponse response) throws IOException {
 
-        // TODO endpoints should be extensible, the error msg reported here is not accurate
-        if (!service2.startsWith("info")
-                && !service2.startsWith("echo")
-                && !service2.startsWith("virus_scan")) {
+        String reqHeaders = response.getHttpReqHeadersStr();
+        String resHeaders = response.getHttpRespHeadersStr();
+        Iterator<Chunk> chunks = response.getHttpBodyChunks();
 
-            sendMethodNotAllowed();
+        // '204 No Content' is only allowed in response to a preview or when the client sends 'Allow: 204', otherwise the message is
+        // echoed back unmodified, as the echo service does
+        if (!allow204 && response.getStatusLine().startsWith("ICAP/1.0 204") && (moduleBody == null || !moduleBody.getPreviewing())) {
+            echoModuleRequest();
             return;
+        }
+        if (moduleBody != null) {
+            moduleBody.setRetained(null);
+            if (chunks != null) {
+                // the body of the answer could be streamed from the remaining body of the request
+                moduleBody.leavePreview();
+            } else if (moduleBody.answerOnPreview()) {
+                notifyPreviewAnswered();
+            }
+        }
 
+        // offsets of the encapsulated parts, in the order they are written
+        StringBuilder encapsulated = new StringBuilder();
+        int offset = 0;
+        if (reqHeaders != null) {
+            encapsulated.append("req-hdr=0, ");
+            offset += reqHeaders.getBytes(StandardCharsets.ISO_8859_1).length;
+        }
+        if (resHeaders != null) {
+            encapsulated.append("res-hdr=").append(offset).append(", ");
+            offset += resHeaders.getBytes(StandardCharsets.ISO_8859_1).length;
+        }
+        if (chunks == null) {
+            encapsulated.append("null-body=").append(offset);
+        } else {
+            encapsulated.append(resHeaders != null ? "res-body=" : "req-body=").append(offset);
         }
 
-        serviceInProgress = service2;
-        methodInProgress = RESPMOD;
+        resp.ascii(response.getStatusLine()).crlf().bytes(DATE_HEADER).date().crlf().bytes(SERVER_HEADER_BYTES);
+        if (!response.getIcapRespHeadersMap().containsKey("ISTag")) {
+            resp.bytes(tagHeader(serviceInProgress));
+        }
+        for (Map.Entry<String, String> header : response.getIcapRespHeadersMap().entrySet()) {
+            resp.ascii(header.getKey()).ascii(": ").ascii(header.getValue()).crlf();
+        }
+        if (closeConnection) {
+            resp.bytes(CONNECTION_CLOSE);
+        }
+        if (response.getStatusLine().startsWith("ICAP/1.0 204")) {
+            resp.bytes(NULL_BODY_END).send();
+            return;
+        }
+        resp.ascii("Encapsulated: " + encapsulated).crlf().crlf();
+        if (reqHeaders != null) {
+            resp.ascii(reqHeaders);
+        }
+        if (resHeaders != null) {
+            resp.ascii(resHeaders);
+        }
+        resp.send();
+
+        if (chunks != null) {
+            // relayed as produced, small chunks coalesced while more of the request body is at hand, blocking while the client is not reading
+            ChunkedOutputStream body = new ChunkedOutputStream(out, this::inputIdle);
+            while (chunks.hasNext()) {
+                Chunk chunk = chunks.next();
+                if (chunk.size() == 0) {
+                    break;
+                }
+                body.write(chunk.getContent());
+            }
+            body.finish();
+        }
 
     }
 
-    private void continueRequestModification() throws Exception {
+    // echo the encapsulated http message of a module request, the body iterated by the module so far followed by the remaining one
+    private void echoModuleRequest() throws IOException {
 
-        if (serviceInProgress.startsWith("virus_scan")) {
-            findThreatsInPayload();
+        boolean reqMod = REQMOD.equals(methodInProgress);
+        writeOkHead();
+        writeEchoHead(reqMod, reqMod ? httpRequestHeaders : httpResponseHeaders, moduleBody == null);
+        if (moduleBody == null) {
+            return;
         }
 
-        // TODO endpoints should be extensible in future
-//        if (serviceInProgress.startsWith("echo") && httpRequestBody.size() == 0) {
-//            out.write(("ICAP/1.0 204 No Content\r\n").getBytes(StandardCharsets.UTF_8));
-//        } else {
-        out.write(("ICAP/1.0 200 OK\r\n").getBytes(StandardCharsets.UTF_8));
-//        }
-
-        out.write(("Date: " + dateHeaderVal() + "\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write(SERVER_HEADER.getBytes(StandardCharsets.UTF_8));
-        out.write(("ISTag: \"" + Utils.INSTANCE.randomUUID32Chars() + "\"\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write(("Connection: close\r\n").getBytes(StandardCharsets.UTF_8));
-
-        if (serviceInProgress.startsWith("echo")) {
-            completeHandleEcho();
-        } else if (serviceInProgress.startsWith("virus_scan")) {
-            completeHandleVirusScan();
+        ChunkedOutputStream body = new ChunkedOutputStream(out, this::inputIdle);
+        moduleBody.setRetained(null);
+        moduleBodyCopy.writeTo(body);
+        while (moduleBody.hasNext()) {
+            Chunk chunk = moduleBody.next();
+            if (chunk.size() == 0) {
+                break;
+            }
+            body.write(chunk.getContent());
         }
+        body.finish();
 
     }
 
-    private void continueResponseModification() throws Exception {
+    // the request as seen by modules, the body is pulled from the connection as they iterate it
+    private IcapRequest toModuleRequest() throws IOException {
 
-        if (serviceInProgress.startsWith("virus_scan")) {
-            findThreatsInPayload();
-        }
+        IcapRequest request = new IcapRequest();
+        request.setRequestLine(headInProgress.getMethod() + " " + headInProgress.getUri() + " " + headInProgress.getVersion());
+        request.setMethod(IcapStdMethod.valueOf(methodInProgress));
 
-        // TODO endpoints should be extensible in future
-//        if (serviceInProgress.startsWith("echo") && httpResponseBody.size() == 0) {
-//            out.write(("ICAP/1.0 204 No Content\r\n").getBytes(StandardCharsets.UTF_8));
-//        } else {
-        out.write(("ICAP/1.0 200 OK\r\n").getBytes(StandardCharsets.UTF_8));
-//        }
+        // the headers are materialized only as the module looks them up
+        request.setIcapReqHeaders(headInProgress.getHeaders());
+        request.setEncapsulatedHeader(encapsulatedHeader);
 
-        out.write(("Date: " + dateHeaderVal() + "\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write(SERVER_HEADER.getBytes(StandardCharsets.UTF_8));
-        out.write(("ISTag: \"" + Utils.INSTANCE.randomUUID32Chars() + "\"\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write(("Connection: close\r\n").getBytes(StandardCharsets.UTF_8));
+        // parsed at most once, whoever looks them up first
+        request.setHttpReqHeaders(httpRequestHeaderView);
+        request.setHttpRespHeaders(httpResponseHeaderView);
 
-        if (serviceInProgress.startsWith("info")) {
-            completeHandleInfo(dateHeaderVal());
-        } else if (serviceInProgress.startsWith("echo")) {
-            completeHandleEcho();
-        } else if (serviceInProgress.startsWith("virus_scan")) {
-            completeHandleVirusScan();
-        }
+        request.setHttpBodyChunks(moduleBody);
+        return request;
 
     }
 
+    // the status line and common headers of a '200 OK' modification response, 'Encapsulated' header is left to the services
+    private void writeOkHead() throws IOException {
+        resp.bytes(STATUS_200).bytes(DATE_HEADER).date().crlf().bytes(SERVER_HEADER_BYTES).bytes(tagHeader(serviceInProgress));
+        if (closeConnection) {
+            resp.bytes(CONNECTION_CLOSE);
+        }
+        resp.send();
+    }
+
     private void completeHandleInfo(String date) throws Exception {
 
         StringBuilder httpResponseBody = new StringBuilder();
@@ -687,10 +956,15 @@ public class ClientHandler implements Runnable {
 
         httpResponseBody.append("\r\n");
 
+        for (Map.Entry<String, Long> metric : Metrics.INSTANCE.snapshot().entrySet()) {
+            httpResponseBody.append(metric.getKey()).append(": ").append(metric.getValue()).append("\r\n");
+        }
+
         StringBuilder chunkedBody = new StringBuilder()
                 .append(Integer.toHexString(httpResponseBody.length()))
                 .append("\r\n")
-                .append(httpResponseBody);
+                .append(httpResponseBody)
+                .append("\r\n");
 
         StringBuilder httpResponseHeader = new StringBuilder();
 
@@ -713,130 +987,170 @@ public class ClientHandler implements Runnable {
 
     private void completeHandleEcho() throws Exception {
 
-        StringBuilder encapsulatedHeaderEcho = new StringBuilder();
+        // respond with http request headers and body only when REQMOD, response ones only when RESPMOD
+        boolean reqMod = REQMOD.equals(methodInProgress);
+        ByteArrayOutputStream httpHeaders = reqMod ? httpRequestHeaders : httpResponseHeaders;
+        BodyStore httpBody = reqMod ? httpRequestBody : httpResponseBody;
 
-        int offset = 0;
+        dumpEchoedMessage(httpBody.getSize());
 
-        // request or response traffic dump
-        StringBuilder dump = new StringBuilder();
-
-        // respond with http request headers only when REQMOD
-        if (httpRequestHeaders.size() > 0 && REQMOD.equals(methodInProgress)) {
-            if (encapsulatedHeaderEcho.length() > 0) encapsulatedHeaderEcho.append(", ");
-
-            encapsulatedHeaderEcho.append("req-hdr=").append(offset);
-            offset += httpRequestHeaders.size();
+        writeEchoHead(reqMod, httpHeaders, httpBody.getSize() == 0);
+        if (httpBody.getSize() > 0) {
+            // the whole body as one chunk, a spilled body is copied from its file as it is, not read whole into memory
+            out.write((Long.toHexString(httpBody.getSize()) + "\r\n").getBytes(StandardCharsets.UTF_8));
+            httpBody.writeTo(out);
+            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+            writeFinalChunk();
         }
 
-        ByteArrayOutputStream outHttpRequestBody = new ByteArrayOutputStream();
-        if (httpRequestBody.size() > 0 && REQMOD.equals(methodInProgress)) {
-            Iterator<Chunk> reqBodyChunks = Utils.INSTANCE.chunkenize(new ByteArrayInputStream(httpRequestBody.toByteArray()), 4096);
-            while (reqBodyChunks.hasNext()) {
-                outHttpRequestBody.write(reqBodyChunks.next().toByteArray());
+    }
+
+    // echo the encapsulated http message of the request, relaying the body chunks as they arrive
+    private void streamEcho() throws Exception {
+
+        final boolean reqMod = REQMOD.equals(methodInProgress);
+        final ByteArrayOutputStream httpHeaders = reqMod ? httpRequestHeaders : httpResponseHeaders;
+        // only the beginning of the body is kept, for the message dump
+        final BodyStore dumpBody = reqMod ? httpRequestBody : httpResponseBody;
+
+        // the response is started once the body turns out to be non-empty, the body is coalesced into chunks till the decoder flushes
+        // it, whenever reading on would block
+        ChunkedOutputStream body = new ChunkedOutputStream(out) {
+            @Override
+            protected void beforeFirstChunk() throws IOException {
+                writeOkHead();
+                writeEchoHead(reqMod, httpHeaders, false);
             }
 
-            if (encapsulatedHeaderEcho.length() > 0) encapsulatedHeaderEcho.append(", ");
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                super.write(b, off, len);
+                int keep = (int) Math.min(len, MAX_DUMP_BODY_SIZE - dumpBody.getSize());
+                if (keep > 0) {
+                    dumpBody.write(b, off, keep);
+                }
+            }
+        };
 
-            encapsulatedHeaderEcho.append("req-body=").append(offset);
-            offset += outHttpRequestBody.size();
+        boolean complete = false;
+        if (previewHeader != null) {
+            // the preview is limited by the 'Preview' size, held until the remaining body is asked for
+            ByteArrayOutputStream preview = new ByteArrayOutputStream();
+            complete = chunkDecoder.decode(preview);
+            if (!complete) {
+                sendContinue();
+            }
+            preview.writeTo(body);
         }
 
-        if (httpResponseHeaders.size() > 0 && RESPMOD.equals(methodInProgress)) {
-            if (encapsulatedHeaderEcho.length() > 0) encapsulatedHeaderEcho.append(", ");
+        if (!complete) {
+            chunkDecoder.decode(body);
+        }
 
-            encapsulatedHeaderEcho.append("res-hdr=").append(offset);
-            offset += httpResponseHeaders.size();
+        if (body.getSize() > 0) {
+            body.finish();
+        } else {
+            writeOkHead();
+            writeEchoHead(reqMod, httpHeaders, true);
         }
 
-        ByteArrayOutputStream outHttpResponseBody = new ByteArrayOutputStream();
-        if (httpResponseBody.size() > 0 && RESPMOD.equals(methodInProgress)) {
-            Iterator<Chunk> respBodyChunks = Utils.INSTANCE.chunkenize(new ByteArrayInputStream(httpResponseBody.toByteArray()), 4096);
-            while (respBodyChunks.hasNext()) {
-                outHttpResponseBody.write(respBodyChunks.next().toByteArray());
-            }
+        dumpEchoedMessage(body.getSize());
 
-            if (encapsulatedHeaderEcho.length() > 0) encapsulatedHeaderEcho.append(", ");
+    }
 
-            encapsulatedHeaderEcho.append("res-body=").append(offset);
-            offset += outHttpResponseBody.size();
-        }
+    // whether nothing more has been read from the connection yet, so a relayed body is sent as gathered so far
+    private boolean inputIdle() {
+        return in.isIdle();
+    }
 
-        if (httpRequestBody.size() == 0 && httpResponseBody.size() == 0) {
-            if (encapsulatedHeaderEcho.length() > 0) encapsulatedHeaderEcho.append(", ");
-            encapsulatedHeaderEcho.append("null-body=").append(offset);
-        }
+    // answer an echo request with '204 No Content', on the preview if any, or once the whole body is read and dropped
+    private void skipEcho(boolean hasBody) throws Exception {
+
+        final BodyStore dumpBody = REQMOD.equals(methodInProgress) ? httpRequestBody : httpResponseBody;
+        // only the beginning of the body is kept, for the message dump
+        final long[] bodySize = {0};
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
 
-        // dump the message
-        if (REQMOD.equals(methodInProgress)) {
-            // dump req
-            String reqHeadersStr = null;
-            if (httpRequestHeaders.size() > 0) {
-                reqHeadersStr = httpRequestHeaders.toString(StandardCharsets.UTF_8.name());
-                dump.append(reqHeadersStr);
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                int keep = (int) Math.min(len, MAX_DUMP_BODY_SIZE - dumpBody.getSize());
+                if (keep > 0) {
+                    dumpBody.write(b, off, keep);
+                }
+                bodySize[0] += len;
             }
-            if (httpRequestBody.size() > 0)
-                dump.append(bodyToStr(reqHeadersStr, httpRequestBody));
-            msgDumper.info("request:\n" + dump);
-        } else if (RESPMOD.equals(methodInProgress)) {
-            // dump resp
-            String respHeadersStr = null;
-            if (httpResponseHeaders.size() > 0) {
-                respHeadersStr = httpResponseHeaders.toString(StandardCharsets.UTF_8.name());
-                dump.append(respHeadersStr);
+        };
+
+        if (hasBody) {
+            if (previewHeader != null) {
+                if (!chunkDecoder.decode(sink)) {
+                    // the remaining body is never sent
+                    notifyPreviewAnswered();
+                }
+            } else {
+                chunkDecoder.decode(sink);
             }
-            if (httpResponseBody.size() > 0)
-                dump.append(bodyToStr(respHeadersStr, httpResponseBody));
-            msgDumper.info("response:\n" + dump);
         }
 
-        out.write(("Encapsulated: " + encapsulatedHeaderEcho + "\r\n").getBytes(StandardCharsets.UTF_8));
-        out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        sendNoContent();
 
-        // the writing orders here corresponding to the above 'Encapsulated' header construction order
-        if (REQMOD.equals(methodInProgress)) {
-            if (httpRequestHeaders.size() > 0) {
-                out.write(httpRequestHeaders.toByteArray());
-            }
+        dumpEchoedMessage(bodySize[0]);
 
-            if (outHttpRequestBody.size() > 0) {
-                out.write(outHttpRequestBody.toByteArray());
-            }
+    }
+
+    // the 'Encapsulated' header and the echoed http headers
+    private void writeEchoHead(boolean reqMod, ByteArrayOutputStream httpHeaders, boolean nullBody) throws IOException {
+        StringBuilder encapsulatedHeaderEcho = new StringBuilder();
+        if (httpHeaders.size() > 0) {
+            encapsulatedHeaderEcho.append(reqMod ? "req-hdr=0, " : "res-hdr=0, ");
         }
+        encapsulatedHeaderEcho.append(nullBody ? "null-body=" : reqMod ? "req-body=" : "res-body=").append(httpHeaders.size());
+        out.write(("Encapsulated: " + encapsulatedHeaderEcho + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        httpHeaders.writeTo(out);
+    }
 
-        if (RESPMOD.equals(methodInProgress)) {
-            if (httpResponseHeaders.size() > 0) {
-                out.write(httpResponseHeaders.toByteArray());
-            }
+    // dump the echoed request or response traffic, @param bodySize the whole size of the body, of which only the beginning may be kept
+    private void dumpEchoedMessage(long bodySize) throws IOException {
+        if (!msgDumper.isInfoEnabled()) {
+            return;
+        }
+        boolean reqMod = REQMOD.equals(methodInProgress);
+        ByteArrayOutputStream httpHeaders = reqMod ? httpRequestHeaders : httpResponseHeaders;
+        BodyStore httpBody = reqMod ? httpRequestBody : httpResponseBody;
 
-            if (outHttpResponseBody.size() > 0) {
-                out.write(outHttpResponseBody.toByteArray());
+        StringBuilder dump = new StringBuilder();
+        if (httpHeaders.size() > 0) {
+            dump.append(httpHeaders.toString(StandardCharsets.UTF_8.name()));
+        }
+        if (httpBody.getSize() > 0) {
+            byte[] kept = httpBody.head(MAX_DUMP_BODY_SIZE);
+            dump.append(bodyToStr(reqMod ? httpRequestHeaderView : httpResponseHeaderView, kept));
+            if (bodySize > kept.length) {
+                dump.append("...(").append(bodySize).append(" bytes in total)");
             }
         }
-
+        msgDumper.info((reqMod ? "request:\n" : "response:\n") + dump);
     }
 
-    private String bodyToStr(String headersStr, ByteArrayOutputStream bodyStream) {
+    private String bodyToStr(HttpHeaders httpHeaders, byte[] body) {
         // body to text when it's a textual content, otherwise base64 string
-        if (bodyStream.size() == 0) return "";
+        if (body.length == 0) return "";
         boolean isTextual = false;
-        if (headersStr != null && !headersStr.trim().isEmpty()) {
-            for (String header : headersStr.split("\r\n")) {
-                String[] kv = header.trim().split(":");
-                if (kv.length == 2 && "Content-Type".equalsIgnoreCase(kv[0].trim())) {
-                    String cttType = kv[1].trim().toLowerCase();
-                    if (cttType.startsWith("text") || "application/javascript".equals(cttType) || "application/xhtml+xml".equals(cttType) ||
-                            "application/json".equals(cttType) || "application/ld+json".equals(cttType) || "application/xml".equals(cttType)
-                            || "application/x-www-form-urlencoded".equals(cttType)) {
-                        isTextual = true;
-                        break;
-                    }
-                }
-            }
+        String cttType = httpHeaders == null ? null : httpHeaders.getMediaType();
+        if (cttType != null) {
+            isTextual = cttType.startsWith("text") || "application/javascript".equals(cttType) || "application/xhtml+xml".equals(cttType) ||
+                    "application/json".equals(cttType) || "application/ld+json".equals(cttType) || "application/xml".equals(cttType)
+                    || "application/x-www-form-urlencoded".equals(cttType);
         }
         if (isTextual) {
-            return new String(bodyStream.toByteArray(), StandardCharsets.UTF_8);
+            return new String(body, StandardCharsets.UTF_8);
         } else {
-            return Base64.getEncoder().encodeToString(bodyStream.toByteArray());
+            return Base64.getEncoder().encodeToString(body);
         }
     }
 
@@ -941,72 +1255,124 @@ public class ClientHandler implements Runnable {
 
     }
 
-    private ByteArrayOutputStream icapThreatsHeader = new ByteArrayOutputStream();
+    private ByteArrayOutputStream icapThreatsHeader = null;
     private String threatName = null;
 
     private void findThreatsInPayload() throws Exception {
+
+        final BodyStore body = bodyToScan();
+        final byte[] digest = body.digest();
+
+        String threat;
+        VerdictCache.Verdict cached = VerdictCacheHolder.CACHE.get(digest);
+        if (cached != null) {
+            threat = cached.getThreat();
+        } else {
+            threat = isWindows() ? findThreatsInPayloadOnWindows(body) : findThreatsInPayloadOnLinux(body);
+            VerdictCacheHolder.CACHE.put(digest, threat);
+        }
+
+        if (threat != null) {
+            threatName = threat;
+            icapThreatsHeader.write(("X-Threat-Description: " + threatName + "\r\n").getBytes(StandardCharsets.UTF_8));
+            icapThreatsHeader.write(("X-Threat-Resolution: None\r\n").getBytes(StandardCharsets.UTF_8));
+            icapThreatsHeader.write(("X-Threat-Type: Threat\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+    }
+
+    private static boolean isWindows() {
         final String environment =
                 "true".equals(System.getProperty("testMode"))
                         ? Optional.ofNullable(System.getProperty("test.os.name")).orElse(System.getProperty("os.name"))
                         : System.getProperty("os.name");
 
-        if (environment.toLowerCase().contains("windows")) {
-            findThreatsInPayloadOnWindows();
-        } else {
-            findThreatsInPayloadOnLinux();
-        }
-
+        return environment.toLowerCase().contains("windows");
     }
 
-    private void findThreatsInPayloadOnWindows() throws Exception {
+    // @return the first threat found, null if none
+    private String findThreatsInPayloadOnWindows(BodyStore body) throws Exception {
 
         WindowsDefenderAntivirus antivirus = new WindowsDefenderAntivirus();
 
-        WindowsDefenderResponse response = null;
-
-        if (httpRequestBody.size() > 0) {
-            response = antivirus.checkThreat(httpRequestBody.toByteArray());
-        } else if (httpResponseBody.size() > 0) {
-            response = antivirus.checkThreat(httpResponseBody.toByteArray());
-        }
+        final File content = body.file();
+        // waiting for the scanner process pins virtual threads
+        WindowsDefenderResponse response = WorkerPools.INSTANCE.callUnpinned(() -> antivirus.checkThreat(content));
 
         for (String threat : response.getThreatList()) {
-            threatName = threat;
-            icapThreatsHeader.write(("X-Threat-Description: " + threatName + "\r\n").getBytes(StandardCharsets.UTF_8));
-            icapThreatsHeader.write(("X-Threat-Resolution: None\r\n").getBytes(StandardCharsets.UTF_8));
-            icapThreatsHeader.write(("X-Threat-Type: Threat\r\n").getBytes(StandardCharsets.UTF_8));
-            break;
+            return threat;
         }
+        return null;
 
     }
 
-    private void findThreatsInPayloadOnLinux() throws Exception {
+    // @return the threat found, null if none
+    private String findThreatsInPayloadOnLinux(BodyStore body) throws Exception {
 
-        ClamAVCore antivirus = new ClamAVCore();
+        ClamAVResponse response;
+        if (clamdBackend) {
+            // socket io, no need to leave virtual threads; streamed from memory, or from the file only if already spilled
+            response = ClamdHolder.CLIENT.checkThreat(body::openStream);
+        } else {
+            // clamscan only reads files
+            final File content = body.file();
+            ClamAVCore antivirus = new ClamAVCore();
+            // waiting for the scanner process pins virtual threads
+            response = WorkerPools.INSTANCE.callUnpinned(() -> antivirus.checkThreat(content));
+        }
 
-        ClamAVResponse response = null;
+        return response.getThreat();
 
-        if (httpRequestBody.size() > 0) {
-            response = antivirus.checkThreat(httpRequestBody.toByteArray());
-        } else if (httpResponseBody.size() > 0) {
-            response = antivirus.checkThreat(httpResponseBody.toByteArray());
+    }
+
+    // the signature version of the scanner in use, null if unknown
+    private static String scannerSignatureVersion() throws Exception {
+        if (isWindows()) {
+            // no cheap way to query, cached verdicts are only bounded by the ttl
+            return null;
         }
+        if (clamdBackend) {
+            return ClamdHolder.CLIENT.version();
+        }
+        return WorkerPools.INSTANCE.callUnpinned(() -> new ClamAVCore().signatureVersion());
+    }
 
-        if (response.getThreat() != null) {
-            threatName = response.getThreat();
-            icapThreatsHeader.write(("X-Threat-Description: " + threatName + "\r\n").getBytes(StandardCharsets.UTF_8));
-            icapThreatsHeader.write(("X-Threat-Resolution: None\r\n").getBytes(StandardCharsets.UTF_8));
-            icapThreatsHeader.write(("X-Threat-Type: Threat\r\n").getBytes(StandardCharsets.UTF_8));
+    // the scanner in use, part of the identity of the virus_scan service
+    private static String scannerBackend() {
+        if (isWindows()) {
+            return "windows-defender";
         }
+        return clamdBackend ? "clamd" : "clamscan";
+    }
 
+    // the signature version of the scanner in use, shared by all connections, created on first use
+    private static final class SignatureHolder {
+        static final SignatureVersion VERSION = new SignatureVersion(SIGNATURE_VERSION_REFRESH_MILLIS, ClientHandler::scannerSignatureVersion);
     }
 
-    //----------------------------------------
+    // the verdict cache shared by all connections, created on first use
+    private static final class VerdictCacheHolder {
+        static final VerdictCache CACHE = new VerdictCache(
+                Integer.parseInt(Utils.INSTANCE.optsInOrDefault(Constants.VERDICT_CACHE_SIZE_ENV_VAR, Constants.VERDICT_CACHE_SIZE_PROP_VAR, Constants.DFT_VERDICT_CACHE_SIZE)),
+                Long.parseLong(Utils.INSTANCE.optsInOrDefault(Constants.VERDICT_CACHE_TTL_ENV_VAR, Constants.VERDICT_CACHE_TTL_PROP_VAR, Constants.DFT_VERDICT_CACHE_TTL)),
+                SignatureHolder.VERSION);
+    }
+
+    // the clamd client shared by all connections, created on first use
+    private static final class ClamdHolder {
+        static final ClamdClient CLIENT = new ClamdClient(
+                Utils.INSTANCE.optsInOrDefault(Constants.CLAMD_ADDRESS_ENV_VAR, Constants.CLAMD_ADDRESS_PROP_VAR, Constants.DFT_CLAMD_ADDRESS),
+                Integer.parseInt(Utils.INSTANCE.optsInOrDefault(Constants.CLAMD_POOL_SIZE_ENV_VAR, Constants.CLAMD_POOL_SIZE_PROP_VAR, Constants.DFT_CLAMD_POOL_SIZE)),
+                Integer.parseInt(Utils.INSTANCE.optsInOrDefault(Constants.CLAMD_TIMEOUT_ENV_VAR, Constants.CLAMD_TIMEOUT_PROP_VAR, Constants.DFT_CLAMD_TIMEOUT)));
+    }
 
-    private static void shiftLeftByOne(int[] c) {
-        for (int i = 1; i < c.length; ++i) c[i - 1] = c[i];
+    // the scanners read the body file directly, a body not spilled yet is written to a file once
+    private BodyStore bodyToScan() {
+        return httpRequestBody.getSize() > 0 ? httpRequestBody : httpResponseBody;
     }
 
+    //----------------------------------------
+
     public static void main(String[] args) throws Exception {
         Server.main(args);
     }
@@ -2,41 +2,50 @@ package io.github.rfc3507.server;
 
 import com.github.pfmiles.icapserver.impl.Constants;
 import com.github.pfmiles.icapserver.impl.Utils;
+import com.github.pfmiles.icapserver.impl.WorkerPools;
+import com.github.pfmiles.icapserver.impl.transport.AdmissionControl;
+import com.github.pfmiles.icapserver.impl.transport.NioTransport;
+import com.github.pfmiles.icapserver.impl.transport.SocketOptions;
+import com.github.pfmiles.icapserver.impl.transport.WorkerLanes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class Server {
 
     private static final Logger logger = LoggerFactory.getLogger(Server.class);
-    private static final AtomicLong seq = new AtomicLong();
 
-    private static final ExecutorService reqHandlePool = new ThreadPoolExecutor(1, Constants.INSTANCE.getWORKER_POOL_SIZE(),
-            60L, TimeUnit.SECONDS,
-            new SynchronousQueue<>(),
-            r -> new Thread(r, "icap-server-worker-thread-" + seq.getAndIncrement()));
+    // bounds the connections served at once by either transport
+    private static final AdmissionControl admission = AdmissionControl.configured();
+
+    // platform threads by default, or a virtual thread per connection when 'ICAP_SERVER_EXECUTION'/'icap.server.execution' is 'virtual'
+    private static final ExecutorService reqHandlePool = WorkerPools.INSTANCE.newRequestHandlePool(
+            Utils.INSTANCE.optsInOrDefault(Constants.EXECUTION_ENV_VAR, Constants.EXECUTION_PROP_VAR, Constants.DFT_EXECUTION), admission.getMaxConnections());
 
     public static void main(String[] args) {
         new Server().start();
     }
 
     private ServerSocket serverSocket;
+    // present only when the nio transport is selected
+    private NioTransport nioTransport;
 
     public void start() {
         final Thread shutdown = new Thread(() -> {
             try {
-                if (!serverSocket.isClosed()) {
+                if (nioTransport != null) {
+                    nioTransport.stop();
+                } else if (serverSocket != null && !serverSocket.isClosed()) {
                     serverSocket.close();
                 }
                 reqHandlePool.shutdown();
@@ -60,8 +69,14 @@ public class Server {
     }
 
     public void stop() {
+        if (nioTransport != null) {
+            nioTransport.stop();
+            return;
+        }
         try {
-            serverSocket.close();
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
         } catch (IOException e) {
             logger.error("Error when stopping the service, ignored.", e);
         }
@@ -80,11 +95,35 @@ public class Server {
         // icap server port could be specified by OS environment variable 'ICAP_SERVER_PORT' or 'icap.server.port' system property, or else 1344 by default
         final String servicePort = Utils.INSTANCE.optsInOrDefault(Constants.PORT_ENV_VAR, Constants.PORT_PROP_VAR, Constants.DFT_PORT);
 
-        this.serverSocket = new ServerSocket(Integer.parseInt(servicePort));
+        // 'bio' thread-per-connection accept loop by default, or the selector-based 'nio' event loops, to be compared under the same load
+        final String transport = Utils.INSTANCE.optsInOrDefault(Constants.TRANSPORT_ENV_VAR, Constants.TRANSPORT_PROP_VAR, Constants.DFT_TRANSPORT);
+        if ("nio".equalsIgnoreCase(transport)) {
+            final String loops = Utils.INSTANCE.optsInOrDefault(Constants.NIO_LOOPS_ENV_VAR, Constants.NIO_LOOPS_PROP_VAR, Constants.INSTANCE.getDFT_NIO_LOOPS());
+            final String idleTimeout = Utils.INSTANCE.optsInOrDefault(Constants.IDLE_TIMEOUT_ENV_VAR, Constants.IDLE_TIMEOUT_PROP_VAR, Constants.DFT_IDLE_TIMEOUT);
+            final String maxHeaderSize = Utils.INSTANCE.optsInOrDefault(Constants.MAX_HEADER_SIZE_ENV_VAR, Constants.MAX_HEADER_SIZE_PROP_VAR, Constants.DFT_MAX_HEADER_SIZE);
+            this.nioTransport = new NioTransport(Integer.parseInt(servicePort), reqHandlePool, Integer.parseInt(loops), Long.parseLong(idleTimeout), Integer.parseInt(maxHeaderSize), SocketOptions.configured(), admission, WorkerLanes.configured(reqHandlePool, ClientHandler.routes()));
+            this.nioTransport.start();
+            return;
+        }
+
+        this.serverSocket = new ServerSocket();
+        // options like SO_RCVBUF have to be set before binding to take effect on the accepted connections
+        SocketOptions.configured().applyTo(serverSocket);
+        serverSocket.bind(new InetSocketAddress(Integer.parseInt(servicePort)), admission.getAcceptBacklog());
 
         logger.info("[ICAP-SERVER] Listening on port " + servicePort);
 
         while (true) {
+            // a slot is taken before accepting, so clients queue in the accept backlog while all are taken
+            boolean admitted;
+            try {
+                admitted = admission.admit();
+            } catch (InterruptedException e) {
+                logger.info("Accepting interrupted, program will exit.");
+                Thread.currentThread().interrupt();
+                break;
+            }
+
             Socket client;
             try {
                 client = serverSocket.accept();
@@ -94,10 +133,23 @@ public class Server {
                 break;
             } catch (IOException e) {
                 logger.error("Error when accepting incoming connection, ignored...", e);
+                if (admitted) {
+                    admission.release();
+                }
                 continue;
             }
 
-            CompletableFuture.runAsync(new ClientHandler(client), reqHandlePool);
+            if (!admitted && !admission.tryAdmit()) {
+                admission.reject(client);
+                continue;
+            }
+            try {
+                CompletableFuture.runAsync(new ClientHandler(client), reqHandlePool).whenComplete((r, e) -> admission.release());
+            } catch (RejectedExecutionException e) {
+                logger.error("Worker pool is saturated, connection rejected.");
+                admission.release();
+                admission.reject(client);
+            }
         }
     }
 
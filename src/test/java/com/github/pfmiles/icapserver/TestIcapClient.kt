@@ -1,7 +1,9 @@
 package com.github.pfmiles.icapserver
 
-import org.apache.commons.io.IOUtils
 import org.slf4j.LoggerFactory
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
 import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.net.Socket
@@ -20,22 +22,115 @@ class TestIcapClient(val ip: String, val port: Int) {
 
     /**
      * send icap request message and return the response
+     */
+    fun send(message: String): String = sendAll(listOf(message)).single()
+
+    /**
+     * send icap request messages over one persistent connection, all at once(pipelined), and return the responses in order
+     */
+    fun sendAll(messages: List<String>): List<String> {
+        createSocket().use {
+            val ous = it.getOutputStream()
+            val ins = it.getInputStream()
+
+            // write-out the requests
+            messages.forEach { msg -> ous.write(msg.toByteArray(StandardCharsets.UTF_8)) }
+            ous.flush()
+
+            // read-in the icap server responses
+            return messages.map { readResponse(ins) }
+        }
+    }
+
+    /**
+     * send icap request messages over one persistent connection, each one after the response of the previous one is received
+     */
+    fun sendInTurn(messages: List<String>): List<String> {
+        createSocket().use {
+            val ous = it.getOutputStream()
+            val ins = it.getInputStream()
+            return messages.map { msg ->
+                ous.write(msg.toByteArray(StandardCharsets.UTF_8))
+                ous.flush()
+                readResponse(ins)
+            }
+        }
+    }
+
+    /**
+     * send the icap request headers with preview data, then the remaining body once the server responds '100 Continue'
      *
-     * TODO currently no preview functionality supported
+     * @return all the responses, including the '100 Continue' one
      */
-    fun send(message: String): String {
-        // TODO currently no keep-alive supported
+    fun sendWithPreview(preview: String, remaining: String): String {
         createSocket().use {
             val ous = it.getOutputStream()
             val ins = it.getInputStream()
 
-            // write-out the request
-            ous.write(message.toByteArray(StandardCharsets.UTF_8))
+            ous.write(preview.toByteArray(StandardCharsets.UTF_8))
             ous.flush()
 
-            // read-in the icap server response
-            return IOUtils.toString(ins, StandardCharsets.UTF_8)
+            // wait for the interim response
+            val interim = readResponse(ins)
+            if (!interim.startsWith("ICAP/1.0 100 ")) return interim
+
+            ous.write(remaining.toByteArray(StandardCharsets.UTF_8))
+            ous.flush()
+            return interim + readResponse(ins)
+        }
+    }
+
+    /**
+     * send an icap request message while reading the response, as the server may stream the response of a large message before
+     * having received all of it
+     */
+    fun sendStreaming(message: String): String {
+        createSocket().use {
+            val writer = Thread {
+                it.getOutputStream().write(message.toByteArray(StandardCharsets.UTF_8))
+                it.getOutputStream().flush()
+            }
+            writer.start()
+            val resp = readResponse(BufferedInputStream(it.getInputStream()))
+            writer.join()
+            return resp
+        }
+    }
+
+    // read exactly one icap response, so that the connection could be reused
+    private fun readResponse(ins: InputStream): String {
+        val resp = ByteArrayOutputStream()
+        val head = readUntil(ins, resp, "\r\n\r\n")
+        val encapsulated = head.split("\r\n").firstOrNull { it.startsWith("Encapsulated:", ignoreCase = true) } ?: return resp.toString(StandardCharsets.UTF_8.name())
+        val entries = encapsulated.substringAfter(':').split(',').map { it.trim().substringBefore('=') to it.trim().substringAfter('=').toInt() }
+        val body = entries.last()
+        // the encapsulated http headers
+        repeat(body.second) { resp.write(ins.read()) }
+        if (body.first != "null-body") {
+            // the chunked body
+            while (true) {
+                val sizeLine = readUntil(ins, resp, "\r\n")
+                val size = sizeLine.trim().substringBefore(';').trim().toInt(16)
+                if (size == 0) {
+                    readUntil(ins, resp, "\r\n")
+                    break
+                }
+                repeat(size + 2) { resp.write(ins.read()) }
+            }
+        }
+        return resp.toString(StandardCharsets.UTF_8.name())
+    }
+
+    // @return the bytes read, including the terminator
+    private fun readUntil(ins: InputStream, resp: ByteArrayOutputStream, terminator: String): String {
+        val read = StringBuilder()
+        while (!read.endsWith(terminator)) {
+            val b = ins.read()
+            if (b == -1) break
+            read.append(b.toChar())
+            resp.write(b)
         }
+        return read.toString()
     }
 
     private fun createSocket(): Socket {
@@ -44,4 +139,4 @@ class TestIcapClient(val ip: String, val port: Int) {
         socket.connect(inetSocketAddress, 5000)
         return socket
     }
-}
\ No newline at end of file
+}
@@ -2,11 +2,14 @@ package com.github.pfmiles.icapserver
 
 import com.github.pfmiles.icapserver.impl.Constants
 import io.github.rfc3507.server.Server
+import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.BeforeAll
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.TestInstance
 import org.junit.jupiter.api.TestInstance.Lifecycle
 import org.slf4j.LoggerFactory
+import java.net.Socket
+import java.nio.charset.StandardCharsets
 import java.text.SimpleDateFormat
 import java.util.*
 import java.util.concurrent.ThreadLocalRandom
@@ -189,6 +192,49 @@ class TmpEchoTest {
         logger.info(client.send(connectReqMod).replace("\r", "\\r").replace("\n", "\\n\n"))
     }
 
+    @Test
+    fun testPersistentConnection() {
+        val options = "OPTIONS icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n"
+        val echo = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n\r\n" +
+                reqHeaders + "${Integer.toHexString(data.length)}\r\n$data\r\n0\r\n\r\n"
+        val info = "RESPMOD icap://127.0.0.1/info ICAP/1.0\r\nHost: 127.0.0.1\r\nConnection: close\r\nEncapsulated: null-body=0\r\n\r\n"
+
+        val responses = client.sendAll(listOf(options, echo, info))
+        responses.forEach { Assertions.assertTrue(it.startsWith("ICAP/1.0 200 "), it) }
+        Assertions.assertTrue(responses[1].contains(data), responses[1])
+        // only the last one asked for closing
+        Assertions.assertFalse(responses[0].contains("Connection: close"), responses[0])
+        Assertions.assertFalse(responses[1].contains("Connection: close"), responses[1])
+        Assertions.assertTrue(responses[2].contains("Connection: close"), responses[2])
+    }
+
+    @Test
+    fun testStreamingEcho() {
+        val head = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n\r\n" + reqHeaders
+        Socket("127.0.0.1", port).use {
+            it.soTimeout = 5000
+            val ous = it.getOutputStream()
+            val ins = it.getInputStream()
+            ous.write((head + "5\r\nHello\r\n").toByteArray(StandardCharsets.UTF_8))
+            ous.flush()
+            // the first chunk is echoed before the rest of the body is sent
+            val first = StringBuilder()
+            while (!first.endsWith("5\r\nHello\r\n")) first.append(ins.read().toChar())
+            Assertions.assertTrue(first.startsWith("ICAP/1.0 200 "), first.toString())
+            Assertions.assertTrue(first.contains("Encapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n"), first.toString())
+
+            ous.write("7\r\n World!\r\n0\r\n\r\n".toByteArray(StandardCharsets.UTF_8))
+            ous.flush()
+            val rest = StringBuilder()
+            while (!rest.endsWith("0\r\n\r\n")) rest.append(ins.read().toChar())
+            Assertions.assertEquals("7\r\n World!\r\n0\r\n\r\n", rest.toString())
+        }
+
+        // an empty body is echoed as no body
+        val empty = client.send(head + "0\r\n\r\n")
+        Assertions.assertTrue(empty.contains("Encapsulated: req-hdr=0, null-body=${reqHeaders.length}\r\n"), empty)
+    }
+
     @Test
     fun testLength() {
         val df = SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z", Locale.US).apply {
@@ -35,4 +35,15 @@ class UtilsTest {
 
         println(allChunks.fold(ByteArray(0)) { bs, chunk -> bs + chunk.toByteArray() }.toString(StandardCharsets.UTF_8).replace("\r", "\\r").replace("\n", "\\n\n"))
     }
+
+    @Test
+    fun testServiceTag() {
+        val tag = Utils.serviceTag("virus_scan", "ICAP-Server/1.0", "ClamAV 1.0.1/26961")
+        Assertions.assertTrue(tag.matches(Regex("[0-9A-F]{32}")), tag)
+        // stable until some part changes
+        Assertions.assertEquals(tag, Utils.serviceTag("virus_scan", "ICAP-Server/1.0", "ClamAV 1.0.1/26961"))
+        Assertions.assertNotEquals(tag, Utils.serviceTag("virus_scan", "ICAP-Server/1.0", "ClamAV 1.0.1/26962"))
+        Assertions.assertNotEquals(Utils.serviceTag("ab", "c"), Utils.serviceTag("a", "bc"))
+        Assertions.assertEquals(Utils.serviceTag("echo", null), Utils.serviceTag("echo", ""))
+    }
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+package com.github.pfmiles.icapserver.impl
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.util.concurrent.Callable
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+@TestInstance(Lifecycle.PER_CLASS)
+class WorkerPoolsTest {
+
+    @Test
+    fun testVirtualModeRunsJobs() {
+        // falls back to platform threads on runtimes without virtual threads
+        val pool = WorkerPools.newRequestHandlePool("virtual", 16)
+        try {
+            val result = pool.submit(Callable {
+                // blocking calls are made out of virtual threads
+                WorkerPools.callUnpinned { Thread.currentThread().name to WorkerPools.isVirtualThread() }
+            }).get(5, TimeUnit.SECONDS)
+            Assertions.assertFalse(result.second, "unpinned calls must run on platform threads, but ran on ${result.first}")
+        } finally {
+            pool.shutdown()
+        }
+    }
+
+    @Test
+    fun testPlatformPoolCoversMaxConnections() {
+        // each admitted 'bio' connection takes a thread, the pool must not reject any of them
+        val pool = WorkerPools.newRequestHandlePool("platform", Constants.WORKER_POOL_SIZE + 1) as ThreadPoolExecutor
+        Assertions.assertEquals(Constants.WORKER_POOL_SIZE + 1, pool.maximumPoolSize)
+        pool.shutdown()
+
+        val small = WorkerPools.newRequestHandlePool("platform", 1) as ThreadPoolExecutor
+        Assertions.assertEquals(Constants.WORKER_POOL_SIZE, small.maximumPoolSize)
+        small.shutdown()
+    }
+
+    @Test
+    fun testUnpinnedCallPropagatesExceptions() {
+        val pool = WorkerPools.newRequestHandlePool("virtual", 16)
+        try {
+            val error = pool.submit(Callable {
+                runCatching { WorkerPools.callUnpinned<Unit> { throw IllegalStateException("scan failed") } }.exceptionOrNull()
+            }).get(5, TimeUnit.SECONDS)
+            Assertions.assertTrue(error is IllegalStateException)
+            Assertions.assertEquals("scan failed", error!!.message)
+        } finally {
+            pool.shutdown()
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.pfmiles.icapserver.impl.body
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import org.junit.jupiter.api.io.TempDir
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+
+@TestInstance(Lifecycle.PER_CLASS)
+class BodyStoreTest {
+
+    private val data = ByteArray(10000) { (it % 251).toByte() }
+
+    private fun fill(store: BodyStore) {
+        var i = 0
+        while (i < data.size) {
+            val n = minOf(333, data.size - i)
+            store.write(data, i, n)
+            i += n
+        }
+    }
+
+    @Test
+    fun testWriteAfterClose(@TempDir dir: File) {
+        val budget = MemoryBudget(1 shl 20)
+        val store = BodyStore(1 shl 20, dir, budget)
+        fill(store)
+        store.close()
+        Assertions.assertEquals(0, budget.used)
+        // nothing is reserved again, e.g. by a module still pulling the body it was copied from
+        Assertions.assertThrows(IOException::class.java) { store.write(data, 0, 100) }
+        Assertions.assertEquals(0, budget.used)
+    }
+
+    @Test
+    fun testSmallBodyInMemory(@TempDir dir: File) {
+        BodyStore(data.size.toLong(), dir).use {
+            fill(it)
+            Assertions.assertFalse(it.spilled)
+            Assertions.assertEquals(data.size.toLong(), it.size)
+            Assertions.assertArrayEquals(data, it.toByteArray())
+            Assertions.assertArrayEquals(data.copyOf(100), it.head(100))
+            Assertions.assertEquals(0, dir.listFiles()!!.size)
+        }
+    }
+
+    @Test
+    fun testLargeBodySpilled(@TempDir dir: File) {
+        val store = BodyStore(4096, dir)
+        fill(store)
+        Assertions.assertTrue(store.spilled)
+        Assertions.assertEquals(data.size.toLong(), store.size)
+        Assertions.assertEquals(1, dir.listFiles()!!.size)
+        // readable as a file, e.g. by scanners
+        Assertions.assertArrayEquals(data, store.file().readBytes())
+        Assertions.assertArrayEquals(data.copyOf(100), store.head(100))
+
+        val out = ByteArrayOutputStream()
+        store.writeTo(out)
+        Assertions.assertArrayEquals(data, out.toByteArray())
+        val copy = File(dir, "copy")
+        FileOutputStream(copy).use { store.writeTo(it) }
+        Assertions.assertArrayEquals(data, copy.readBytes())
+        copy.delete()
+
+        store.close()
+        Assertions.assertEquals(0, dir.listFiles()!!.size)
+    }
+
+    @Test
+    fun testFileOfInMemoryBody(@TempDir dir: File) {
+        BodyStore(1 shl 20, dir).use {
+            fill(it)
+            Assertions.assertArrayEquals(data, it.file().readBytes())
+            Assertions.assertTrue(it.spilled)
+        }
+        Assertions.assertEquals(0, dir.listFiles()!!.size)
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.pfmiles.icapserver.impl.body
+
+import com.github.pfmiles.icapserver.impl.transport.FrameInputStream
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+
+@TestInstance(Lifecycle.PER_CLASS)
+class MemoryBudgetTest {
+
+    private val data = ByteArray(10000) { (it % 251).toByte() }
+
+    @Test
+    fun testReservations() {
+        val budget = MemoryBudget(100)
+        Assertions.assertTrue(budget.tryReserve(60))
+        Assertions.assertFalse(budget.tryReserve(50))
+        Assertions.assertTrue(budget.tryReserve(40))
+        Assertions.assertTrue(budget.exhausted)
+        // what's already held is accounted beyond the budget
+        budget.reserve(30)
+        Assertions.assertEquals(130, budget.used)
+        budget.release(100)
+        Assertions.assertEquals(30, budget.used)
+        Assertions.assertFalse(budget.exhausted)
+        Assertions.assertEquals(130, budget.highWater)
+    }
+
+    @Test
+    fun testBodySpilledWhenExhausted(@TempDir dir: File) {
+        val budget = MemoryBudget(4096)
+        val small = BodyStore(data.size.toLong(), dir, budget)
+        small.write(data, 0, 3000)
+        Assertions.assertFalse(small.spilled)
+        Assertions.assertTrue(budget.used >= 3000)
+
+        // under the spill threshold, but over what's left of the budget
+        BodyStore(data.size.toLong(), dir, budget).use {
+            it.write(data)
+            Assertions.assertTrue(it.spilled)
+            Assertions.assertArrayEquals(data, it.toByteArray())
+        }
+
+        small.close()
+        Assertions.assertEquals(0, budget.used)
+        BodyStore(data.size.toLong(), dir, budget).use {
+            it.write(data, 0, 3000)
+            Assertions.assertFalse(it.spilled)
+        }
+        Assertions.assertEquals(0, budget.used)
+    }
+
+    @Test
+    fun testFramesPausedWhenExhausted() {
+        val budget = MemoryBudget(100)
+        var drained = 0
+        val input = FrameInputStream(1000, 1024, budget) { drained++ }
+        Assertions.assertTrue(input.offer(ByteArray(10), 0, 10))
+        input.read(ByteArray(10))
+        // most of the budget is taken by the body of another request
+        Assertions.assertTrue(budget.tryReserve(80))
+        // the budget is exhausted, reading from the connection pauses at once
+        Assertions.assertFalse(input.offer(ByteArray(60), 0, 60))
+        // the frames already read are still accepted
+        Assertions.assertFalse(input.offer(ByteArray(30), 0, 30))
+        Assertions.assertEquals(170, budget.used)
+
+        // resumed only once all the frames are consumed, while the budget is still exhausted
+        input.read(ByteArray(100))
+        Assertions.assertEquals(0, drained)
+        input.read(ByteArray(100))
+        Assertions.assertEquals(1, drained)
+        Assertions.assertEquals(80, budget.used)
+
+        // a closed connection gives back what it has buffered
+        budget.release(80)
+        Assertions.assertTrue(input.offer(ByteArray(50), 0, 50))
+        input.discard()
+        Assertions.assertEquals(0, budget.used)
+        Assertions.assertEquals(-1, input.read())
+    }
+}
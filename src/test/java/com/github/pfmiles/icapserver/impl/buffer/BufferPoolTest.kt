@@ -0,0 +1,98 @@
+package com.github.pfmiles.icapserver.impl.buffer
+
+import com.github.pfmiles.icapserver.impl.Metrics
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Executors
+
+@TestInstance(Lifecycle.PER_CLASS)
+class BufferPoolTest {
+
+    @Test
+    fun testSizeClasses() {
+        val pool = BufferPool(16, 4, true)
+        val small = pool.acquire(100)
+        val medium = pool.acquire(5000)
+        val large = pool.acquire(BufferPool.MAX_SIZE)
+        Assertions.assertEquals(4096, small.capacity())
+        Assertions.assertEquals(16384, medium.capacity())
+        Assertions.assertEquals(65536, large.capacity())
+        Assertions.assertTrue(small.isDirect && medium.isDirect && large.isDirect)
+        Assertions.assertThrows(IllegalArgumentException::class.java) { pool.acquire(BufferPool.MAX_SIZE + 1) }
+        listOf(small, medium, large).forEach { pool.release(it) }
+        Assertions.assertEquals(0, pool.outstanding)
+    }
+
+    @Test
+    fun testRecycled() {
+        val pool = BufferPool(16, 4, false)
+        val buf = pool.acquire(100)
+        buf.put(1)
+        pool.release(buf)
+        // the thread's cache gives it back first, cleared
+        val again = pool.acquire(200)
+        Assertions.assertSame(buf, again)
+        Assertions.assertEquals(0, again.position())
+        Assertions.assertEquals(again.capacity(), again.limit())
+
+        // released by another thread, it's reused from the shared free list
+        val other = Executors.newSingleThreadExecutor()
+        try {
+            val fromOther = other.submit<java.nio.ByteBuffer> { pool.acquire(100) }.get()
+            pool.release(again)
+            other.submit { pool.release(fromOther) }.get()
+            Assertions.assertEquals(0, pool.outstanding)
+        } finally {
+            other.shutdown()
+        }
+    }
+
+    @Test
+    fun testSlabsCarved() {
+        val pool = BufferPool(1024, 0, false)
+        val slabs = Metrics.count(BufferPool.SLABS)
+        // the buffers of a class are slices of one slab, not allocated one by one
+        val bufs = (0 until BufferPool.SLAB_SIZE / 4096).map { pool.acquire(4096) }
+        Assertions.assertEquals(slabs + 1, Metrics.count(BufferPool.SLABS))
+        // not overlapping
+        bufs.forEachIndexed { i, buf -> buf.put(0, i.toByte()) }
+        bufs.forEachIndexed { i, buf -> Assertions.assertEquals(i.toByte(), buf.get(0)) }
+        bufs.forEach { pool.release(it) }
+        Assertions.assertEquals(0, pool.outstanding)
+    }
+
+    @Test
+    fun testLeakDetection() {
+        val pool = BufferPool(16, 4, true)
+        val kept = pool.acquire(100)
+        val released = pool.acquire(100)
+        pool.release(released)
+        Assertions.assertEquals(1, pool.leaks().size)
+        Assertions.assertTrue(pool.leaks().single().stackTrace.any { it.methodName == "testLeakDetection" })
+        Assertions.assertThrows(IllegalStateException::class.java) { pool.release(released) }
+        pool.release(kept)
+        Assertions.assertTrue(pool.leaks().isEmpty())
+    }
+
+    @Test
+    fun testChannelOutput(@TempDir dir: File) {
+        val pool = BufferPool(16, 4, true)
+        val data = ByteArray(200000) { (it % 251).toByte() }
+        val file = File(dir, "body")
+        ChannelOutputStream(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE), pool).use {
+            it.write(data, 0, 100)
+            it.write(data[100].toInt())
+            it.flush()
+            Assertions.assertEquals(101, file.length())
+            it.write(data, 101, data.size - 101)
+        }
+        Assertions.assertArrayEquals(data, file.readBytes())
+        Assertions.assertEquals(0, pool.outstanding)
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.pfmiles.icapserver.impl.module
+
+import com.github.pfmiles.icapserver.impl.Metrics
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.TimeoutException
+
+@TestInstance(Lifecycle.PER_CLASS)
+class ModuleDeadlineTest {
+
+    @Test
+    fun testAnsweredInTime() {
+        val done = CompletableFuture.completedFuture("done")
+        Assertions.assertSame(done, ModuleDeadline.within(done, 10))
+
+        val answer = CompletableFuture<String>()
+        val bounded = ModuleDeadline.within(answer, 5000)
+        Assertions.assertFalse(bounded.isDone)
+        answer.complete("late but in time")
+        Assertions.assertEquals("late but in time", bounded.join())
+
+        val failing = CompletableFuture<String>()
+        val boundedFailing = ModuleDeadline.within(failing, 5000)
+        failing.completeExceptionally(IllegalStateException("scanner down"))
+        val e = Assertions.assertThrows(CompletionException::class.java) { boundedFailing.join() }
+        Assertions.assertTrue(e.cause is IllegalStateException)
+    }
+
+    @Test
+    fun testMissedDeadline() {
+        val timeouts = Metrics.count(ModuleDeadline.TIMEOUTS)
+        val answer = CompletableFuture<String>()
+        val bounded = ModuleDeadline.within(answer, 50)
+        val e = Assertions.assertThrows(CompletionException::class.java) { bounded.join() }
+        Assertions.assertTrue(e.cause is TimeoutException)
+        // the module is told to give up
+        Assertions.assertTrue(answer.isCancelled)
+        Assertions.assertEquals(timeouts + 1, Metrics.count(ModuleDeadline.TIMEOUTS))
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.pfmiles.icapserver.impl.module
+
+import com.github.pfmiles.icapserver.impl.Constants
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import javax.tools.ToolProvider
+
+@TestInstance(Lifecycle.PER_CLASS)
+class ModuleIndexTest {
+
+    @Test
+    fun testIndexMatchesScanning() {
+        // the index is written by the build, covering both the java and the kotlin modules
+        val indexed = ModuleIndex.read(javaClass.classLoader)
+        Assertions.assertNotNull(indexed)
+        Assertions.assertTrue(indexed!!.contains("com.github.pfmiles.icapserver.standardmodules.msgdump.MessageDumpModule"), indexed.toString())
+        Assertions.assertEquals(
+            ModuleScanner.scanClasspathForModules(Constants.STD_MODULE_PKG),
+            ModuleScanner.scanForModules(Constants.STD_MODULE_PKG)
+        )
+    }
+
+    @Test
+    fun testProcessorNotRegistered() {
+        // run only when asked for with '-processor', never by itself in the builds depending on this jar
+        val registered = javaClass.classLoader.getResources("META-INF/services/javax.annotation.processing.Processor").toList()
+            .flatMap { url -> url.openStream().bufferedReader().use { it.readLines() } }
+        Assertions.assertFalse(registered.any { it.trim() == ModuleIndexProcessor::class.java.name }, registered.toString())
+    }
+
+    @Test
+    fun testProcessor(@TempDir dir: File) {
+        val src = File(dir, "src/com/example").apply { mkdirs() }
+        val out = File(dir, "classes").apply { mkdirs() }
+        File(src, "FooModule.java").writeText(
+            "package com.example;\n" +
+                    "@com.github.pfmiles.icapserver.Module(\"/foo\")\n" +
+                    "public class FooModule {\n" +
+                    "    @com.github.pfmiles.icapserver.Module(\"/foo-nested\")\n" +
+                    "    public static class Nested {}\n" +
+                    "}\n"
+        )
+        File(src, "BarModule.java").writeText("package com.example;\n@com.github.pfmiles.icapserver.Module(\"/bar\")\npublic class BarModule {}\n")
+        File(src, "Plain.java").writeText("package com.example;\npublic class Plain {}\n")
+
+        compile(out, File(src, "FooModule.java"), File(src, "Plain.java"))
+        val index = File(out, ModuleIndex.RESOURCE)
+        Assertions.assertEquals(listOf("com.example.FooModule", "com.example.FooModule\$Nested"), index.readLines())
+
+        // an incremental compilation keeps the modules compiled before
+        compile(out, File(src, "BarModule.java"))
+        Assertions.assertEquals(listOf("com.example.BarModule", "com.example.FooModule", "com.example.FooModule\$Nested"), index.readLines())
+    }
+
+    private fun compile(out: File, vararg sources: File) {
+        val compiler = ToolProvider.getSystemJavaCompiler()
+        compiler.getStandardFileManager(null, null, null).use { fm ->
+            val options = listOf(
+                "-processor", ModuleIndexProcessor::class.java.name,
+                "-d", out.path, "-classpath", System.getProperty("java.class.path") + File.pathSeparator + out.path
+            )
+            val ok = compiler.getTask(null, fm, null, options, null, fm.getJavaFileObjects(*sources)).call()
+            Assertions.assertTrue(ok)
+        }
+    }
+}
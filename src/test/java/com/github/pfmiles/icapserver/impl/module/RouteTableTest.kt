@@ -0,0 +1,89 @@
+package com.github.pfmiles.icapserver.impl.module
+
+import com.github.pfmiles.icapserver.impl.Constants
+import com.github.pfmiles.icapserver.impl.module.ext.ExtModule
+import com.github.pfmiles.icapserver.impl.protocol.IcapRequest
+import com.github.pfmiles.icapserver.impl.protocol.IcapResponse
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.util.concurrent.CompletableFuture
+
+@TestInstance(Lifecycle.PER_CLASS)
+class RouteTableTest {
+
+    internal class EchoHandler : ModuleHandler {
+        override fun handle(request: IcapRequest): CompletableFuture<IcapResponse> =
+            CompletableFuture.completedFuture(IcapResponse(request).apply { statusLine = "ICAP/1.0 204 No Content" })
+    }
+
+    internal class OtherHandler : ModuleHandler {
+        override fun handle(request: IcapRequest): CompletableFuture<IcapResponse> =
+            CompletableFuture.completedFuture(IcapResponse(request).apply { statusLine = "ICAP/1.0 204 No Content" })
+    }
+
+    @Test
+    fun testStandardModules() {
+        val routes = RouteTable.build(ModuleScanner.scanForModules(Constants.STD_MODULE_PKG), setOf("info", "echo", "virus_scan"))
+        Assertions.assertEquals(setOf("info", "echo", "virus_scan", "msg-dump"), routes.all.map { it.service }.toSet())
+
+        val info = routes.route("info")!!
+        Assertions.assertEquals(setOf("RESPMOD"), info.methods)
+        Assertions.assertFalse(info.allows("REQMOD"))
+        Assertions.assertNull(info.handler)
+
+        // the scanners of both platforms share the endpoint
+        val scan = routes.route("virus_scan")!!
+        Assertions.assertEquals(4096, scan.messagePreview)
+        Assertions.assertTrue(scan.allows("REQMOD") && scan.allows("RESPMOD"))
+
+        Assertions.assertNotNull(routes.route("msg-dump")!!.handler)
+    }
+
+    @Test
+    fun testModulePackages() {
+        // not indexed, the package is scanned on the classpath, while the standard modules are still read from the index
+        val pkg = ExtModule::class.java.`package`.name
+        val routes = RouteTable.build(ModuleScanner.scanForModules(listOf(Constants.STD_MODULE_PKG, pkg)), setOf("info", "echo", "virus_scan"))
+        Assertions.assertEquals(setOf("info", "echo", "virus_scan", "msg-dump", "ext", "late"), routes.all.map { it.service }.toSet())
+        Assertions.assertTrue(routes.route("ext")!!.handler is ExtModule)
+        Assertions.assertEquals(setOf("REQMOD"), routes.route("ext")!!.methods)
+
+        val configured = System.getProperty(Constants.MODULE_PACKAGES_PROP_VAR)
+        try {
+            System.setProperty(Constants.MODULE_PACKAGES_PROP_VAR, " $pkg, ${Constants.STD_MODULE_PKG},")
+            Assertions.assertEquals(listOf(Constants.STD_MODULE_PKG, pkg), ModuleScanner.configuredPackages())
+            System.setProperty(Constants.MODULE_PACKAGES_PROP_VAR, "")
+            Assertions.assertEquals(listOf(Constants.STD_MODULE_PKG), ModuleScanner.configuredPackages())
+        } finally {
+            if (configured == null) System.clearProperty(Constants.MODULE_PACKAGES_PROP_VAR) else System.setProperty(Constants.MODULE_PACKAGES_PROP_VAR, configured)
+        }
+    }
+
+    @Test
+    fun testLookup() {
+        val routes = RouteTable.build(listOf(ModuleMeta("/echo", moduleClass = EchoHandler::class.java)), emptySet())
+        Assertions.assertSame(routes.route("echo"), routes.route("echo?mode=1"))
+        Assertions.assertSame(routes.route("echo"), routes.route("Echo"))
+        Assertions.assertNull(routes.route("echoes"))
+        Assertions.assertNull(routes.route(""))
+    }
+
+    @Test
+    fun testInvalidModules() {
+        val routes = RouteTable.build(
+            listOf(
+                ModuleMeta("/echo", moduleClass = EchoHandler::class.java),
+                // conflicting with the first one
+                ModuleMeta("/echo", moduleClass = OtherHandler::class.java),
+                // neither a handler nor built-in
+                ModuleMeta("/plain", moduleClass = String::class.java),
+                ModuleMeta("", moduleClass = OtherHandler::class.java),
+                ModuleMeta("/info", methods = setOf("RESPMOD"))
+            ), setOf("info")
+        )
+        Assertions.assertEquals(setOf("echo", "info"), routes.all.map { it.service }.toSet())
+        Assertions.assertTrue(routes.route("echo")!!.handler is EchoHandler)
+    }
+}
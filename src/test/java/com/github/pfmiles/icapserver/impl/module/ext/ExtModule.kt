@@ -0,0 +1,17 @@
+package com.github.pfmiles.icapserver.impl.module.ext
+
+import com.github.pfmiles.icapserver.Module
+import com.github.pfmiles.icapserver.impl.module.ModuleHandler
+import com.github.pfmiles.icapserver.impl.protocol.IcapRequest
+import com.github.pfmiles.icapserver.impl.protocol.IcapResponse
+import java.util.concurrent.CompletableFuture
+
+// a module outside the standard package and the module index, as a third-party one would be; looks at the first chunk of the body,
+// then leaves the message unmodified, whether the client allows '204 No Content' or not
+@Module("/ext", methods = ["REQMOD"])
+class ExtModule : ModuleHandler {
+    override fun handle(request: IcapRequest): CompletableFuture<IcapResponse> {
+        request.httpBodyChunks?.takeIf { it.hasNext() }?.next()
+        return CompletableFuture.completedFuture(IcapResponse(request).apply { statusLine = "ICAP/1.0 204 No Content" })
+    }
+}
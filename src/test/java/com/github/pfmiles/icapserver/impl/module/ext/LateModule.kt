@@ -0,0 +1,41 @@
+package com.github.pfmiles.icapserver.impl.module.ext
+
+import com.github.pfmiles.icapserver.Module
+import com.github.pfmiles.icapserver.impl.module.ModuleHandler
+import com.github.pfmiles.icapserver.impl.protocol.IcapRequest
+import com.github.pfmiles.icapserver.impl.protocol.IcapResponse
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+
+// misses its deadline, then goes on reading the body on its own thread as a misbehaving module would
+@Module("/late", methods = ["REQMOD"])
+class LateModule : ModuleHandler {
+
+    companion object {
+        // counted down once the late module is done with the body
+        @Volatile
+        var done = CountDownLatch(1)
+
+        // chunks read after the deadline
+        @Volatile
+        var lateChunks = 0
+    }
+
+    override fun handle(request: IcapRequest): CompletableFuture<IcapResponse> {
+        val answer = CompletableFuture<IcapResponse>()
+        val body = request.httpBodyChunks
+        Thread {
+            try {
+                while (!answer.isCancelled) Thread.sleep(10)
+                // the server has answered '500' by now
+                Thread.sleep(100)
+                while (body != null && body.hasNext()) if (body.next().size() > 0) lateChunks++
+            } catch (e: Exception) {
+                // the connection may be gone
+            } finally {
+                done.countDown()
+            }
+        }.apply { isDaemon = true }.start()
+        return answer
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.io.ByteArrayOutputStream
+import java.nio.charset.StandardCharsets
+
+@TestInstance(Lifecycle.PER_CLASS)
+class ChunkEncoderTest {
+
+    private val sizeLine = ByteArray(ChunkEncoder.SIZE_LINE_CAPACITY)
+
+    @Test
+    fun testSameAsToByteArray() {
+        // around the boundaries of the hex digits
+        listOf(1, 9, 10, 15, 16, 17, 255, 256, 4095, 4096, 65535, 65536, 100000).forEach { size ->
+            val chunk = Chunk(ByteArray(size) { (it % 251).toByte() })
+            val out = ByteArrayOutputStream()
+            ChunkEncoder.write(out, chunk, sizeLine)
+            Assertions.assertArrayEquals(chunk.toByteArray(), out.toByteArray(), "size: $size")
+        }
+    }
+
+    @Test
+    fun testLastChunks() {
+        val out = ByteArrayOutputStream()
+        ChunkEncoder.write(out, Chunk.FINAL_CHUNK, sizeLine)
+        Assertions.assertEquals("0\r\n\r\n", out.toString(StandardCharsets.US_ASCII.name()))
+        Assertions.assertArrayEquals(Chunk.FINAL_CHUNK.toByteArray(), out.toByteArray())
+
+        out.reset()
+        ChunkEncoder.write(out, Chunk.IEOF_CHUNK, sizeLine)
+        Assertions.assertEquals("0; ieof\r\n\r\n", out.toString(StandardCharsets.US_ASCII.name()))
+        Assertions.assertArrayEquals(Chunk.IEOF_CHUNK.toByteArray(), out.toByteArray())
+
+        // empty bytes are not written as a chunk, which would end the body
+        out.reset()
+        ChunkEncoder.writeChunk(out, ByteArray(8), 4, 0, sizeLine)
+        Assertions.assertEquals(0, out.size())
+    }
+
+    @Test
+    fun testPayloadNotCopied() {
+        val payload = ByteArray(1000) { 'x'.code.toByte() }
+        val written = mutableListOf<ByteArray>()
+        val out = object : ByteArrayOutputStream() {
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                written += b
+                super.write(b, off, len)
+            }
+        }
+        ChunkEncoder.writeChunk(out, payload, 0, payload.size, sizeLine)
+        ChunkEncoder.writeChunk(out, payload, 0, payload.size, sizeLine)
+        Assertions.assertTrue(written.any { it === payload })
+        // the size lines are encoded into the scratch array of the caller, not into new ones
+        Assertions.assertEquals(2, written.count { it === sizeLine })
+        Assertions.assertEquals(("3e8\r\n" + "x".repeat(1000) + "\r\n").repeat(2), out.toString(StandardCharsets.US_ASCII.name()))
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.InputStream
+import java.nio.charset.StandardCharsets
+
+@TestInstance(Lifecycle.PER_CLASS)
+class ChunkedBodyDecoderTest {
+
+    private fun source(data: String, pieceSize: Int): InputStream = object : ByteArrayInputStream(data.toByteArray(StandardCharsets.ISO_8859_1)) {
+        override fun read(b: ByteArray, off: Int, len: Int): Int = super.read(b, off, minOf(len, pieceSize))
+    }
+
+    private fun decoder(data: String, pieceSize: Int = 4096) = ChunkedBodyDecoder(IcapInputStream(source(data, pieceSize), 65536))
+
+    @Test
+    fun testChunksWithExtensionsAndTrailers() {
+        val body = "5\r\nHello\r\n" +
+                "7; some-ext=1\r\n World!\r\n" +
+                "B;name=\"v\" ;other\r\n 0123456789\r\n" +
+                "0\r\n" +
+                "X-Trailer: a\r\n" +
+                "\r\n" +
+                "next"
+        for (pieceSize in listOf(1, 2, 3, 7, 4096)) {
+            val ins = IcapInputStream(source(body, pieceSize), 65536)
+            val out = ByteArrayOutputStream()
+            Assertions.assertFalse(ChunkedBodyDecoder(ins).decode(out))
+            Assertions.assertEquals("Hello World! 0123456789", out.toString(StandardCharsets.ISO_8859_1.name()))
+            // the bytes after the body are left unread
+            Assertions.assertEquals('n'.code, ins.read())
+        }
+    }
+
+    @Test
+    fun testIeof() {
+        val out = ByteArrayOutputStream()
+        Assertions.assertTrue(decoder("3\r\nabc\r\n0; ieof\r\n\r\n", 1).decode(out))
+        Assertions.assertEquals("abc", out.toString(StandardCharsets.ISO_8859_1.name()))
+        Assertions.assertTrue(decoder("0;IEOF\r\n\r\n").decode(ByteArrayOutputStream()))
+        Assertions.assertFalse(decoder("0; ieofx\r\n\r\n").decode(ByteArrayOutputStream()))
+        Assertions.assertFalse(decoder("0; x=ieof\r\n\r\n").decode(ByteArrayOutputStream()))
+        // a preview followed by the remaining body
+        val d = decoder("3\r\nabc\r\n0\r\n\r\n2\r\nde\r\n0\r\n\r\n")
+        val all = ByteArrayOutputStream()
+        Assertions.assertFalse(d.decode(all))
+        Assertions.assertFalse(d.decode(all))
+        Assertions.assertEquals("abcde", all.toString(StandardCharsets.ISO_8859_1.name()))
+    }
+
+    @Test
+    fun testMalformed() {
+        for (body in listOf("x\r\n\r\n", "3\r\nabcd\r\n0\r\n\r\n", "3 3\r\nabc\r\n0\r\n\r\n", "1000000000000000\r\n", "3\rabc")) {
+            val e = Assertions.assertThrows(IcapBadRequestException::class.java) { decoder(body).decode(ByteArrayOutputStream()) }
+            Assertions.assertEquals(400, e.status)
+        }
+        Assertions.assertThrows(EOFException::class.java) { decoder("5\r\nabc").decode(ByteArrayOutputStream()) }
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.io.ByteArrayOutputStream
+import java.nio.charset.StandardCharsets
+
+@TestInstance(Lifecycle.PER_CLASS)
+class ChunkedOutputStreamTest {
+
+    // the chunk sizes of a chunked body
+    private fun chunkSizes(body: ByteArray): List<Int> {
+        val text = String(body, StandardCharsets.ISO_8859_1)
+        val sizes = mutableListOf<Int>()
+        var i = 0
+        while (true) {
+            val lineEnd = text.indexOf("\r\n", i)
+            val size = text.substring(i, lineEnd).toInt(16)
+            sizes += size
+            if (size == 0) return sizes
+            i = lineEnd + 2 + size + 2
+        }
+    }
+
+    @Test
+    fun testCoalesced() {
+        val conn = ByteArrayOutputStream()
+        var flushes = 0
+        val out = object : java.io.FilterOutputStream(conn) {
+            override fun write(b: ByteArray, off: Int, len: Int) = conn.write(b, off, len)
+            override fun flush() {
+                flushes++
+            }
+        }
+        var idle = false
+        val chunked = ChunkedOutputStream(out) { idle }
+        val piece = ByteArray(100) { 'a'.code.toByte() }
+        // 200 small writes while more is at hand: chunks of growing sizes, not one per write
+        repeat(200) { chunked.write(piece) }
+        Assertions.assertEquals(listOf(4096, 8192), chunkSizes(conn.toByteArray() + ChunkEncoder.FINAL_CHUNK).dropLast(1))
+        Assertions.assertEquals(2, flushes)
+        // what is gathered is sent once the source goes idle
+        idle = true
+        chunked.write(piece)
+        chunked.finish()
+        Assertions.assertEquals(listOf(4096, 8192, 20000 - 4096 - 8192 + 100, 0), chunkSizes(conn.toByteArray()))
+        Assertions.assertEquals(20100L, chunked.size)
+    }
+
+    @Test
+    fun testLargeWritesNotCopied() {
+        val written = mutableListOf<ByteArray>()
+        val conn = object : ByteArrayOutputStream() {
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                written += b
+                super.write(b, off, len)
+            }
+        }
+        var started = 0
+        val chunked = object : ChunkedOutputStream(conn, { false }) {
+            override fun beforeFirstChunk() {
+                started++
+            }
+        }
+        val large = ByteArray(10000) { 'b'.code.toByte() }
+        chunked.write(large)
+        chunked.write(large, 0, 10)
+        chunked.finish()
+        Assertions.assertTrue(written.any { it === large })
+        Assertions.assertEquals(listOf(10000, 10, 0), chunkSizes(conn.toByteArray()))
+        Assertions.assertEquals(1, started)
+
+        // nothing written for an empty body
+        val empty = ByteArrayOutputStream()
+        ChunkedOutputStream(empty).flush()
+        Assertions.assertEquals(0, empty.size())
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+
+@TestInstance(Lifecycle.PER_CLASS)
+class ConnectionOutputStreamTest {
+
+    // records the size of each write reaching the connection
+    private class RecordingStream : OutputStream() {
+        val content = ByteArrayOutputStream()
+        val writes = mutableListOf<Int>()
+        var flushes = 0
+
+        override fun write(b: Int) = write(byteArrayOf(b.toByte()), 0, 1)
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            writes += len
+            content.write(b, off, len)
+        }
+
+        override fun flush() {
+            flushes++
+        }
+    }
+
+    private fun bytes(size: Int, c: Char) = ByteArray(size) { c.code.toByte() }
+
+    @Test
+    fun testFlushPoints() {
+        val conn = RecordingStream()
+        val out = ConnectionOutputStream(conn, 1024)
+        out.write(bytes(100, 'h'))
+        out.write('\r'.code)
+        out.write(bytes(200, 'b'))
+        // nothing is written until flushed
+        Assertions.assertTrue(conn.writes.isEmpty())
+        out.flush()
+        Assertions.assertEquals(listOf(301), conn.writes)
+        Assertions.assertEquals(1, conn.flushes)
+        // nothing buffered, only the connection is flushed
+        out.flush()
+        Assertions.assertEquals(listOf(301), conn.writes)
+        Assertions.assertEquals(2, conn.flushes)
+    }
+
+    @Test
+    fun testGatheredWrites() {
+        val conn = RecordingStream()
+        val out = ConnectionOutputStream(conn, 1024)
+        val head = bytes(100, 'h')
+        val body = bytes(5000, 'b')
+        out.write(head)
+        out.write(body)
+        // the head goes out with the beginning of the body, the rest of which is written directly
+        Assertions.assertEquals(listOf(1024, 4076), conn.writes)
+
+        // a smaller remainder stays buffered
+        out.write(head)
+        out.write(bytes(1500, 'c'))
+        Assertions.assertEquals(listOf(1024, 4076, 1024), conn.writes)
+        out.close()
+        Assertions.assertEquals(listOf(1024, 4076, 1024, 576), conn.writes)
+
+        val expected = ByteArrayOutputStream().apply {
+            write(head)
+            write(body)
+            write(head)
+            write(bytes(1500, 'c'))
+        }
+        Assertions.assertArrayEquals(expected.toByteArray(), conn.content.toByteArray())
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+
+@TestInstance(Lifecycle.PER_CLASS)
+class EncapsulatedHeaderTest {
+
+    @Test
+    fun testParse() {
+        val respMod = EncapsulatedHeader.parse(" req-hdr=0 ,RES-HDR=822, res-body=1655")
+        Assertions.assertEquals(EncapsulatedHeader(0, 822, EncapsulatedHeader.ABSENT, 1655, EncapsulatedHeader.ABSENT, EncapsulatedHeader.ABSENT), respMod)
+        Assertions.assertEquals(822, respMod.reqHdrSize)
+        Assertions.assertEquals(833, respMod.resHdrSize)
+        Assertions.assertEquals("res-body", respMod.bodyLabel)
+        Assertions.assertTrue(respMod.hasBody())
+        Assertions.assertEquals("req-hdr=0, res-hdr=822, res-body=1655", respMod.toString())
+
+        val noBody = EncapsulatedHeader.parse("req-hdr=0, null-body=170")
+        Assertions.assertEquals(170, noBody.reqHdrSize)
+        Assertions.assertEquals(0, noBody.resHdrSize)
+        Assertions.assertEquals(170, noBody.bodyOffset)
+        Assertions.assertFalse(noBody.hasBody())
+
+        // empty header sections
+        Assertions.assertEquals(0, EncapsulatedHeader.parse("req-hdr=0, req-body=0").reqHdrSize)
+        Assertions.assertEquals("null-body", EncapsulatedHeader.parse("null-body=0").bodyLabel)
+    }
+
+    @Test
+    fun testMalformed() {
+        listOf("", "req-hdr", "req-hdr=0", "req-hdr=x, req-body=1", "req-hdr=-1, req-body=1", "foo=0, null-body=0", "req-body=99999999999",
+            "res-hdr=0, req-hdr=10, res-body=20", "req-hdr=0, req-hdr=10, req-body=20", "req-body=0, res-body=0",
+            "req-hdr=0, req-body=10, res-hdr=20", "req-hdr=20, req-body=10"
+        ).forEach {
+            val e = Assertions.assertThrows(IcapBadRequestException::class.java, { EncapsulatedHeader.parse(it) }, it)
+            Assertions.assertEquals(400, e.status)
+        }
+    }
+
+    @Test
+    fun testCheckForMethod() {
+        EncapsulatedHeader.parse("req-hdr=0, req-body=10").checkFor("REQMOD")
+        EncapsulatedHeader.parse("req-hdr=0, res-hdr=10, res-body=20").checkFor("RESPMOD")
+        EncapsulatedHeader.parse("null-body=0").checkFor("OPTIONS")
+        Assertions.assertThrows(IcapBadRequestException::class.java) { EncapsulatedHeader.parse("res-hdr=0, res-body=10").checkFor("REQMOD") }
+        Assertions.assertThrows(IcapBadRequestException::class.java) { EncapsulatedHeader.parse("req-hdr=0, req-body=10").checkFor("RESPMOD") }
+        Assertions.assertThrows(IcapBadRequestException::class.java) { EncapsulatedHeader.parse("req-hdr=0, null-body=10").checkFor("OPTIONS") }
+
+        val head = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\nEncapsulated: res-hdr=0, null-body=10\r\n\r\n".toByteArray()
+        Assertions.assertThrows(IcapBadRequestException::class.java) { IcapRequestHead.parse(head, 0, head.size)!!.encapsulated() }
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+@TestInstance(Lifecycle.PER_CLASS)
+class HeaderIndexTest {
+
+    private val lines = "Host: 127.0.0.1\r\nAllow:204\r\nX-Folded: a  \r\n   b\r\n\tc\r\nno colon line\r\nX-Empty:\r\n" +
+            "allow: trailers \r\n\r\nnot a header: x\r\n"
+
+    private fun index(): HeaderIndex {
+        val buf = ("OPTIONS icap://127.0.0.1/echo ICAP/1.0\r\n$lines").toByteArray(StandardCharsets.ISO_8859_1)
+        return HeaderIndex.parse(buf, 40, buf.size)
+    }
+
+    @Test
+    fun testSharedLookup() {
+        val pool = Executors.newFixedThreadPool(8)
+        try {
+            repeat(200) {
+                val headers = index()
+                val start = CountDownLatch(1)
+                val results = (0 until 8).map {
+                    pool.submit(Callable {
+                        start.await()
+                        listOf(headers["x-folded"], headers.asMap()["HOST"], headers.asMap().entries.size.toString(), headers.name(4))
+                    })
+                }
+                start.countDown()
+                results.forEach { Assertions.assertEquals(listOf("a b c", "127.0.0.1", "4", "allow"), it.get(5, TimeUnit.SECONDS)) }
+            }
+        } finally {
+            pool.shutdown()
+        }
+    }
+
+    @Test
+    fun testLookup() {
+        val headers = index()
+        Assertions.assertEquals(5, headers.size)
+        Assertions.assertEquals("127.0.0.1", headers["HOST"])
+        Assertions.assertEquals("204", headers["allow"])
+        Assertions.assertEquals(listOf("204", "trailers"), headers.values("Allow"))
+        Assertions.assertEquals("a b c", headers["x-folded"])
+        Assertions.assertEquals("", headers["X-Empty"])
+        Assertions.assertNull(headers["not a header"])
+        Assertions.assertNull(headers["Hos"])
+        Assertions.assertFalse(headers.contains("no colon line"))
+        Assertions.assertEquals(4, headers.indexOf("Allow", 2))
+        Assertions.assertEquals("allow", headers.name(4))
+        // materialized once
+        Assertions.assertSame(headers.value(0), headers["Host"])
+        // up to the empty line
+        Assertions.assertEquals(lines.substring(0, lines.indexOf("\r\n\r\n") + 2), headers.text())
+    }
+
+    @Test
+    fun testMapView() {
+        val map = index().asMap()
+        Assertions.assertEquals("204", map["ALLOW"])
+        Assertions.assertTrue(map.containsKey("x-empty"))
+        Assertions.assertEquals(listOf("Host", "Allow", "X-Folded", "X-Empty"), map.keys.toList())
+        Assertions.assertEquals(HeaderIndex.EMPTY.asMap(), emptyMap<String, String>())
+    }
+}
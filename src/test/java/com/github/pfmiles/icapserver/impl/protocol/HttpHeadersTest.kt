@@ -0,0 +1,57 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.nio.charset.StandardCharsets
+
+@TestInstance(Lifecycle.PER_CLASS)
+class HttpHeadersTest {
+
+    private fun headers(s: String) = HttpHeaders(s.toByteArray(StandardCharsets.ISO_8859_1))
+
+    @Test
+    fun testRequest() {
+        val block = "POST /upload?a=1 HTTP/1.1\r\nHost: www.origin-server.com\r\nContent-Type: Application/JSON; charset=utf-8\r\n" +
+                "Content-Length: 42\r\nAccept: text/html\r\naccept: */*\r\n\r\n"
+        val req = headers(block)
+        Assertions.assertFalse(req.isResponse)
+        Assertions.assertEquals("POST /upload?a=1 HTTP/1.1", req.startLine)
+        Assertions.assertEquals("POST", req.method)
+        Assertions.assertEquals("/upload?a=1", req.uri)
+        Assertions.assertEquals("HTTP/1.1", req.version)
+        Assertions.assertEquals(-1, req.statusCode)
+        Assertions.assertNull(req.reason)
+        Assertions.assertEquals(42L, req.contentLength)
+        Assertions.assertEquals("Application/JSON; charset=utf-8", req.contentType)
+        Assertions.assertEquals("application/json", req.mediaType)
+        Assertions.assertNull(req.contentEncoding)
+        Assertions.assertEquals(listOf("text/html", "*/*"), req.values("ACCEPT"))
+        Assertions.assertEquals("www.origin-server.com", req.headers.asMap()["host"])
+        Assertions.assertEquals(block, req.text())
+        // parsed once, the same values are given back
+        Assertions.assertSame(req.headers, req.headers)
+        Assertions.assertSame(req["Host"], req["host"])
+    }
+
+    @Test
+    fun testResponse() {
+        val res = headers("HTTP/1.1 404 Not Found\r\nContent-Encoding: gzip\r\nContent-Length: x\r\n\r\n")
+        Assertions.assertTrue(res.isResponse)
+        Assertions.assertNull(res.method)
+        Assertions.assertNull(res.uri)
+        Assertions.assertEquals("HTTP/1.1", res.version)
+        Assertions.assertEquals(404, res.statusCode)
+        Assertions.assertEquals("Not Found", res.reason)
+        Assertions.assertEquals("gzip", res.contentEncoding)
+        Assertions.assertEquals(-1L, res.contentLength)
+        Assertions.assertNull(res.contentType)
+        Assertions.assertNull(res.mediaType)
+
+        val bare = headers("HTTP/1.0 200\r\n\r\n")
+        Assertions.assertEquals(200, bare.statusCode)
+        Assertions.assertEquals("", bare.reason)
+        Assertions.assertEquals(0, bare.headers.size)
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.io.ByteArrayInputStream
+import java.io.EOFException
+import java.io.InputStream
+import java.nio.charset.StandardCharsets
+
+@TestInstance(Lifecycle.PER_CLASS)
+class IcapInputStreamTest {
+
+    private val reqHeaders = "GET / HTTP/1.1\r\nHost: www.origin-server.com\r\n\r\n"
+
+    private val reqMod = "REQMOD icap://127.0.0.1:1344/echo ICAP/1.0\r\n" +
+            "Host: 127.0.0.1\r\n" +
+            "encapsulated:  req-hdr=0, null-body=${reqHeaders.length} \r\n" +
+            "X-Folded: a\r\n" +
+            "  b\r\n" +
+            "\r\n" +
+            reqHeaders
+
+    // a source returning at most 'pieceSize' bytes per read, like a slow connection does
+    private fun source(data: String, pieceSize: Int): InputStream = object : ByteArrayInputStream(data.toByteArray(StandardCharsets.ISO_8859_1)) {
+        override fun read(b: ByteArray, off: Int, len: Int): Int = super.read(b, off, minOf(len, pieceSize))
+    }
+
+    @Test
+    fun testHeadSplitAcrossReads() {
+        for (pieceSize in listOf(1, 2, 3, 5, 7, 4096)) {
+            val ins = IcapInputStream(source(reqMod + reqMod, pieceSize), 65536)
+            repeat(2) {
+                val head = ins.readHead()!!
+                Assertions.assertEquals("REQMOD", head.method)
+                Assertions.assertEquals("icap://127.0.0.1:1344/echo", head.uri)
+                Assertions.assertEquals("ICAP/1.0", head.version)
+                Assertions.assertEquals("echo", head.servicePath())
+                Assertions.assertEquals("req-hdr=0, null-body=${reqHeaders.length}", head.header("Encapsulated"))
+                Assertions.assertEquals("a b", head.header("x-folded"))
+                Assertions.assertNull(head.header("Preview"))
+                // the bytes following the head are left for the encapsulated message
+                val rest = ByteArray(reqHeaders.length)
+                var n = 0
+                while (n < rest.size) n += ins.read(rest, n, rest.size - n)
+                Assertions.assertEquals(reqHeaders, String(rest, StandardCharsets.ISO_8859_1))
+            }
+            Assertions.assertNull(ins.readHead())
+        }
+    }
+
+    @Test
+    fun testTooLargeHead() {
+        val head = "OPTIONS icap://127.0.0.1/echo ICAP/1.0\r\nX-Large: ${"a".repeat(200)}\r\n\r\n"
+        val e = Assertions.assertThrows(IcapBadRequestException::class.java) { IcapInputStream(source(head, 16), 128).readHead() }
+        Assertions.assertEquals(413, e.status)
+        Assertions.assertNotNull(IcapInputStream(source(head, 16), head.length).readHead())
+    }
+
+    @Test
+    fun testMalformedHead() {
+        val e = Assertions.assertThrows(IcapBadRequestException::class.java) {
+            IcapInputStream(source("OPTIONS icap://127.0.0.1/echo\r\n\r\n", 8), 65536).readHead()
+        }
+        Assertions.assertEquals(400, e.status)
+        Assertions.assertNull(IcapRequestHead.parse("OPTIONS  ICAP/1.0\r\n\r\n".toByteArray(), 0, 21))
+        Assertions.assertNull(IcapRequestHead.parse("GET http://a/b ICAP/1.0\r\n\r\n".toByteArray(), 0, 27)!!.servicePath())
+    }
+
+    @Test
+    fun testConnectionEnded() {
+        Assertions.assertNull(IcapInputStream(source("", 8), 65536).readHead())
+        Assertions.assertThrows(EOFException::class.java) { IcapInputStream(source("OPTIONS icap://127.0.0.1/echo ICAP/1.0\r\n", 8), 65536).readHead() }
+    }
+
+    @Test
+    fun testAvailableAsksSourceOnlyWhenEmpty() {
+        var asked = 0
+        val src = object : ByteArrayInputStream((reqMod + "abc").toByteArray(StandardCharsets.ISO_8859_1)) {
+            override fun available(): Int {
+                asked++
+                return super.available()
+            }
+        }
+        val ins = IcapInputStream(src, 65536)
+        ins.readHead()
+        Assertions.assertEquals(reqHeaders.length + 3, ins.available())
+        Assertions.assertEquals(0, asked)
+        ins.skip((reqHeaders.length + 3).toLong())
+        Assertions.assertEquals(0, ins.available())
+        Assertions.assertEquals(1, asked)
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.io.ByteArrayOutputStream
+import java.nio.charset.StandardCharsets
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.TimeZone
+
+@TestInstance(Lifecycle.PER_CLASS)
+class ResponseWriterTest {
+
+    @Test
+    fun testEncoding() {
+        val out = ByteArrayOutputStream()
+        val writer = ResponseWriter(out)
+        writer.bytes("Content-Length: ".toByteArray()).decimal(0).crlf()
+            .ascii("X: ").decimal(1234567890123L).ascii(" ").decimal(-42).ascii(" ").decimal(Long.MIN_VALUE).crlf()
+            .hex(0).ascii(" ").hex(15).ascii(" ").hex(16).ascii(" ").hex(0x1fffL).ascii(" ").hex(Long.MAX_VALUE).crlf()
+            .ascii("café 中")
+        // nothing is written until sent
+        Assertions.assertEquals(0, out.size())
+        writer.send()
+        Assertions.assertEquals(
+            "Content-Length: 0\r\n" +
+                    "X: 1234567890123 -42 ${Long.MIN_VALUE}\r\n" +
+                    "0 f 10 1fff 7fffffffffffffff\r\n" +
+                    "café ?", out.toString(StandardCharsets.ISO_8859_1.name())
+        )
+
+        // the buffer grows for large heads, and is reused after sent
+        out.reset()
+        val large = "a".repeat(40000)
+        writer.ascii(large).send()
+        writer.ascii("abandoned").reset()
+        writer.ascii("b").send()
+        Assertions.assertEquals(large + "b", out.toString(StandardCharsets.ISO_8859_1.name()))
+    }
+
+    @Test
+    fun testDate() {
+        val df = SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z", Locale.US).apply { timeZone = TimeZone.getTimeZone("GMT") }
+        val before = df.format(Date())
+        val date = HttpDate.current()
+        val after = df.format(Date())
+        Assertions.assertTrue(date == before || date == after, "$date, expected: $before")
+        Assertions.assertEquals(date, String(HttpDate.currentBytes(), StandardCharsets.US_ASCII))
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.pfmiles.icapserver.impl.protocol
+
+import com.github.pfmiles.icapserver.impl.body.BodyStore
+import com.github.pfmiles.icapserver.impl.body.MemoryBudget
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.UncheckedIOException
+import java.nio.charset.StandardCharsets
+
+@TestInstance(Lifecycle.PER_CLASS)
+class StreamedBodyTest {
+
+    private fun input(data: String) = IcapInputStream(ByteArrayInputStream(data.toByteArray(StandardCharsets.ISO_8859_1)), 65536)
+
+    private fun content(chunks: List<Chunk>) = chunks.joinToString("") { String(it.content, StandardCharsets.ISO_8859_1) }
+
+    @Test
+    fun testRetainedDetached() {
+        val budget = MemoryBudget(1024)
+        val copy = BodyStore(1024, File(System.getProperty("java.io.tmpdir")), budget)
+        val body = StreamedBody(ChunkedBodyDecoder(input("5\r\nHello\r\n7\r\n World!\r\n0\r\n\r\n")), false, 1024) {}
+        body.retained = copy
+        body.next()
+        Assertions.assertEquals("Hello", String(copy.toByteArray(), StandardCharsets.ISO_8859_1))
+
+        // released by the server while the module, late, goes on iterating
+        body.retained = null
+        copy.close()
+        Assertions.assertEquals(0, budget.used)
+        Assertions.assertEquals(" World!", String(body.next().content, StandardCharsets.ISO_8859_1))
+        Assertions.assertEquals(0, budget.used)
+        Assertions.assertEquals(5, copy.size)
+    }
+
+    @Test
+    fun testPulledPieceByPiece() {
+        val data = "5\r\nHello\r\n7\r\n World!\r\n0\r\n\r\nnext"
+        val ins = input(data)
+        var continued = 0
+        val body = StreamedBody(ChunkedBodyDecoder(ins), false, 4) { continued++ }
+
+        // nothing is read until iterated
+        Assertions.assertEquals(data.length, ins.available())
+        val chunks = body.asSequence().toList()
+        Assertions.assertEquals(listOf(4, 1, 4, 3, 0), chunks.map { it.size() })
+        Assertions.assertSame(Chunk.FINAL_CHUNK, chunks.last())
+        Assertions.assertEquals("Hello World!", content(chunks))
+        Assertions.assertEquals(0, continued)
+        Assertions.assertEquals('n'.code, ins.read())
+    }
+
+    @Test
+    fun testPreviewContinued() {
+        val ins = input("5\r\nHello\r\n0\r\n\r\n7\r\n World!\r\n0\r\n\r\nnext")
+        var continued = 0
+        val body = StreamedBody(ChunkedBodyDecoder(ins), true, 1024) { continued++ }
+
+        Assertions.assertEquals("Hello", String(body.next().content, StandardCharsets.ISO_8859_1))
+        Assertions.assertEquals(0, continued)
+        // the remaining body is asked for only when iterated beyond the preview
+        Assertions.assertEquals(" World!", String(body.next().content, StandardCharsets.ISO_8859_1))
+        Assertions.assertEquals(1, continued)
+        Assertions.assertSame(Chunk.FINAL_CHUNK, body.next())
+        Assertions.assertFalse(body.hasNext())
+        Assertions.assertEquals('n'.code, ins.read())
+    }
+
+    @Test
+    fun testLeavePreview() {
+        val ins = input("5\r\nHello\r\n0\r\n\r\n7\r\n World!\r\n0\r\n\r\n")
+        var continued = 0
+        val body = StreamedBody(ChunkedBodyDecoder(ins), true, 1024) { continued++ }
+        body.leavePreview()
+        Assertions.assertEquals(1, continued)
+        // what's left of the preview is still iterated
+        Assertions.assertEquals("Hello World!", content(body.asSequence().toList()))
+        Assertions.assertEquals(1, continued)
+    }
+
+    @Test
+    fun testAnswerOnPreview() {
+        val ins = input("5\r\nHello\r\n0\r\n\r\nnext")
+        var continued = 0
+        val body = StreamedBody(ChunkedBodyDecoder(ins), true, 2) { continued++ }
+        Assertions.assertEquals("He", String(body.next().content, StandardCharsets.ISO_8859_1))
+        // the client waits for the answer, the next request follows the preview
+        Assertions.assertTrue(body.answerOnPreview())
+        Assertions.assertFalse(body.hasNext())
+        Assertions.assertEquals(0, continued)
+        Assertions.assertEquals('n'.code, ins.read())
+
+        // the preview is the whole body
+        val ieof = StreamedBody(ChunkedBodyDecoder(input("5\r\nHello\r\n0; ieof\r\n\r\n")), true, 1024) { continued++ }
+        Assertions.assertFalse(ieof.answerOnPreview())
+        Assertions.assertEquals(0, continued)
+    }
+
+    @Test
+    fun testDiscardRemaining() {
+        val ins = input("5\r\nHello\r\n7\r\n World!\r\n0\r\n\r\nnext")
+        val body = StreamedBody(ChunkedBodyDecoder(ins), false, 3) {}
+        body.next()
+        body.discardRemaining()
+        Assertions.assertFalse(body.hasNext())
+        Assertions.assertEquals('n'.code, ins.read())
+    }
+
+    @Test
+    fun testMalformed() {
+        val body = StreamedBody(ChunkedBodyDecoder(input("5\r\nHel")), false, 1024) {}
+        Assertions.assertThrows(UncheckedIOException::class.java) { body.hasNext() }
+    }
+}
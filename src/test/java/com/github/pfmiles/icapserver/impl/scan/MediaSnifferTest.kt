@@ -0,0 +1,25 @@
+package com.github.pfmiles.icapserver.impl.scan
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+
+@TestInstance(Lifecycle.PER_CLASS)
+class MediaSnifferTest {
+
+    private fun bytes(vararg b: Int) = ByteArray(b.size) { b[it].toByte() }
+
+    @Test
+    fun testSniff() {
+        Assertions.assertEquals("video", MediaSniffer.sniff(bytes(0, 0, 0, 0x20) + "ftypisom".toByteArray()))
+        Assertions.assertEquals("video", MediaSniffer.sniff(bytes(0x1A, 0x45, 0xDF, 0xA3, 0x01)))
+        Assertions.assertEquals("audio", MediaSniffer.sniff("ID3\u0004".toByteArray()))
+        Assertions.assertEquals("image", MediaSniffer.sniff(bytes(0xFF, 0xD8, 0xFF, 0xE0)))
+        Assertions.assertEquals("image", MediaSniffer.sniff(bytes(0x89) + "PNG\r\n".toByteArray()))
+        // executables and truncated heads are not media
+        Assertions.assertNull(MediaSniffer.sniff("MZ\u0090\u0000".toByteArray()))
+        Assertions.assertNull(MediaSniffer.sniff(bytes(0, 0, 0)))
+        Assertions.assertNull(MediaSniffer.sniff(ByteArray(0)))
+    }
+}
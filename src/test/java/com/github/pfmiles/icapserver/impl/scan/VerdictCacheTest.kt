@@ -0,0 +1,99 @@
+package com.github.pfmiles.icapserver.impl.scan
+
+import com.github.pfmiles.icapserver.impl.Metrics
+import com.github.pfmiles.icapserver.impl.body.BodyStore
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
+@TestInstance(Lifecycle.PER_CLASS)
+class VerdictCacheTest {
+
+    private fun digest(content: String): ByteArray = MessageDigest.getInstance("SHA-256").digest(content.toByteArray(StandardCharsets.UTF_8))
+
+    @Test
+    fun testHitAndMiss() {
+        val cache = VerdictCache(10, 60000, SignatureVersion(60000) { "v1" })
+        val hits = Metrics.count(VerdictCache.HITS)
+        val misses = Metrics.count(VerdictCache.MISSES)
+
+        Assertions.assertNull(cache.get(digest("clean")))
+        cache.put(digest("clean"), null)
+        cache.put(digest("eicar"), "Eicar-Signature")
+
+        Assertions.assertNull(cache.get(digest("clean"))!!.threat)
+        Assertions.assertEquals("Eicar-Signature", cache.get(digest("eicar"))!!.threat)
+        Assertions.assertNull(cache.get(digest("other")))
+
+        Assertions.assertEquals(hits + 2, Metrics.count(VerdictCache.HITS))
+        Assertions.assertEquals(misses + 2, Metrics.count(VerdictCache.MISSES))
+    }
+
+    @Test
+    fun testLruEviction() {
+        val cache = VerdictCache(2, 60000, SignatureVersion(60000) { "v1" })
+        val evictions = Metrics.count(VerdictCache.EVICTIONS)
+        cache.put(digest("a"), null)
+        cache.put(digest("b"), null)
+        // 'a' is used more recently than 'b'
+        Assertions.assertNotNull(cache.get(digest("a")))
+        cache.put(digest("c"), null)
+
+        Assertions.assertNotNull(cache.get(digest("a")))
+        Assertions.assertNull(cache.get(digest("b")))
+        Assertions.assertNotNull(cache.get(digest("c")))
+        Assertions.assertEquals(evictions + 1, Metrics.count(VerdictCache.EVICTIONS))
+    }
+
+    @Test
+    fun testTtl() {
+        val cache = VerdictCache(10, 50, SignatureVersion(60000) { "v1" })
+        cache.put(digest("a"), null)
+        Assertions.assertNotNull(cache.get(digest("a")))
+        Thread.sleep(100)
+        Assertions.assertNull(cache.get(digest("a")))
+    }
+
+    @Test
+    fun testSignatureVersionChange() {
+        var version = "v1"
+        val cache = VerdictCache(10, 60000, SignatureVersion(0) { version })
+        val invalidations = Metrics.count(VerdictCache.INVALIDATIONS)
+        Assertions.assertNull(cache.get(digest("a")))
+        cache.put(digest("a"), "Eicar-Signature")
+        Assertions.assertNotNull(cache.get(digest("a")))
+
+        version = "v2"
+        Assertions.assertNull(cache.get(digest("a")))
+        Assertions.assertEquals(invalidations + 1, Metrics.count(VerdictCache.INVALIDATIONS))
+
+        // a failing version source keeps the known version
+        val failing = VerdictCache(10, 60000, SignatureVersion(0) { throw IllegalStateException("clamd down") })
+        failing.put(digest("a"), null)
+        Assertions.assertNotNull(failing.get(digest("a")))
+    }
+
+    @Test
+    fun testDisabled() {
+        val cache = VerdictCache(0, 60000, SignatureVersion(60000) { "v1" })
+        cache.put(digest("a"), null)
+        Assertions.assertNull(cache.get(digest("a")))
+    }
+
+    @Test
+    fun testBodyDigest() {
+        // spilled or not, the digest is computed over the whole body as it's written
+        for (threshold in listOf(4L, 1024L)) {
+            BodyStore(threshold, File(System.getProperty("java.io.tmpdir"))).use {
+                it.trackDigest("SHA-256")
+                it.write("Hello".toByteArray(StandardCharsets.UTF_8))
+                it.write(" World!".toByteArray(StandardCharsets.UTF_8))
+                Assertions.assertArrayEquals(digest("Hello World!"), it.digest())
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import com.github.pfmiles.icapserver.TestIcapClient
+import com.github.pfmiles.icapserver.impl.Metrics
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.io.DataInputStream
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadLocalRandom
+
+@TestInstance(Lifecycle.PER_CLASS)
+class AdmissionControlTest {
+
+    private val options = "OPTIONS icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n"
+
+    @Test
+    fun testSlots() {
+        val admission = AdmissionControl(2, 50, 0)
+        Assertions.assertTrue(admission.admit())
+        Assertions.assertTrue(admission.tryAdmit())
+        Assertions.assertEquals(2, Metrics.snapshot()[AdmissionControl.ACTIVE])
+        Assertions.assertFalse(admission.admit())
+        admission.release()
+        Assertions.assertTrue(admission.admit())
+
+        // queued for a slot freed in the meantime
+        val queued = AdmissionControl(1, 50, 5000)
+        Assertions.assertTrue(queued.admit())
+        Thread { Thread.sleep(50); queued.release() }.start()
+        Assertions.assertTrue(queued.admit())
+    }
+
+    @Test
+    fun testOverloaded() {
+        val port = 50000 + ThreadLocalRandom.current().nextInt(5000)
+        val workers = Executors.newFixedThreadPool(2)
+        val transport = NioTransport(port, workers, 1, 60000, 65536, SocketOptions.configured(), AdmissionControl(1, 50, 0))
+        transport.start()
+        try {
+            val rejected = Metrics.count(AdmissionControl.REJECTED)
+            val client = TestIcapClient("127.0.0.1", port)
+            Socket().use { held ->
+                held.connect(InetSocketAddress("127.0.0.1", port))
+                held.getOutputStream().write(options.toByteArray(StandardCharsets.UTF_8))
+                val status = ByteArray(13).also { DataInputStream(held.getInputStream()).readFully(it) }
+                Assertions.assertEquals("ICAP/1.0 200 ", String(status, StandardCharsets.US_ASCII))
+
+                // the only slot is taken by the persistent connection
+                val overloaded = client.send(options)
+                Assertions.assertTrue(overloaded.startsWith("ICAP/1.0 503 Service Overloaded\r\n"), overloaded)
+                Assertions.assertTrue(overloaded.contains("\r\nConnection: close\r\n"), overloaded)
+                Assertions.assertEquals(rejected + 1, Metrics.count(AdmissionControl.REJECTED))
+            }
+            // the slot is given back once the server sees the connection closed
+            var resp = ""
+            for (i in 0 until 50) {
+                resp = client.send(options)
+                if (resp.startsWith("ICAP/1.0 200 ")) break
+                Thread.sleep(20)
+            }
+            Assertions.assertTrue(resp.startsWith("ICAP/1.0 200 "), resp)
+        } finally {
+            transport.stop()
+            workers.shutdown()
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+
+@TestInstance(Lifecycle.PER_CLASS)
+class IcapFrameDecoderTest {
+
+    private val options = "OPTIONS icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\n\r\n"
+
+    private val reqHeaders = "GET / HTTP/1.1\r\nHost: www.origin-server.com\r\n\r\n"
+
+    private val reqModWithBody = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\n" +
+            "Host: 127.0.0.1\r\n" +
+            "Encapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n" +
+            "\r\n" +
+            reqHeaders +
+            "5\r\nHello\r\n" +
+            "7; some-ext=1\r\n World!\r\n" +
+            "0\r\n\r\n"
+
+    private fun decodeAll(data: String, pieceSize: Int): List<String> {
+        val decoder = IcapFrameDecoder()
+        val frames = mutableListOf<String>()
+        val bytes = data.toByteArray(StandardCharsets.UTF_8)
+        var i = 0
+        while (i < bytes.size) {
+            val n = minOf(pieceSize, bytes.size - i)
+            decoder.decode(ByteBuffer.wrap(bytes, i, n)) { b, off, len -> frames.add(String(b, off, len, StandardCharsets.UTF_8)) }
+            i += n
+        }
+        Assertions.assertFalse(decoder.broken)
+        return frames
+    }
+
+    @Test
+    fun testFramesAcrossArbitraryReads() {
+        for (pieceSize in listOf(1, 3, 7, 64, 4096)) {
+            Assertions.assertEquals(listOf(options, reqModWithBody, options), decodeAll(options + reqModWithBody + options, pieceSize))
+        }
+    }
+
+    @Test
+    fun testNullBody() {
+        val noBody = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\nEncapsulated: req-hdr=0, null-body=${reqHeaders.length}\r\n\r\n$reqHeaders"
+        Assertions.assertEquals(listOf(noBody, options), decodeAll(noBody + options, 5))
+    }
+
+    @Test
+    fun testPreviewFramedSeparately() {
+        val head = "RESPMOD icap://127.0.0.1/echo ICAP/1.0\r\nPreview: 5\r\nEncapsulated: res-hdr=0, res-body=${reqHeaders.length}\r\n\r\n$reqHeaders"
+        val preview = head + "5\r\nHello\r\n0\r\n\r\n"
+        val remaining = "7\r\n World!\r\n0\r\n\r\n"
+        Assertions.assertEquals(listOf(preview, remaining, options), decodeAll(preview + remaining + options, 2))
+
+        // the whole body fits in the preview
+        val ieof = head + "5\r\nHello\r\n0; ieof\r\n\r\n"
+        Assertions.assertEquals(listOf(ieof, options), decodeAll(ieof + options, 2))
+    }
+
+    @Test
+    fun testLargeBodyFramedInParts() {
+        val data = "x".repeat(100)
+        val head = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\nEncapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n\r\n$reqHeaders"
+        val message = head + "64\r\n$data\r\n0\r\n\r\n"
+        val decoder = IcapFrameDecoder(65536, 32)
+        val frames = mutableListOf<String>()
+        val bytes = (message + options).toByteArray(StandardCharsets.UTF_8)
+        for (i in bytes.indices step 20) {
+            decoder.decode(ByteBuffer.wrap(bytes, i, minOf(20, bytes.size - i))) { b, off, len -> frames.add(String(b, off, len, StandardCharsets.UTF_8)) }
+        }
+        // the body is handed over in parts while it's still being received, the frames still make up the request
+        Assertions.assertTrue(frames.size > 3, frames.toString())
+        Assertions.assertEquals(message, frames.dropLast(1).joinToString(""))
+        Assertions.assertEquals(options, frames.last())
+    }
+
+    @Test
+    fun testMalformedChunkBreaksDecoding() {
+        val decoder = IcapFrameDecoder()
+        val frames = mutableListOf<ByteArray>()
+        val malformed = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\nEncapsulated: req-body=0\r\n\r\nzz\r\n"
+        decoder.decode(ByteBuffer.wrap(malformed.toByteArray(StandardCharsets.UTF_8))) { b, off, len -> frames.add(b.copyOfRange(off, off + len)) }
+        Assertions.assertTrue(decoder.broken)
+        // what has been read is still delivered to the request handler
+        Assertions.assertEquals(malformed, frames.single().toString(StandardCharsets.UTF_8))
+    }
+}
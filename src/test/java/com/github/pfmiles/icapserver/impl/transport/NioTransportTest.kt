@@ -0,0 +1,269 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import com.github.pfmiles.icapserver.TestIcapClient
+import com.github.pfmiles.icapserver.impl.body.MemoryBudget
+import com.github.pfmiles.icapserver.impl.buffer.BufferPool
+import com.github.pfmiles.icapserver.impl.module.ext.LateModule
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+
+@TestInstance(Lifecycle.PER_CLASS)
+class NioTransportTest {
+
+    private val port = 55000 + ThreadLocalRandom.current().nextInt(5000)
+
+    private lateinit var workers: ExecutorService
+    private lateinit var transport: NioTransport
+    private lateinit var client: TestIcapClient
+
+    @BeforeAll
+    fun init() {
+        workers = Executors.newFixedThreadPool(4)
+        // pipelined requests switch between the lanes
+        val lanes = WorkerLanes(workers, WorkerLanes.newLane("test-fast", 1), mapOf("echo" to WorkerLanes.newLane("test-echo", 2)))
+        transport = NioTransport(port, workers, 2, 60000, 65536, SocketOptions.configured(), AdmissionControl.configured(), lanes)
+        transport.start()
+        client = TestIcapClient("127.0.0.1", port)
+    }
+
+    @AfterAll
+    fun terminate() {
+        transport.stop()
+        workers.shutdown()
+        // every pooled buffer is given back once the connections are closed
+        val deadline = System.currentTimeMillis() + 5000
+        while (BufferPool.global.outstanding > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10)
+        Assertions.assertEquals(0, BufferPool.global.outstanding, BufferPool.global.leaks().joinToString("\n") { it.stackTraceToString() })
+    }
+
+    @Test
+    fun testOptions() {
+        val resp = client.send("OPTIONS icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n")
+        Assertions.assertTrue(resp.startsWith("ICAP/1.0 200 "), resp)
+        Assertions.assertFalse(resp.contains("Preview:"), resp)
+        // the limit enforced by the admission control
+        Assertions.assertTrue(resp.contains("\r\nMax-Connections: 1024\r\n"), resp)
+    }
+
+    @Test
+    fun testOptionsPreview() {
+        // declared by the virus scanning modules
+        val resp = client.send("OPTIONS icap://127.0.0.1/virus_scan ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n")
+        Assertions.assertTrue(resp.contains("\r\nPreview: 4096\r\n"), resp)
+    }
+
+    @Test
+    fun testModuleRouting() {
+        val reqHeaders = "GET / HTTP/1.1\r\nHost: www.origin-server.com\r\n\r\n"
+        val data = "Hello World!"
+        val reqMod = "REQMOD icap://127.0.0.1/msg-dump?level=1 ICAP/1.0\r\n" +
+                "Host: 127.0.0.1\r\n" +
+                "Encapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n" +
+                "\r\n" + reqHeaders +
+                "${Integer.toHexString(data.length)}\r\n$data\r\n0\r\n\r\n"
+        // served by the module, sent back unmodified
+        val resp = client.send(reqMod)
+        Assertions.assertTrue(resp.startsWith("ICAP/1.0 200 "), resp)
+        Assertions.assertTrue(resp.contains("\r\nEncapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n"), resp)
+        Assertions.assertTrue(resp.endsWith("\r\n\r\n$reqHeaders${Integer.toHexString(data.length)}\r\n$data\r\n0\r\n\r\n"), resp)
+
+        val noContent = client.send(reqMod.replaceFirst("Host: 127.0.0.1\r\n", "Host: 127.0.0.1\r\nAllow: 204\r\n"))
+        Assertions.assertTrue(noContent.startsWith("ICAP/1.0 204 "), noContent)
+
+        // the info endpoint serves only RESPMOD
+        val notAllowed = client.send("REQMOD icap://127.0.0.1/info ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n")
+        Assertions.assertTrue(notAllowed.startsWith("ICAP/1.0 405 "), notAllowed)
+        val notFound = client.send("REQMOD icap://127.0.0.1/echoes ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n")
+        Assertions.assertTrue(notFound.startsWith("ICAP/1.0 404 "), notFound)
+        val options = client.send("OPTIONS icap://127.0.0.1/info ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n")
+        Assertions.assertTrue(options.contains("\r\nMethods: RESPMOD\r\n"), options)
+    }
+
+    @Test
+    fun testModuleStreaming() {
+        val reqHeaders = "POST / HTTP/1.1\r\nHost: www.origin-server.com\r\n\r\n"
+        // much larger than the input and output buffered by a connection
+        val chunk = "0123456789abcdef".repeat(8192)
+        val data = chunk.repeat(24)
+        val reqMod = "REQMOD icap://127.0.0.1/msg-dump ICAP/1.0\r\n" +
+                "Host: 127.0.0.1\r\n" +
+                "Encapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n" +
+                "\r\n" + reqHeaders +
+                "${Integer.toHexString(chunk.length)}\r\n$chunk\r\n".repeat(24) + "0\r\n\r\n"
+        val resp = client.sendStreaming(reqMod)
+        Assertions.assertTrue(resp.startsWith("ICAP/1.0 200 "), resp.take(1000))
+        // relayed back as it's read
+        val body = dechunk(resp.substringAfter("\r\n\r\n$reqHeaders"))
+        Assertions.assertEquals(data.length, body.length)
+        Assertions.assertTrue(data == body)
+
+        // the module asks for the remaining body by iterating beyond the preview
+        val preview = "REQMOD icap://127.0.0.1/msg-dump ICAP/1.0\r\n" +
+                "Host: 127.0.0.1\r\n" +
+                "Preview: 5\r\n" +
+                "Encapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n" +
+                "\r\n" + reqHeaders
+        val continued = client.sendWithPreview(preview + "5\r\nHello\r\n0\r\n\r\n", "7\r\n World!\r\n0\r\n\r\n")
+        Assertions.assertTrue(continued.startsWith("ICAP/1.0 100 Continue\r\n\r\nICAP/1.0 200 "), continued)
+        // the preview and the remaining body, coalesced or not depending on when the remaining body arrives
+        Assertions.assertEquals("Hello World!", dechunk(continued.substringAfter("\r\n\r\n$reqHeaders")), continued)
+    }
+
+    @Test
+    fun testModuleNoContentNotAllowed() {
+        val reqHeaders = "POST / HTTP/1.1\r\nHost: www.origin-server.com\r\n\r\n"
+        val head = "REQMOD icap://127.0.0.1/ext ICAP/1.0\r\n" +
+                "Host: 127.0.0.1\r\n" +
+                "Encapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n" +
+                "\r\n" + reqHeaders
+        val body = "5\r\nHello\r\n7\r\n World!\r\n0\r\n\r\n"
+
+        // the module answers '204', but the client does not allow it: echoed back, the chunk the module read included
+        val echoed = client.send(head + body)
+        Assertions.assertTrue(echoed.startsWith("ICAP/1.0 200 "), echoed)
+        Assertions.assertTrue(echoed.contains("\r\nEncapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n"), echoed)
+        Assertions.assertEquals("Hello World!", dechunk(echoed.substringAfter("\r\n\r\n$reqHeaders")), echoed)
+
+        val noContent = client.send(head.replaceFirst("Host: 127.0.0.1\r\n", "Host: 127.0.0.1\r\nAllow: 204\r\n") + body)
+        Assertions.assertTrue(noContent.startsWith("ICAP/1.0 204 "), noContent)
+
+        // always allowed in response to a preview
+        val preview = client.send(head.replaceFirst("Host: 127.0.0.1\r\n", "Host: 127.0.0.1\r\nPreview: 5\r\n") + "5\r\nHello\r\n0; ieof\r\n\r\n")
+        Assertions.assertTrue(preview.startsWith("ICAP/1.0 204 "), preview)
+
+        val nullBody = client.send("REQMOD icap://127.0.0.1/ext ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: req-hdr=0, null-body=${reqHeaders.length}\r\n\r\n$reqHeaders")
+        Assertions.assertTrue(nullBody.startsWith("ICAP/1.0 200 "), nullBody)
+        Assertions.assertTrue(nullBody.endsWith("\r\nEncapsulated: req-hdr=0, null-body=${reqHeaders.length}\r\n\r\n$reqHeaders"), nullBody)
+    }
+
+    @Test
+    fun testLateModuleReleasesBody() {
+        LateModule.done = CountDownLatch(1)
+        val used = MemoryBudget.global.used
+        val reqHeaders = "POST / HTTP/1.1\r\nHost: www.origin-server.com\r\n\r\n"
+        val chunk = "0123456789abcdef".repeat(1024)
+        val reqMod = "REQMOD icap://127.0.0.1/late ICAP/1.0\r\n" +
+                "Host: 127.0.0.1\r\n" +
+                "Encapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n" +
+                "\r\n" + reqHeaders +
+                "${Integer.toHexString(chunk.length)}\r\n$chunk\r\n".repeat(8) + "0\r\n\r\n"
+        val resp = client.send(reqMod)
+        Assertions.assertTrue(resp.startsWith("ICAP/1.0 500 "), resp)
+
+        // the module goes on reading after its answer is given up on, nothing it reads is kept
+        Assertions.assertTrue(LateModule.done.await(5, TimeUnit.SECONDS))
+        val deadline = System.currentTimeMillis() + 5000
+        while (MemoryBudget.global.used != used && System.currentTimeMillis() < deadline) Thread.sleep(10)
+        Assertions.assertEquals(used, MemoryBudget.global.used, "late chunks read: ${LateModule.lateChunks}")
+    }
+
+    // the data of a chunked body
+    private fun dechunk(chunks: String): String {
+        val body = StringBuilder()
+        var i = 0
+        while (true) {
+            val sizeEnd = chunks.indexOf("\r\n", i)
+            val size = chunks.substring(i, sizeEnd).toInt(16)
+            if (size == 0) return body.toString()
+            body.append(chunks, sizeEnd + 2, sizeEnd + 2 + size)
+            i = sizeEnd + 2 + size + 2
+        }
+    }
+
+    @Test
+    fun testEchoBody() {
+        val data = "Hello World!"
+        val reqMod = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\n" +
+                "Host: 127.0.0.1\r\n" +
+                "Encapsulated: req-hdr=0, req-body=0\r\n" +
+                "\r\n" +
+                "${Integer.toHexString(data.length)}\r\n$data\r\n0\r\n\r\n"
+        val resp = client.send(reqMod)
+        Assertions.assertTrue(resp.startsWith("ICAP/1.0 200 "), resp)
+        Assertions.assertTrue(resp.contains(data), resp)
+    }
+
+    @Test
+    fun testPipelinedRequests() {
+        val options = "OPTIONS icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n"
+        val echo = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: req-hdr=0, req-body=0\r\n\r\n" +
+                "5\r\nHello\r\n0\r\n\r\n"
+        val responses = client.sendAll(listOf(options, echo, options, echo))
+        Assertions.assertEquals(4, responses.size)
+        responses.forEach { Assertions.assertTrue(it.startsWith("ICAP/1.0 200 "), it) }
+        Assertions.assertTrue(responses[3].contains("Hello"), responses[3])
+    }
+
+    @Test
+    fun testPreviewContinue() {
+        val reqHeaders = "POST / HTTP/1.1\r\nHost: www.origin-server.com\r\n\r\n"
+        val head = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\n" +
+                "Host: 127.0.0.1\r\n" +
+                "Preview: 5\r\n" +
+                "Encapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n" +
+                "\r\n" +
+                reqHeaders
+        val resp = client.sendWithPreview(head + "5\r\nHello\r\n0\r\n\r\n", "7\r\n World!\r\n0\r\n\r\n")
+        Assertions.assertTrue(resp.startsWith("ICAP/1.0 100 Continue\r\n\r\nICAP/1.0 200 "), resp)
+        // the echoed body is relayed as it arrives
+        Assertions.assertEquals("Hello World!", dechunk(resp.substringAfter("\r\n\r\n$reqHeaders")), resp)
+    }
+
+    @Test
+    fun testNoContent() {
+        val reqHeaders = "POST / HTTP/1.1\r\nHost: www.origin-server.com\r\n\r\n"
+        val echo = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\n" +
+                "Host: 127.0.0.1\r\n" +
+                "Allow: 204, trailers\r\n" +
+                "Encapsulated: req-hdr=0, req-body=${reqHeaders.length}\r\n" +
+                "\r\n" +
+                reqHeaders
+        val options = "OPTIONS icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n"
+        val responses = client.sendInTurn(listOf(echo + "5\r\nHello\r\n0\r\n\r\n", options))
+        Assertions.assertTrue(responses[0].startsWith("ICAP/1.0 204 "), responses[0])
+        Assertions.assertTrue(responses[0].endsWith("Encapsulated: null-body=0\r\n\r\n"), responses[0])
+        Assertions.assertTrue(responses[1].startsWith("ICAP/1.0 200 "), responses[1])
+        Assertions.assertTrue(responses[1].contains("\r\nAllow: 204\r\n"), responses[1])
+    }
+
+    @Test
+    fun testStableServiceTag() {
+        val options = "OPTIONS icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n"
+        val echo = "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\nAllow: 204\r\nEncapsulated: req-body=0\r\n\r\n5\r\nHello\r\n0\r\n\r\n"
+        val infoOptions = "OPTIONS icap://127.0.0.1/info ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n"
+        val responses = client.sendAll(listOf(options, echo, options, infoOptions))
+        val tags = responses.map { resp -> resp.split("\r\n").single { it.startsWith("ISTag: ") } }
+        Assertions.assertTrue(tags[0].matches(Regex("ISTag: \"[0-9A-F]{32}\"")), tags[0])
+        // the same service state, the same tag
+        Assertions.assertEquals(tags[0], tags[1])
+        Assertions.assertEquals(tags[0], tags[2])
+        Assertions.assertNotEquals(tags[0], tags[3])
+        Assertions.assertTrue(responses[0].contains("\r\nOptions-TTL: 3600\r\n"), responses[0])
+    }
+
+    @Test
+    fun testNoContentOnPreview() {
+        val reqHeaders = "POST / HTTP/1.1\r\nHost: www.origin-server.com\r\n\r\n"
+        val preview = "RESPMOD icap://127.0.0.1/echo ICAP/1.0\r\n" +
+                "Host: 127.0.0.1\r\n" +
+                "Allow: 204\r\n" +
+                "Preview: 5\r\n" +
+                "Encapsulated: res-hdr=0, res-body=${reqHeaders.length}\r\n" +
+                "\r\n" +
+                reqHeaders + "5\r\nHello\r\n0\r\n\r\n"
+        val options = "OPTIONS icap://127.0.0.1/echo ICAP/1.0\r\nHost: 127.0.0.1\r\nEncapsulated: null-body=0\r\n\r\n"
+        // answered without '100 Continue', the next request follows instead of the remaining body
+        val responses = client.sendInTurn(listOf(preview, options))
+        Assertions.assertTrue(responses[0].startsWith("ICAP/1.0 204 "), responses[0])
+        Assertions.assertTrue(responses[1].startsWith("ICAP/1.0 200 "), responses[1])
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.pfmiles.icapserver.impl.transport
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.api.TestInstance.Lifecycle
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+@TestInstance(Lifecycle.PER_CLASS)
+class WorkerLanesTest {
+
+    private fun laneOf(lanes: WorkerLanes, head: String): Executor {
+        val bytes = head.toByteArray(Charsets.ISO_8859_1)
+        // the head is followed by the rest of the frame, e.g. the body
+        val frame = bytes + "9\r\nnull-body\r\n0\r\n\r\n".toByteArray(Charsets.ISO_8859_1)
+        // classified in place in a pooled direct buffer, after the previous request
+        val buf = ByteBuffer.allocateDirect(frame.size + 16)
+        buf.position(16)
+        buf.put(frame).flip().position(16)
+        val lane = lanes.laneOf(buf)
+        Assertions.assertEquals(16, buf.position())
+        return lane
+    }
+
+    @Test
+    fun testClassification() {
+        val shared = Executor { it.run() }
+        val fast = WorkerLanes.newLane("test-classify-fast", 1)
+        val scan = WorkerLanes.newLane("test-classify-scan", 1)
+        val lanes = WorkerLanes(shared, fast, mapOf("virus_scan" to scan))
+        try {
+            Assertions.assertSame(fast, laneOf(lanes, "OPTIONS icap://127.0.0.1/virus_scan ICAP/1.0\r\nHost: 127.0.0.1\r\n\r\n"))
+            Assertions.assertSame(fast, laneOf(lanes, "REQMOD icap://127.0.0.1/virus_scan ICAP/1.0\r\nEncapsulated: req-hdr=0, null-body=40\r\n\r\n"))
+            Assertions.assertSame(scan, laneOf(lanes, "RESPMOD icap://127.0.0.1/virus_scan ICAP/1.0\r\nEncapsulated: res-hdr=0, res-body=40\r\n\r\n"))
+            Assertions.assertSame(scan, laneOf(lanes, "RESPMOD icap://127.0.0.1/Virus_Scan?mode=1 ICAP/1.0\r\nEncapsulated: res-body=0\r\n\r\n"))
+            Assertions.assertSame(shared, laneOf(lanes, "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\nEncapsulated: req-body=0\r\n\r\n"))
+            Assertions.assertSame(fast, laneOf(lanes, "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\nHost: x\r\nencapsulated : REQ-HDR=0, NULL-BODY=40\r\n\r\n"))
+            Assertions.assertSame(shared, laneOf(lanes, "RESPMOD icap://127.0.0.1/virus_scanner ICAP/1.0\r\nEncapsulated: res-body=0\r\n\r\n"))
+            Assertions.assertSame(shared, laneOf(lanes, "RESPMOD http://127.0.0.1/virus_scan ICAP/1.0\r\nEncapsulated: res-body=0\r\n\r\n"))
+            // not parsable, left to the handler on the shared pool
+            Assertions.assertSame(shared, laneOf(lanes, "garbage\r\n\r\n"))
+            Assertions.assertSame(shared, lanes.laneOf(null))
+
+            // without a fast lane, body-less requests stay on the lanes of their endpoints
+            val noFastLane = WorkerLanes(shared, null, mapOf("virus_scan" to scan))
+            Assertions.assertSame(scan, laneOf(noFastLane, "OPTIONS icap://127.0.0.1/virus_scan ICAP/1.0\r\n\r\n"))
+        } finally {
+            lanes.shutdown()
+        }
+    }
+
+    @Test
+    fun testParseServiceWorkers() {
+        Assertions.assertEquals(mapOf("virus_scan" to 64, "echo" to 0), WorkerLanes.parseServiceWorkers(" /Virus_Scan=64, echo = 0 ,"))
+        Assertions.assertTrue(WorkerLanes.parseServiceWorkers("").isEmpty())
+        Assertions.assertThrows(IllegalArgumentException::class.java) { WorkerLanes.parseServiceWorkers("virus_scan") }
+        Assertions.assertThrows(IllegalArgumentException::class.java) { WorkerLanes.parseServiceWorkers("virus_scan=-1") }
+        Assertions.assertThrows(IllegalArgumentException::class.java) { WorkerLanes.parseServiceWorkers("=4") }
+    }
+
+    @Test
+    fun testBulkhead() {
+        val shared = WorkerLanes.newLane("test-bulkhead-shared", 1)
+        val fast = WorkerLanes.newLane("test-bulkhead-fast", 1)
+        val scan = WorkerLanes.newLane("test-bulkhead-scan", 1)
+        val lanes = WorkerLanes(shared, fast, mapOf("virus_scan" to scan))
+        val release = CountDownLatch(1)
+        try {
+            // the only scanning worker is busy, the following scan waits for it
+            laneOf(lanes, "RESPMOD icap://127.0.0.1/virus_scan ICAP/1.0\r\nEncapsulated: res-body=0\r\n\r\n").execute { release.await() }
+            val scanned = CountDownLatch(1)
+            laneOf(lanes, "RESPMOD icap://127.0.0.1/virus_scan ICAP/1.0\r\nEncapsulated: res-body=0\r\n\r\n").execute { scanned.countDown() }
+
+            // while the other lanes are not held back
+            val served = CountDownLatch(2)
+            laneOf(lanes, "OPTIONS icap://127.0.0.1/virus_scan ICAP/1.0\r\n\r\n").execute { served.countDown() }
+            laneOf(lanes, "REQMOD icap://127.0.0.1/echo ICAP/1.0\r\nEncapsulated: req-body=0\r\n\r\n").execute { served.countDown() }
+            Assertions.assertTrue(served.await(5, TimeUnit.SECONDS))
+            Assertions.assertFalse(scanned.await(100, TimeUnit.MILLISECONDS))
+
+            release.countDown()
+            Assertions.assertTrue(scanned.await(5, TimeUnit.SECONDS))
+        } finally {
+            release.countDown()
+            lanes.shutdown()
+            shared.shutdown()
+        }
+    }
+}
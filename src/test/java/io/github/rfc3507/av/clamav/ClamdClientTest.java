@@ -0,0 +1,118 @@
+package io.github.rfc3507.av.clamav;
+
+import com.github.pfmiles.icapserver.impl.body.BodyStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ClamdClientTest {
+
+    private FakeClamd clamd;
+
+    @BeforeEach
+    void startup() throws Exception {
+        clamd = new FakeClamd();
+    }
+
+    @AfterEach
+    void shutdown() throws Exception {
+        clamd.close();
+    }
+
+    @Test
+    public void scanTest(@TempDir File dir) throws Exception {
+        try (ClamdClient client = new ClamdClient(clamd.address(), 2, 5000)) {
+            Assertions.assertEquals("PONG", client.ping());
+            Assertions.assertEquals(FakeClamd.VERSION, client.version());
+
+            Assertions.assertNull(client.checkThreat("Hello World!".getBytes(StandardCharsets.UTF_8)).getThreat());
+
+            // larger than one INSTREAM chunk
+            File file = new File(dir, "threat.data");
+            byte[] content = new byte[200 * 1024];
+            byte[] eicar = "EICAR".getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(eicar, 0, content, content.length - eicar.length, eicar.length);
+            Files.write(file.toPath(), content);
+            Assertions.assertEquals("Eicar-Test-Signature", client.checkThreat(file).getThreat());
+        }
+        // all the calls above share one pooled session
+        Assertions.assertEquals(1, clamd.connections.get());
+    }
+
+    @Test
+    public void scanStoreTest(@TempDir File dir) throws Exception {
+        try (ClamdClient client = new ClamdClient(clamd.address(), 2, 5000);
+             BodyStore body = new BodyStore(1024 * 1024, dir)) {
+            body.write("Hello EICAR!".getBytes(StandardCharsets.US_ASCII));
+            Assertions.assertEquals("Eicar-Test-Signature", client.checkThreat(body::openStream).getThreat());
+            // streamed from memory, not spilled to be scanned
+            Assertions.assertFalse(body.getSpilled());
+            Assertions.assertEquals(0, dir.list().length);
+        }
+    }
+
+    @Test
+    public void poolBoundTest() throws Exception {
+        clamd.scanDelayMillis = 100;
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try (ClamdClient client = new ClamdClient(clamd.address(), 3, 5000)) {
+            List<Future<ClamAVResponse>> results = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                results.add(pool.submit(() -> client.checkThreat(new byte[]{1, 2, 3})));
+            }
+            for (Future<ClamAVResponse> r : results) {
+                Assertions.assertNull(r.get().getThreat());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Assertions.assertEquals(12, clamd.scans.get());
+        Assertions.assertTrue(clamd.connections.get() <= 3, "connections: " + clamd.connections.get());
+    }
+
+    @Test
+    public void staleSessionTest() throws Exception {
+        try (ClamdClient client = new ClamdClient(clamd.address(), 1, 5000)) {
+            Assertions.assertEquals("PONG", client.ping());
+            // clamd closes idle sessions
+            clamd.dropConnections();
+            Thread.sleep(100);
+            Assertions.assertEquals("PONG", client.ping());
+        }
+        Assertions.assertEquals(2, clamd.connections.get());
+    }
+
+    @Test
+    public void timeoutTest() throws Exception {
+        clamd.scanDelayMillis = 2000;
+        try (ClamdClient client = new ClamdClient(clamd.address(), 1, 200)) {
+            long start = System.currentTimeMillis();
+            ClamAVException e = Assertions.assertThrows(ClamAVException.class, () -> client.checkThreat(new byte[]{1}));
+            Assertions.assertTrue(e.getMessage().contains("timed out"), e.getMessage());
+            Assertions.assertTrue(System.currentTimeMillis() - start < 1500);
+            // the timed out connection is not reused
+            clamd.scanDelayMillis = 0;
+            Assertions.assertEquals("PONG", client.ping());
+        }
+    }
+
+    @Test
+    public void unavailableTest() throws Exception {
+        String address = clamd.address();
+        clamd.close();
+        try (ClamdClient client = new ClamdClient(address, 1, 500)) {
+            Assertions.assertThrows(ClamAVException.class, client::ping);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.rfc3507.av.clamav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in of clamd for offline tests, speaking the IDSESSION, PING, VERSION, INSTREAM and END commands over tcp.
+ * Streamed content containing 'EICAR' is reported as infected.
+ */
+public class FakeClamd implements Closeable {
+
+    public static final String VERSION = "ClamAV 1.0.0/27000/Fake";
+
+    private final ServerSocket server = new ServerSocket(0);
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+    // count of connections accepted
+    public final AtomicInteger connections = new AtomicInteger();
+    // count of INSTREAM commands served
+    public final AtomicInteger scans = new AtomicInteger();
+
+    // makes each scan take this long
+    public volatile long scanDelayMillis = 0;
+
+    public FakeClamd() throws IOException {
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket s = server.accept();
+                    if (server.isClosed()) {
+                        // accepted while closing, refused like an unavailable clamd
+                        s.close();
+                        break;
+                    }
+                    connections.incrementAndGet();
+                    sockets.add(s);
+                    Thread t = new Thread(() -> serve(s), "fake-clamd-conn");
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "fake-clamd-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String address() {
+        return "127.0.0.1:" + server.getLocalPort();
+    }
+
+    /**
+     * close all accepted connections, like clamd does to idle sessions
+     */
+    public void dropConnections() throws IOException {
+        for (Socket s : sockets) {
+            s.close();
+        }
+        sockets.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        dropConnections();
+    }
+
+    private void serve(Socket s) {
+        try (Socket socket = s) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            boolean session = false;
+            int id = 0;
+            while (true) {
+                String command = readCommand(in);
+                if (command == null || "END".equals(command)) {
+                    return;
+                }
+                if ("IDSESSION".equals(command)) {
+                    session = true;
+                    continue;
+                }
+                id++;
+                String reply;
+                if ("PING".equals(command)) {
+                    reply = "PONG";
+                } else if ("VERSION".equals(command)) {
+                    reply = VERSION;
+                } else if ("INSTREAM".equals(command)) {
+                    reply = scan(in);
+                } else {
+                    reply = "UNKNOWN COMMAND";
+                }
+                out.write(((session ? id + ": " : "") + reply + "\0").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                if (!session) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            // connection dropped
+        }
+    }
+
+    private String scan(DataInputStream in) throws Exception {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        int len;
+        while ((len = in.readInt()) > 0) {
+            byte[] chunk = new byte[len];
+            in.readFully(chunk);
+            content.write(chunk);
+        }
+        scans.incrementAndGet();
+        if (scanDelayMillis > 0) {
+            Thread.sleep(scanDelayMillis);
+        }
+        return new String(content.toByteArray(), StandardCharsets.ISO_8859_1).contains("EICAR")
+                ? "stream: Eicar-Test-Signature FOUND" : "stream: OK";
+    }
+
+    // 'zCOMMAND\0', @return null when the connection ends
+    private String readCommand(DataInputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            return null;
+        }
+        StringBuilder command = new StringBuilder();
+        while ((b = in.read()) > 0) {
+            command.append((char) b);
+        }
+        return b == -1 ? null : command.toString();
+    }
+}